@@ -1,57 +1,105 @@
 import java.io.Serializable;
+import java.util.function.LongUnaryOperator;
 
 public class Account implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
     private final String username;
-    private String password;
+    // PasswordHasher hash, never the plain text
+    private volatile String passwordHash;
     private long balance;
+    // set by InterestScheduler, null means the global interest rate
+    private transient volatile InterestPlan interestPlan;
+    // set by AccountStore, told about every balance change
+    private transient volatile BalanceIndex balanceIndex;
+
+    // Versions for snapshots, all under the lock. balance was written at
+    // balanceEpoch, and older holds earlier balances newest first, kept only
+    // while an open snapshot might read them. See Epochs.
+    private transient volatile Epochs epochs;
+    private long balanceEpoch;
+    private long createdEpoch;
+    private transient Version older;
+
+    private static final class Version {
+        final long epoch;
+        long balance;
+        Version next;
+
+        Version(long epoch, long balance, Version next) {
+            this.epoch = epoch;
+            this.balance = balance;
+            this.next = next;
+        }
+    }
 
     // Private lock object so we don't expose information
     private final Object lock = new Object();
 
-    // password helper
+    // password helper, returns the stored hash
     String getPasswordForPersistence() {
-        synchronized (lock) {
-            return password;
-        }
+        return passwordHash;
     }
 
     public Account(String username, String password, long initialBalance) {
+        this(username, password, initialBalance, PasswordHasher.DEFAULT_ITERATIONS);
+    }
+
+    // Hashes password with the given cost
+    public Account(String username, String password, long initialBalance, int hashIterations) {
+        this(username, initialBalance, PasswordHasher.hash(checkedPassword(password), hashIterations));
+    }
+
+    private Account(String username, long initialBalance, String passwordHash) {
         if (username == null || username.isBlank()) {
             throw new IllegalArgumentException("Username must not be empty");
         }
-        if (password == null || password.isBlank()) {
-            throw new IllegalArgumentException("Password must not be empty");
-        }
         if (initialBalance < 0) {
             throw new IllegalArgumentException("Initial balance cannot be negative");
         }
         this.username = username;
-        this.password = password;
+        this.passwordHash = passwordHash;
         this.balance = initialBalance;
     }
 
+    // For loading, passwordHash must already be a PasswordHasher hash
+    static Account withPasswordHash(String username, String passwordHash, long balance) {
+        if (!PasswordHasher.isHash(passwordHash)) {
+            throw new IllegalArgumentException("Not a password hash");
+        }
+        return new Account(username, balance, passwordHash);
+    }
+
+    private static String checkedPassword(String password) {
+        if (password == null || password.isBlank()) {
+            throw new IllegalArgumentException("Password must not be empty");
+        }
+        return password;
+    }
+
     public String getUsername() {
         return username;
     }
 
-    // Synchronised read to keep it consistent with setPassword
+    // Slow on purpose. The hash is volatile, so this never takes the account
+    // lock and cannot hold up deposits or transfers.
     public boolean checkPassword(String candidate) {
         if (candidate == null) return false;
-        synchronized (lock) {
-            return password.equals(candidate);
-        }
+        return PasswordHasher.verify(candidate, passwordHash);
     }
 
+    // Keeps the cost of the current hash
     public void setPassword(String newPassword) {
-        if (newPassword == null || newPassword.isBlank()) {
-            throw new IllegalArgumentException("Password must not be empty");
-        }
-        synchronized (lock) {
-            this.password = newPassword;
-        }
+        setPassword(newPassword, getHashIterations());
+    }
+
+    public void setPassword(String newPassword, int hashIterations) {
+        this.passwordHash = PasswordHasher.hash(checkedPassword(newPassword), hashIterations);
+    }
+
+    public int getHashIterations() {
+        return PasswordHasher.iterationsOf(passwordHash);
     }
 
     public long getBalance() {
@@ -66,7 +114,7 @@ public class Account implements Serializable {
             throw new IllegalArgumentException("Deposit amount must be > 0");
         }
         synchronized (lock) {
-            balance += amount;
+            apply(amount);
         }
     }
 
@@ -78,11 +126,162 @@ public class Account implements Serializable {
             if (balance < amount) {
                 return false;
             }
-            balance -= amount;
+            apply(-amount);
             return true;
         }
     }
 
+    // Credits interest on the balance as it is now: interest if the balance is
+    // still expectedBalance, which it was computed from, else what interestOn
+    // gives for the current balance. Returns the amount credited, 0 if none.
+    long addInterest(long expectedBalance, long interest, LongUnaryOperator interestOn) {
+        synchronized (lock) {
+            long amount = balance == expectedBalance ? interest : interestOn.applyAsLong(balance);
+            if (amount > 0) {
+                apply(amount);
+            }
+            return Math.max(amount, 0);
+        }
+    }
+
+    // with the lock held
+    private void apply(long delta) {
+        long old = balance;
+        Epochs ep = epochs;
+        if (ep == null) {
+            balance += delta;
+        } else {
+            Epochs.enterWrite();
+            try {
+                long e = ep.writeEpoch();
+                if (e >= balanceEpoch) {
+                    if (e > balanceEpoch && ep.pinnedIn(balanceEpoch, e)) {
+                        older = new Version(balanceEpoch, balance, older);
+                    }
+                    balance += delta;
+                    balanceEpoch = e;
+                } else {
+                    lateWrite(e, delta);
+                }
+                older = trim(ep, older);
+            } finally {
+                Epochs.exitWrite();
+            }
+        }
+        BalanceIndex index = balanceIndex;
+        if (index != null) {
+            index.moved(username, old, balance);
+        }
+    }
+
+    // A write from a scope that took its epoch before this account's last
+    // write, e.g. an interest run that reached this account after a pin let
+    // a newer transfer in first. Changes are plain additions, so it is added
+    // to every version at or after e, and a version at e is made if a
+    // snapshot needs one.
+    private void lateWrite(long e, long delta) {
+        balance += delta;
+        Version newer = null;
+        Version v = older;
+        boolean atE = false;
+        for (; v != null && v.epoch >= e; v = v.next) {
+            v.balance += delta;
+            atE |= v.epoch == e;
+            newer = v;
+        }
+        if (!atE && v != null) {
+            Version made = new Version(e, v.balance + delta, v);
+            if (newer == null) {
+                older = made;
+            } else {
+                newer.next = made;
+            }
+        }
+    }
+
+    // Drops the versions no open snapshot can read: a version is read by
+    // snapshots from its epoch up to the next newer one's
+    private Version trim(Epochs ep, Version chain) {
+        Version first = null;
+        Version last = null;
+        long upper = balanceEpoch;
+        for (Version v = chain; v != null; v = v.next) {
+            if (ep.pinnedIn(v.epoch, upper)) {
+                if (last == null) {
+                    first = v;
+                } else {
+                    last.next = v;
+                }
+                last = v;
+            }
+            upper = v.epoch;
+        }
+        if (last != null) {
+            last.next = null;
+        }
+        return first;
+    }
+
+    // Balance as a snapshot pinned at epoch sees it
+    long balanceAt(long epoch) {
+        synchronized (lock) {
+            if (balanceEpoch <= epoch) {
+                return balance;
+            }
+            for (Version v = older; v != null; v = v.next) {
+                if (v.epoch <= epoch) {
+                    return v.balance;
+                }
+            }
+            throw new IllegalStateException("Balance of " + username + " at epoch " + epoch + " was reclaimed");
+        }
+    }
+
+    // Whether the account existed at epoch
+    boolean existedAt(long epoch) {
+        synchronized (lock) {
+            return createdEpoch <= epoch;
+        }
+    }
+
+    // Drops old versions once the snapshots that needed them are closed
+    void reclaimVersions() {
+        synchronized (lock) {
+            Epochs ep = epochs;
+            older = ep == null ? null : trim(ep, older);
+        }
+    }
+
+    int versionCount() {
+        synchronized (lock) {
+            int n = 0;
+            for (Version v = older; v != null; v = v.next) n++;
+            return n;
+        }
+    }
+
+    // Called by AccountStore with the account's epoch of creation, 0 if loaded
+    void setEpochs(Epochs epochs, long createdEpoch) {
+        synchronized (lock) {
+            this.epochs = epochs;
+            this.createdEpoch = createdEpoch;
+            this.balanceEpoch = createdEpoch;
+            this.older = null;
+        }
+    }
+
+    void setBalanceIndex(BalanceIndex balanceIndex) {
+        this.balanceIndex = balanceIndex;
+    }
+
+    InterestPlan getInterestPlan() {
+        return interestPlan;
+    }
+
+    void setInterestPlan(InterestPlan interestPlan) {
+        this.interestPlan = interestPlan;
+    }
+
     //expose lock for other operations
     Object getLock() {
         return lock;
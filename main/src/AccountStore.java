@@ -8,17 +8,42 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class AccountStore implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    // First line of the accounts file, e.g. "#hashCost;100000"
+    private static final String HASH_COST_HEADER = "#hashCost";
+
+    // Every new account starts with this, it isn't written to the ledger
+    public static final long INITIAL_BALANCE = 1000L;
+
     private final Map<String, Account> accounts = new HashMap<>();
+    // every account in accounts, ordered by balance
+    private final BalanceIndex balanceIndex = new BalanceIndex();
+    // tags balance changes for snapshots, shared with the Ledger by BankService
+    private final Epochs epochs = new Epochs();
+    // PBKDF2 iterations for new hashes, saved with the accounts
+    private volatile int hashIterations = PasswordHasher.DEFAULT_ITERATIONS;
 
     public AccountStore() {
     }
 
+    public int getHashIterations() {
+        return hashIterations;
+    }
+
+    // Applies to new accounts now, and to old ones as their users log in
+    public void setHashIterations(int hashIterations) {
+        if (hashIterations < PasswordHasher.MIN_ITERATIONS) {
+            throw new IllegalArgumentException("Hash cost must be >= " + PasswordHasher.MIN_ITERATIONS);
+        }
+        this.hashIterations = hashIterations;
+    }
+
     public synchronized boolean accountExists(String username) {
         return accounts.containsKey(username);
     }
@@ -29,21 +54,55 @@ public class AccountStore implements Serializable {
 
      // Create a new account with starting balance
 
-    public synchronized Account createAccount(String username, String password) {
-        if (accounts.containsKey(username)) {
+    public Account createAccount(String username, String password) {
+        if (accountExists(username)) {
             return null;
         }
-        Account account = new Account(username, password, 1000L);
-        accounts.put(username, account);
+        // hash outside the store lock, it takes tens of milliseconds
+        Account account = new Account(username, password, INITIAL_BALANCE, hashIterations);
+        synchronized (this) {
+            if (accounts.containsKey(username)) {
+                return null;
+            }
+            // created in a write scope, so snapshots pinned before now don't see it
+            Epochs.enterWrite();
+            try {
+                put(account, epochs.writeEpoch());
+            } finally {
+                Epochs.exitWrite();
+            }
+        }
         return account;
     }
 
+    public synchronized int size() {
+        return accounts.size();
+    }
+
+    // Kept current by every balance change, read it without the store lock
+    public BalanceIndex getBalanceIndex() {
+        return balanceIndex;
+    }
+
+    public Epochs getEpochs() {
+        return epochs;
+    }
+
+    // Drops account versions that no open snapshot can read any more
+    public void reclaimVersions() {
+        for (Account account : allAccounts()) {
+            account.reclaimVersions();
+        }
+    }
+
     public synchronized Collection<Account> allAccounts() {
         return new ArrayList<>(accounts.values());
     }
 
     public synchronized void saveTo(Path path) throws IOException {
         try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write(HASH_COST_HEADER + ";" + hashIterations);
+            writer.newLine();
             for (Account account : accounts.values()) {
                 long balance = account.getBalance();
                 writer.write(account.getUsername() + ";" +
@@ -54,20 +113,42 @@ public class AccountStore implements Serializable {
         }
     }
 
+    // under the store lock, a later row for the same user replaces the earlier
+    private void put(Account account, long createdEpoch) {
+        account.setEpochs(epochs, createdEpoch);
+        Account previous = accounts.put(account.getUsername(), account);
+        if (previous != null) {
+            balanceIndex.remove(previous);
+        }
+        balanceIndex.add(account);
+    }
+
     // Password helper
     private String getPasswordForSave(Account account) {
         return account.getPasswordForPersistence();
     }
 
     public synchronized void loadFrom(Path path) throws IOException {
+        for (Account account : accounts.values()) {
+            balanceIndex.remove(account); // so old accounts stop updating it
+        }
         accounts.clear();
         if (!Files.exists(path)) {
             return; // nothing to load yet
         }
+        List<String[]> plainText = new ArrayList<>();
         try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
             String line;
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split(";");
+                if (parts.length == 2 && parts[0].equals(HASH_COST_HEADER)) {
+                    try {
+                        setHashIterations(Integer.parseInt(parts[1]));
+                    } catch (IllegalArgumentException e) {
+                        // keep the current cost
+                    }
+                    continue;
+                }
                 if (parts.length != 3) continue; // skip bad lines
 
                 String username = parts[0];
@@ -79,9 +160,28 @@ public class AccountStore implements Serializable {
                     continue; // skip bad rows
                 }
 
-                Account account = new Account(username, password, balance);
-                accounts.put(username, account);
+                if (!PasswordHasher.isHash(password)) {
+                    plainText.add(parts); // file from before hashing
+                    continue;
+                }
+                put(Account.withPasswordHash(username, password, balance), 0);
             }
         }
+        migratePlainText(plainText);
+    }
+
+    // Hashes old plain text rows, in parallel since each hash is slow.
+    // They are written back hashed on the next save.
+    private void migratePlainText(List<String[]> rows) {
+        if (rows.isEmpty()) return;
+        int cost = hashIterations;
+        List<Account> migrated = rows.parallelStream()
+                .filter(parts -> !parts[1].isBlank())
+                .map(parts -> new Account(parts[0], parts[1], Long.parseLong(parts[2]), cost))
+                .toList();
+        for (Account account : migrated) {
+            put(account, 0);
+        }
+        System.out.println("[STORE] Migrated " + migrated.size() + " plain text passwords to hashes");
     }
 }
@@ -0,0 +1,123 @@
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Per-user index of the ledger, for "what was the balance at time T".
+//
+// Ledger adds every row and interest credit here, under its lock. Each user
+// has their balance changes in time order (time, delta) plus a checkpoint
+// every CHECKPOINT_EVERY entries holding the sum of all entries before it.
+// changeUntil() binary searches the times, then adds the entries since the
+// nearest checkpoint, so it reads one checkpoint and at most
+// CHECKPOINT_EVERY entries however long the history is.
+public class BalanceHistory implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int CHECKPOINT_EVERY = 64;
+
+    private static final class Track implements Serializable {
+        private static final long serialVersionUID = 1L;
+        long[] times = new long[4]; // nanoseconds since the epoch, ascending
+        long[] deltas = new long[4];
+        int size = 0;
+        // checkpoints[k] is the sum of deltas[0, k * CHECKPOINT_EVERY)
+        long[] checkpoints = new long[4];
+        int checkpointCount = 1;
+
+        void add(long time, long delta) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                deltas = Arrays.copyOf(deltas, size * 2);
+            }
+            // rows arrive in time order but for ones appended concurrently,
+            // so the right place is at or just before the end
+            int p = size;
+            while (p > 0 && times[p - 1] > time) p--;
+            System.arraycopy(times, p, times, p + 1, size - p);
+            System.arraycopy(deltas, p, deltas, p + 1, size - p);
+            times[p] = time;
+            deltas[p] = delta;
+            size++;
+
+            // checkpoints past p are stale, and entry size-1 may need a new one
+            int last = (size - 1) / CHECKPOINT_EVERY;
+            if (last >= checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+            }
+            for (int k = Math.min(p / CHECKPOINT_EVERY + 1, checkpointCount); k <= last; k++) {
+                long sum = checkpoints[k - 1];
+                for (int i = (k - 1) * CHECKPOINT_EVERY; i < k * CHECKPOINT_EVERY; i++) {
+                    sum += deltas[i];
+                }
+                checkpoints[k] = sum;
+            }
+            checkpointCount = Math.max(checkpointCount, last + 1);
+        }
+
+        // Sum of the deltas at or before time
+        long changeUntil(long time) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (times[mid] <= time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            int k = Math.min(lo / CHECKPOINT_EVERY, checkpointCount - 1);
+            long sum = checkpoints[k];
+            for (int i = k * CHECKPOINT_EVERY; i < lo; i++) {
+                sum += deltas[i];
+            }
+            return sum;
+        }
+    }
+
+    private final Map<String, Track> tracks = new HashMap<>();
+
+    void add(Transaction t) {
+        long time = epochNanos(t.getTime());
+        if (t.getFrom() != null) {
+            track(t.getFrom()).add(time, -t.getAmount());
+        }
+        if (t.getTo() != null) {
+            track(t.getTo()).add(time, t.getAmount());
+        }
+    }
+
+    void add(InterestBatch batch) {
+        long time = epochNanos(batch.getTime());
+        for (int i = 0; i < batch.size(); i++) {
+            track(batch.getUser(i)).add(time, batch.getAmount(i));
+        }
+    }
+
+    void clear() {
+        tracks.clear();
+    }
+
+    private Track track(String user) {
+        return tracks.computeIfAbsent(user, u -> new Track());
+    }
+
+    // Net change to user's balance from ledger rows at or before time
+    long changeUntil(String user, Instant time) {
+        Track track = tracks.get(user);
+        return track == null ? 0 : track.changeUntil(epochNanos(time));
+    }
+
+    // Ledger entries held for user
+    int entries(String user) {
+        Track track = tracks.get(user);
+        return track == null ? 0 : track.size;
+    }
+
+    private static long epochNanos(Instant time) {
+        return time.getEpochSecond() * 1_000_000_000L + time.getNano();
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Accounts ordered by balance, for top-N, threshold and percentile queries
+// without copying and sorting allAccounts().
+//
+// AccountStore adds each account it holds. From then on the account moves
+// its own entry whenever its balance changes, inside its lock, so the
+// moves for one account never interleave. The set is a lock-free skip
+// list, so updates for different accounts don't contend on anything.
+//
+// A move is a remove then an add. A reader running at the same time may
+// miss an account that is mid-move, but never sees it twice.
+public class BalanceIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // One account at one balance, ordered by balance then username
+    public static final class Entry implements Comparable<Entry>, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long balance;
+        private final String user;
+
+        private Entry(long balance, String user) {
+            this.balance = balance;
+            this.user = user;
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Long.compare(balance, o.balance);
+            return c != 0 ? c : user.compareTo(o.user);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry e && balance == e.balance && user.equals(e.user);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(balance) * 31 + user.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return user + " " + balance;
+        }
+    }
+
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+    // the skip list's size() walks the whole list
+    private final AtomicInteger count = new AtomicInteger();
+
+    // Starts tracking account, which then keeps its entry current
+    void add(Account account) {
+        synchronized (account.getLock()) {
+            account.setBalanceIndex(this);
+            if (entries.add(new Entry(account.getBalance(), account.getUsername()))) {
+                count.incrementAndGet();
+            }
+        }
+    }
+
+    // Called by Account with its lock held
+    void moved(String user, long oldBalance, long newBalance) {
+        if (oldBalance == newBalance) return;
+        entries.remove(new Entry(oldBalance, user));
+        entries.add(new Entry(newBalance, user));
+    }
+
+    // Stops tracking account
+    void remove(Account account) {
+        synchronized (account.getLock()) {
+            account.setBalanceIndex(null);
+            if (entries.remove(new Entry(account.getBalance(), account.getUsername()))) {
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    // The n largest balances, largest first
+    public List<Entry> top(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n must be >= 0");
+        }
+        List<Entry> result = new ArrayList<>(Math.min(n, size()));
+        Iterator<Entry> it = entries.descendingIterator();
+        while (result.size() < n && it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    // Accounts with at least min, largest first
+    public List<Entry> atLeast(long min) {
+        List<Entry> result = new ArrayList<>();
+        // "" sorts before every username
+        for (Entry e : entries.tailSet(new Entry(min, ""), true).descendingSet()) {
+            result.add(e);
+        }
+        return result;
+    }
+
+    // The balance at percentile p (0-100) by the nearest-rank method, or 0
+    // with no accounts. The skip list has no ranks, so this walks from
+    // whichever end is nearer, O(n) at the median.
+    public long percentile(double p) {
+        if (!(p >= 0 && p <= 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        int n = size();
+        if (n == 0) return 0;
+        int rank = Math.max(1, (int) Math.ceil(p / 100 * n)); // 1-based from the smallest
+        Iterator<Entry> it;
+        int steps;
+        if (rank <= n / 2) {
+            it = entries.iterator();
+            steps = rank;
+        } else {
+            it = entries.descendingIterator();
+            steps = n - rank + 1;
+        }
+        long balance = 0;
+        for (int i = 0; i < steps && it.hasNext(); i++) {
+            balance = it.next().getBalance();
+        }
+        return balance;
+    }
+}
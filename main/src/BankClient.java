@@ -0,0 +1,417 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Asynchronous client library over BinaryProtocol, for services that call the
+// bank from many threads.
+//
+// Each account gets one persistent authenticated connection (the server only
+// allows one login per user), kept in a pool shared by all caller threads.
+// Calls are pipelined: a request is written as soon as it is made and its
+// future is completed when the matching response arrives, so one socket can
+// carry many calls in flight. Concurrent callers' frames are written out
+// together by SessionIO. If a connection drops, its pending calls fail and the
+// next call for that account reconnects with the stored credentials.
+//
+// No method blocks: connecting and the protocol handshake run on a connector
+// thread, and calls made while an account's connection is still opening are
+// sent on it once it is ready, behind the login. A call's frame is queued on
+// its connection and written by a connector thread, so a server that stops
+// reading never holds up the caller.
+//
+// Futures and subscriptions are completed on the connection's reader thread;
+// use the *Async variants of CompletableFuture for slow follow-up work.
+public class BankClient implements Closeable {
+
+    private final String host;
+    private final int port;
+
+    private final Map<String, String> credentials = new ConcurrentHashMap<>();
+    private final Map<String, Connection> pool = new ConcurrentHashMap<>();
+    // connections still connecting, completed once installed in pool with the login sent
+    private final Map<String, CompletableFuture<Connection>> opening = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Connection>> reconnecting = new ConcurrentHashMap<>();
+    private final Map<String, CopyOnWriteArrayList<BankService.BalanceListener>> subscribers =
+            new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor connector;
+    private volatile boolean closed = false;
+
+    public BankClient(String host, int port) {
+        if (host == null || host.isBlank()) {
+            throw new IllegalArgumentException("Host must not be empty");
+        }
+        this.host = host;
+        this.port = port;
+        AtomicInteger ids = new AtomicInteger();
+        this.connector = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "bank-client-connect-" + ids.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    // Authenticates a pooled connection for username. Completes with the balance.
+    public CompletableFuture<Long> login(String username, String password) {
+        return authenticate(username, password, BinaryProtocol.OP_LOGIN);
+    }
+
+    // Creates the account and keeps its connection in the pool. Completes with the balance.
+    public CompletableFuture<Long> signup(String username, String password) {
+        return authenticate(username, password, BinaryProtocol.OP_SIGNUP);
+    }
+
+    public CompletableFuture<Long> balance(String username) {
+        return call(username, BinaryProtocol.OP_BALANCE, buf -> { }, ByteBuffer::getLong);
+    }
+
+    public CompletableFuture<Long> deposit(String username, long amount) {
+        return call(username, BinaryProtocol.OP_DEPOSIT, buf -> buf.putLong(amount), ByteBuffer::getLong);
+    }
+
+    public CompletableFuture<Long> withdraw(String username, long amount) {
+        return call(username, BinaryProtocol.OP_WITHDRAW, buf -> buf.putLong(amount), ByteBuffer::getLong);
+    }
+
+    public CompletableFuture<Boolean> transfer(String username, String target, long amount) {
+        return call(username, BinaryProtocol.OP_TRANSFER, buf -> {
+            BinaryProtocol.putId(buf, target);
+            buf.putLong(amount);
+        }, buf -> buf.getLong() != 0);
+    }
+
+    public CompletableFuture<List<Transaction>> history(String username) {
+        return call(username, BinaryProtocol.OP_HISTORY, buf -> { }, buf -> {
+            buf.getInt(); // total on the server
+            int count = buf.getInt();
+            List<Transaction> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(BinaryProtocol.getTransaction(buf));
+            }
+            return result;
+        });
+    }
+
+    // Logs out and closes the account's connection
+    public CompletableFuture<Void> logout(String username) {
+        credentials.remove(username);
+        Connection conn = pool.remove(username);
+        if (conn == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return conn.<Void>send(BinaryProtocol.OP_LOGOUT, buf -> { }, buf -> null)
+                .whenComplete((v, e) -> conn.close());
+    }
+
+    // [NOTIFICATION] pushes for username are delivered to listener
+    public void subscribe(String username, BankService.BalanceListener listener) {
+        if (username == null || listener == null) return;
+        subscribers.computeIfAbsent(username, u -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public void unsubscribe(String username, BankService.BalanceListener listener) {
+        CopyOnWriteArrayList<BankService.BalanceListener> list = subscribers.get(username);
+        if (list != null) {
+            list.remove(listener);
+        }
+    }
+
+    public int connectionCount() {
+        return pool.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connector.shutdown();
+        for (Connection conn : pool.values()) {
+            conn.close();
+        }
+        pool.clear();
+    }
+
+    // pooling
+
+    private CompletableFuture<Long> authenticate(String username, String password, byte op) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("BankClient is closed"));
+        }
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        CompletableFuture<Connection> opened;
+        try {
+            opened = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new Connection(username);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, connector).thenApply(conn -> {
+                Connection previous = pool.put(username, conn);
+                if (previous != null) {
+                    previous.close();
+                }
+                // checked after the put, so close() either sees conn or we see closed
+                if (closed) {
+                    pool.remove(username, conn);
+                    conn.close();
+                    throw new IllegalStateException("BankClient is closed");
+                }
+                // sent before opened completes, so calls waiting on it queue behind the login
+                CompletableFuture<Long> auth;
+                try {
+                    auth = conn.send(op, buf -> {
+                        BinaryProtocol.putId(buf, username);
+                        BinaryProtocol.putString(buf, password);
+                    }, ByteBuffer::getLong);
+                } catch (RuntimeException e) {
+                    auth = CompletableFuture.failedFuture(e); // e.g. a username too long for the protocol
+                }
+                auth.whenComplete((balance, error) -> {
+                    if (error == null) {
+                        credentials.put(username, password);
+                        result.complete(balance);
+                    } else {
+                        pool.remove(username, conn);
+                        conn.close();
+                        result.completeExceptionally(error);
+                    }
+                });
+                return conn;
+            });
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new IllegalStateException("BankClient is closed"));
+        }
+        opening.put(username, opened);
+        opened.whenComplete((conn, error) -> {
+            opening.remove(username, opened);
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+        return result;
+    }
+
+    private <T> CompletableFuture<T> call(String username, byte op, RequestWriter writer,
+                                          Function<ByteBuffer, T> decoder) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("BankClient is closed"));
+        }
+        Connection conn = pool.get(username);
+        if (conn != null && !conn.isBroken()) {
+            return conn.send(op, writer, decoder);
+        }
+        CompletableFuture<Connection> pending = opening.get(username);
+        if (pending != null) {
+            return pending.thenCompose(c -> c.send(op, writer, decoder));
+        }
+        return reconnect(username).thenCompose(c -> c.send(op, writer, decoder));
+    }
+
+    // One reconnect per account at a time, however many callers notice the
+    // broken connection. login() only starts the connect, so nothing blocks
+    // inside computeIfAbsent.
+    private CompletableFuture<Connection> reconnect(String username) {
+        String password = credentials.get(username);
+        if (password == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not logged in as " + username));
+        }
+        CompletableFuture<Connection> attempt = reconnecting.computeIfAbsent(username,
+                u -> login(u, password).thenApply(balance -> {
+                    Connection c = pool.get(u);
+                    if (c == null) {
+                        throw new IllegalStateException("Connection for " + u + " was closed");
+                    }
+                    return c;
+                }));
+        attempt.whenComplete((c, e) -> reconnecting.remove(username, attempt));
+        return attempt;
+    }
+
+    private void dispatchNotification(String username, long balance, String message) {
+        CopyOnWriteArrayList<BankService.BalanceListener> list = subscribers.get(username);
+        if (list == null) return;
+        for (BankService.BalanceListener l : list) {
+            try {
+                l.onBalanceChanged(username, balance, message);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private interface RequestWriter {
+        void write(ByteBuffer buf);
+    }
+
+    // A call waiting for its response, in the order the requests were written
+    private static final class PendingCall<T> {
+        final byte op;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Function<ByteBuffer, T> decoder;
+
+        PendingCall(byte op, Function<ByteBuffer, T> decoder) {
+            this.op = op;
+            this.decoder = decoder;
+        }
+
+        void complete(ByteBuffer body) {
+            try {
+                future.complete(decoder.apply(body));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    // One pipelined socket for one account, connected by the constructor
+    private final class Connection {
+
+        private final String username;
+        private final Socket socket;
+        // separate halves, so the reader never waits behind a stalled write
+        private final SessionIO in;
+        private final SessionIO out;
+        private final ArrayDeque<PendingCall<?>> inFlight = new ArrayDeque<>(); // guarded by this
+        private final ThreadLocal<ByteBuffer> requestBuffers =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocate(512));
+        private volatile boolean broken = false;
+
+        Connection(String username) throws IOException {
+            this.username = username;
+            this.socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            this.in = new SessionIO(socket.getInputStream(), OutputStream.nullOutputStream());
+            this.out = new SessionIO(InputStream.nullInputStream(), socket.getOutputStream(),
+                    SessionIO.DEFAULT_MAX_PENDING_BYTES, connector);
+            out.write(BinaryProtocol.MAGIC);
+            out.flush();
+            if (in.read() != (BinaryProtocol.MAGIC & 0xFF)) {
+                socket.close();
+                throw new IOException("Server did not accept the binary protocol");
+            }
+            Thread reader = new Thread(this::readLoop, "bank-client-" + username);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        boolean isBroken() {
+            return broken;
+        }
+
+        <T> CompletableFuture<T> send(byte op, RequestWriter writer, Function<ByteBuffer, T> decoder) {
+            ByteBuffer buf = requestBuffers.get();
+            BinaryProtocol.beginRequest(buf, op);
+            writer.write(buf);
+            BinaryProtocol.finish(buf);
+
+            PendingCall<T> call = new PendingCall<>(op, decoder);
+            // queue order must match write order, the server answers in sequence
+            synchronized (this) {
+                if (broken) {
+                    call.future.completeExceptionally(new IOException("Connection to server lost"));
+                    return call.future;
+                }
+                boolean queued;
+                try {
+                    queued = out.offer(buf.array(), 0, buf.limit());
+                } catch (RejectedExecutionException e) {
+                    queued = false; // the client is closing
+                }
+                if (!queued) {
+                    call.future.completeExceptionally(
+                            new IllegalStateException("Too many requests waiting to be sent"));
+                    return call.future;
+                }
+                inFlight.add(call);
+            }
+            return call.future;
+        }
+
+        private void readLoop() {
+            ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > BinaryProtocol.MAX_FRAME) {
+                        throw new IOException("Bad frame length " + length);
+                    }
+                    in.readFully(frame.array(), 0, length);
+                    frame.clear().limit(length);
+
+                    byte status = frame.get();
+                    byte op = frame.get();
+                    if (status == BinaryProtocol.STATUS_NOTIFY) {
+                        long balance = frame.getLong();
+                        dispatchNotification(username, balance, BinaryProtocol.getString(frame));
+                        continue;
+                    }
+
+                    // the call stays queued until its frame is decoded, so a bad
+                    // frame fails it along with the rest in fail()
+                    PendingCall<?> call;
+                    synchronized (this) {
+                        call = inFlight.peek();
+                    }
+                    if (call == null || call.op != op) {
+                        throw new IOException("Unexpected response for opcode " + op);
+                    }
+                    String error = status == BinaryProtocol.STATUS_ERROR ? BinaryProtocol.getString(frame) : null;
+                    synchronized (this) {
+                        inFlight.poll();
+                    }
+                    if (error != null) {
+                        call.future.completeExceptionally(new IllegalStateException(error));
+                    } else {
+                        call.complete(frame);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                // a frame we can't decode, e.g. cut short or a bad string
+                fail(new IOException("Malformed frame from server", e));
+            }
+        }
+
+        private void fail(IOException cause) {
+            List<PendingCall<?>> orphaned;
+            synchronized (this) {
+                if (broken && inFlight.isEmpty()) return;
+                broken = true;
+                orphaned = new ArrayList<>(inFlight);
+                inFlight.clear();
+            }
+            for (PendingCall<?> call : orphaned) {
+                call.future.completeExceptionally(cause);
+            }
+            pool.remove(username, this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() {
+            fail(new IOException("Connection closed"));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Java Flight Recorder events for the banking hot paths.
+//
+// Record with e.g.
+//   java -XX:StartFlightRecording=filename=bank.jfr,settings=profile Server
+// and open the file in JDK Mission Control, the events are under "Bank".
+// While no recording is running, begin()/shouldCommit() are constant false
+// checks and the JIT removes the event objects, so the calls cost nothing.
+//
+// lockWait is how long the operation waited for Account locks, which lines
+// lock contention up against the operation's total duration.
+public final class BankEvents {
+
+    private BankEvents() {
+    }
+
+    @Name("bank.Deposit")
+    @Label("Deposit")
+    @Category("Bank")
+    @StackTrace(false)
+    public static final class Deposit extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Amount")
+        long amount;
+
+        @Label("Lock Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long lockWait;
+
+        @Label("Succeeded")
+        boolean success;
+    }
+
+    @Name("bank.Withdrawal")
+    @Label("Withdrawal")
+    @Category("Bank")
+    @StackTrace(false)
+    public static final class Withdrawal extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Amount")
+        long amount;
+
+        @Label("Lock Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long lockWait;
+
+        @Label("Succeeded")
+        @Description("False when refused, e.g. for insufficient funds")
+        boolean success;
+    }
+
+    @Name("bank.Transfer")
+    @Label("Transfer")
+    @Category("Bank")
+    @StackTrace(false)
+    public static final class Transfer extends Event {
+        @Label("From")
+        String fromUser;
+
+        @Label("To")
+        String toUser;
+
+        @Label("Amount")
+        long amount;
+
+        @Label("Lock Wait")
+        @Description("Time to take both account locks")
+        @Timespan(Timespan.NANOSECONDS)
+        long lockWait;
+
+        @Label("Succeeded")
+        boolean success;
+    }
+
+    @Name("bank.InterestRun")
+    @Label("Interest Run")
+    @Category("Bank")
+    @StackTrace(false)
+    public static final class InterestRun extends Event {
+        @Label("Rate")
+        @Description("0 for a plan run, whose rates come from its tiers")
+        double rate;
+
+        @Label("Plan")
+        String plan;
+
+        @Label("Accounts")
+        int accounts;
+
+        @Label("Credited")
+        int credited;
+    }
+
+    @Name("bank.LedgerAppend")
+    @Label("Ledger Append")
+    @Category({"Bank", "Ledger"})
+    @StackTrace(false)
+    public static final class LedgerAppend extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Rows")
+        @Description("1 for a transaction, the number of credits for an interest batch")
+        int rows;
+
+        @Label("Lock Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long lockWait;
+    }
+
+    @Name("bank.LedgerPersist")
+    @Label("Ledger Save/Load")
+    @Category({"Bank", "Ledger"})
+    public static final class LedgerPersist extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Path")
+        String path;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("bank.Login")
+    @Label("Session Login")
+    @Category({"Bank", "Session"})
+    @StackTrace(false)
+    public static final class Login extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("New Account")
+        boolean signup;
+
+        @Label("Succeeded")
+        boolean success;
+    }
+
+    @Name("bank.Logout")
+    @Label("Session Logout")
+    @Category({"Bank", "Session"})
+    @StackTrace(false)
+    public static final class Logout extends Event {
+        @Label("User")
+        String user;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Connected For")
+        @Timespan(Timespan.MILLISECONDS)
+        long connectedFor;
+    }
+}
@@ -1,12 +1,19 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongUnaryOperator;
 import java.time.Instant;
 
 public class BankService {
 
+    // Accounts credited per write scope in an interest run, see creditInterest
+    static final int INTEREST_SCOPE_ACCOUNTS = 1024;
+
     private final AccountStore accountStore;
     private final Ledger ledger;
 
@@ -19,128 +26,322 @@ public class BankService {
     private final Map<String, CopyOnWriteArrayList<BalanceListener>> listeners =
             new ConcurrentHashMap<>();
 
+    // Runs password hashing for the async methods, null runs it on the caller
+    private volatile CredentialVerifier credentialVerifier;
+
+    // Operations timed into Metrics, each also counts its failures
+    private enum Op {
+        LOGIN("login"),
+        CREATE_ACCOUNT("create_account"),
+        BALANCE("balance"),
+        DEPOSIT("deposit"),
+        WITHDRAW("withdraw"),
+        TRANSFER("transfer"),
+        HISTORY("history");
+
+        final String label;
+
+        Op(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Metrics.Timer[] opTimes = new Metrics.Timer[Op.values().length];
+    private final Metrics.Counter[] opFailures = new Metrics.Counter[Op.values().length];
+    private final Metrics.Timer globalInterestTime;
+    private final Metrics.Timer planInterestTime;
+
     public BankService(AccountStore accountStore, Ledger ledger) {
-        if (accountStore == null || ledger == null) {
-            throw new IllegalArgumentException("AccountStore and Ledger must not be null");
+        this(accountStore, ledger, new Metrics());
+    }
+
+    public BankService(AccountStore accountStore, Ledger ledger, Metrics metrics) {
+        if (accountStore == null || ledger == null || metrics == null) {
+            throw new IllegalArgumentException("AccountStore, Ledger and Metrics must not be null");
         }
         this.accountStore = accountStore;
         this.ledger = ledger;
+        for (Op op : Op.values()) {
+            opTimes[op.ordinal()] = metrics.timer("bank_operation_seconds",
+                    "Time spent in BankService operations", "op", op.label);
+            opFailures[op.ordinal()] = metrics.counter("bank_operation_failures_total",
+                    "BankService operations that were refused or threw", "op", op.label);
+        }
+        globalInterestTime = metrics.timer("interest_run_seconds", "Duration of interest runs", "kind", "global");
+        planInterestTime = metrics.timer("interest_run_seconds", "Duration of interest runs", "kind", "plan");
+    }
+
+    private void recordOp(Op op, long startNanos, boolean ok) {
+        opTimes[op.ordinal()].record(System.nanoTime() - startNanos);
+        if (!ok) {
+            opFailures[op.ordinal()].increment();
+        }
     }
 
     // Authentication and account management
 
     public Account login(String username, String password) {
-        if (username == null || password == null) {
-            return null;
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            if (username == null || password == null) {
+                return null;
+            }
+            Account acc = accountStore.getAccount(username);
+            if (acc == null) return null;
+            if (!acc.checkPassword(password)) return null;
+            // the store's cost was changed since this hash was made
+            int cost = accountStore.getHashIterations();
+            if (acc.getHashIterations() != cost) {
+                acc.setPassword(password, cost);
+            }
+            ok = true;
+            return acc;
+        } finally {
+            recordOp(Op.LOGIN, start, ok);
         }
-        Account acc = accountStore.getAccount(username);
-        if (acc == null) return null;
-        return acc.checkPassword(password) ? acc : null;
     }
 
     // if username doesn't exist, sets up new account with balance
     public Account createAccount(String username, String password) {
-        if (username == null || username.isBlank()) return null;
-        if (password == null || password.isBlank()) return null;
-        return accountStore.createAccount(username, password);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            if (username == null || username.isBlank()) return null;
+            if (password == null || password.isBlank()) return null;
+            Account acc = accountStore.createAccount(username, password);
+            ok = acc != null;
+            return acc;
+        } finally {
+            recordOp(Op.CREATE_ACCOUNT, start, ok);
+        }
+    }
+
+    public void setCredentialVerifier(CredentialVerifier credentialVerifier) {
+        this.credentialVerifier = credentialVerifier;
+    }
+
+    // login() on the credential verifier. Fails with RejectedExecutionException
+    // if the verifier is overloaded.
+    public CompletableFuture<Account> loginAsync(String username, String password) {
+        CredentialVerifier verifier = credentialVerifier;
+        if (verifier == null) {
+            return CompletableFuture.completedFuture(login(username, password));
+        }
+        return verifier.submit(() -> login(username, password));
+    }
+
+    // createAccount() on the credential verifier
+    public CompletableFuture<Account> createAccountAsync(String username, String password) {
+        CredentialVerifier verifier = credentialVerifier;
+        if (verifier == null) {
+            return CompletableFuture.completedFuture(createAccount(username, password));
+        }
+        return verifier.submit(() -> createAccount(username, password));
     }
 
     // account operations
     public long getBalance(String username) {
-        Account acc = accountStore.getAccount(username);
-        if (acc == null) {
-            throw new IllegalArgumentException("No such account: " + username);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Account acc = accountStore.getAccount(username);
+            if (acc == null) {
+                throw new IllegalArgumentException("No such account: " + username);
+            }
+            RequestTracer.stage("lookup");
+            long balance = acc.getBalance();
+            ok = true;
+            return balance;
+        } finally {
+            recordOp(Op.BALANCE, start, ok);
         }
-        return acc.getBalance();
     }
 
     // deposit, return new balance
     public long deposit(String username, long amount) {
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Deposit amount must be > 0");
-        }
-        Account acc = accountStore.getAccount(username);
-        if (acc == null) {
-            throw new IllegalArgumentException("No such account: " + username);
-        }
+        long start = System.nanoTime();
+        boolean ok = false;
+        BankEvents.Deposit event = new BankEvents.Deposit();
+        event.begin();
+        try {
+            if (amount <= 0) {
+                throw new IllegalArgumentException("Deposit amount must be > 0");
+            }
+            Account acc = accountStore.getAccount(username);
+            if (acc == null) {
+                throw new IllegalArgumentException("No such account: " + username);
+            }
+            RequestTracer.stage("lookup");
 
-        acc.deposit(amount);
-        ledger.append(Transaction.deposit(username, amount));
-        long newBalance = acc.getBalance();
-        notifyListeners(username, newBalance,
-                "Deposit of " + amount + " applied. New balance: " + newBalance);
-        return newBalance;
+            // one write scope for the balance and its ledger row, see Epochs
+            Epochs.enterWrite();
+            try {
+                if (event.isEnabled()) {
+                    long waitStart = System.nanoTime();
+                    synchronized (acc.getLock()) {
+                        event.lockWait = System.nanoTime() - waitStart;
+                        acc.deposit(amount);
+                    }
+                } else {
+                    acc.deposit(amount);
+                }
+                RequestTracer.stage("update");
+                ledger.append(Transaction.deposit(username, amount));
+            } finally {
+                Epochs.exitWrite();
+            }
+            RequestTracer.stage("ledger");
+            long newBalance = acc.getBalance();
+            notifyListeners(username, newBalance,
+                    "Deposit of " + amount + " applied. New balance: " + newBalance);
+            RequestTracer.stage("notify");
+            ok = true;
+            return newBalance;
+        } finally {
+            recordOp(Op.DEPOSIT, start, ok);
+            if (event.shouldCommit()) {
+                event.user = username;
+                event.amount = amount;
+                event.success = ok;
+                event.commit();
+            }
+        }
     }
 
     // withdraw, return balance if successful, throw exception if not
     public long withdraw(String username, long amount) {
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Withdrawal amount must be > 0");
-        }
-        Account acc = accountStore.getAccount(username);
-        if (acc == null) {
-            throw new IllegalArgumentException("No such account: " + username);
-        }
+        long start = System.nanoTime();
+        boolean ok = false;
+        BankEvents.Withdrawal event = new BankEvents.Withdrawal();
+        event.begin();
+        try {
+            if (amount <= 0) {
+                throw new IllegalArgumentException("Withdrawal amount must be > 0");
+            }
+            Account acc = accountStore.getAccount(username);
+            if (acc == null) {
+                throw new IllegalArgumentException("No such account: " + username);
+            }
+            RequestTracer.stage("lookup");
 
-        boolean ok = acc.withdraw(amount);
-        if (!ok) {
-            // not allowed to go below zero
-            throw new IllegalStateException("Insufficient funds for withdrawal");
-        }
+            Epochs.enterWrite();
+            try {
+                boolean withdrawn;
+                if (event.isEnabled()) {
+                    long waitStart = System.nanoTime();
+                    synchronized (acc.getLock()) {
+                        event.lockWait = System.nanoTime() - waitStart;
+                        withdrawn = acc.withdraw(amount);
+                    }
+                } else {
+                    withdrawn = acc.withdraw(amount);
+                }
+                RequestTracer.stage("update");
+                if (!withdrawn) {
+                    // not allowed to go below zero
+                    throw new IllegalStateException("Insufficient funds for withdrawal");
+                }
 
-        ledger.append(Transaction.withdrawal(username, amount));
-        long newBalance = acc.getBalance();
-        notifyListeners(username, newBalance,
-                "Withdrawal of " + amount + " applied. New balance: " + newBalance);
-        return newBalance;
+                ledger.append(Transaction.withdrawal(username, amount));
+            } finally {
+                Epochs.exitWrite();
+            }
+            RequestTracer.stage("ledger");
+            long newBalance = acc.getBalance();
+            notifyListeners(username, newBalance,
+                    "Withdrawal of " + amount + " applied. New balance: " + newBalance);
+            RequestTracer.stage("notify");
+            ok = true;
+            return newBalance;
+        } finally {
+            recordOp(Op.WITHDRAW, start, ok);
+            if (event.shouldCommit()) {
+                event.user = username;
+                event.amount = amount;
+                event.success = ok;
+                event.commit();
+            }
+        }
     }
 
     //transfer funds returns true/false, avoids deadlocks by getting account locks, ordered by account
     public boolean transfer(String fromUser, String toUser, long amount) {
-        if (fromUser == null || toUser == null) return false;
-        if (fromUser.equals(toUser)) return false;
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Transfer amount must be > 0");
-        }
-
-        Account from = accountStore.getAccount(fromUser);
-        Account to = accountStore.getAccount(toUser);
-        if (from == null || to == null) {
-            return false; // missing accounts
-        }
-
-        // stable lock order based on username to avoid deadlocks
-        Account first, second;
-        if (fromUser.compareTo(toUser) < 0) {
-            first = from;
-            second = to;
-        } else {
-            first = to;
-            second = from;
-        }
-
-        synchronized (first.getLock()) {
-            synchronized (second.getLock()) {
-                // both accounts locked
-                // Withdraw from the from account if possible
-                if (!from.withdraw(amount)) {
-                    return false; // to show insufficient funds
-                }
-                to.deposit(amount);
+        long start = System.nanoTime();
+        boolean ok = false;
+        BankEvents.Transfer event = new BankEvents.Transfer();
+        event.begin();
+        try {
+            if (fromUser == null || toUser == null) return false;
+            if (fromUser.equals(toUser)) return false;
+            if (amount <= 0) {
+                throw new IllegalArgumentException("Transfer amount must be > 0");
             }
-        }
 
-        // Record transaction and notify listeners after releasing locks.
-        ledger.append(Transaction.transfer(fromUser, toUser, amount));
+            Account from = accountStore.getAccount(fromUser);
+            Account to = accountStore.getAccount(toUser);
+            if (from == null || to == null) {
+                return false; // missing accounts
+            }
+            RequestTracer.stage("lookup");
+
+            // stable lock order based on username to avoid deadlocks
+            Account first, second;
+            if (fromUser.compareTo(toUser) < 0) {
+                first = from;
+                second = to;
+            } else {
+                first = to;
+                second = from;
+            }
 
-        long fromBal = from.getBalance();
-        long toBal = to.getBalance();
-        notifyListeners(fromUser, fromBal,
-                "Transfer of " + amount + " sent to " + toUser + ". New balance: " + fromBal);
-        notifyListeners(toUser, toBal,
-                "Transfer of " + amount + " received from " + fromUser + ". New balance: " + toBal);
+            // both balances take the scope's epoch with both locks held
+            Epochs.enterWrite();
+            try {
+                long waitStart = event.isEnabled() ? System.nanoTime() : 0;
+                synchronized (first.getLock()) {
+                    synchronized (second.getLock()) {
+                        if (waitStart != 0) {
+                            event.lockWait = System.nanoTime() - waitStart;
+                        }
+                        RequestTracer.stage("lock");
+                        // both accounts locked
+                        // Withdraw from the from account if possible
+                        if (!from.withdraw(amount)) {
+                            return false; // to show insufficient funds
+                        }
+                        to.deposit(amount);
+                    }
+                }
+                RequestTracer.stage("update");
 
-        return true;
+                // Record transaction and notify listeners after releasing locks.
+                ledger.append(Transaction.transfer(fromUser, toUser, amount));
+            } finally {
+                Epochs.exitWrite();
+            }
+            RequestTracer.stage("ledger");
+
+            long fromBal = from.getBalance();
+            long toBal = to.getBalance();
+            notifyListeners(fromUser, fromBal,
+                    "Transfer of " + amount + " sent to " + toUser + ". New balance: " + fromBal);
+            notifyListeners(toUser, toBal,
+                    "Transfer of " + amount + " received from " + fromUser + ". New balance: " + toBal);
+            RequestTracer.stage("notify");
+
+            ok = true;
+            return true;
+        } finally {
+            recordOp(Op.TRANSFER, start, ok);
+            if (event.shouldCommit()) {
+                event.fromUser = fromUser;
+                event.toUser = toUser;
+                event.amount = amount;
+                event.success = ok;
+                event.commit();
+            }
+        }
     }
 
     // Interest operations used by the InterestThread
@@ -154,33 +355,208 @@ public class BankService {
             throw new IllegalArgumentException("Interest rate must be > 0");
         }
 
-        Collection<Account> all = accountStore.allAccounts();
-        for (Account acc : all) {
-            String user = acc.getUsername();
-            long balance = acc.getBalance();
-            if (balance <= 0) continue;
+        List<Account> due = new ArrayList<>();
+        for (Account acc : accountStore.allAccounts()) {
+            if (acc.getInterestPlan() == null) { // InterestScheduler handles the rest
+                due.add(acc);
+            }
+        }
+        long start = System.nanoTime();
+        BankEvents.InterestRun event = new BankEvents.InterestRun();
+        event.begin();
+        long[] balances = snapshotBalances(due);
+        long[] interest = new long[balances.length];
+        InterestKernel.compute(balances, rate, interest, balances.length);
+        int credited = creditInterest(due, balances, interest,
+                b -> InterestKernel.interestOn(b, rate), rate, null);
+        globalInterestTime.record(System.nanoTime() - start);
+        commitInterestRun(event, rate, null, due.size(), credited);
+    }
 
-            long interest = Math.round(balance * rate);
-            if (interest <= 0) continue;
+    // Applies plan to the given accounts, each at its balance tier's rate.
+    // Returns how many were credited.
+    public int applyInterest(InterestPlan plan, Collection<Account> accounts) {
+        if (plan == null || accounts == null) {
+            throw new IllegalArgumentException("Plan and accounts must not be null");
+        }
+        long start = System.nanoTime();
+        BankEvents.InterestRun event = new BankEvents.InterestRun();
+        event.begin();
+        List<Account> due = new ArrayList<>(accounts);
+        long[] balances = snapshotBalances(due);
+        double[] rates = new double[balances.length];
+        for (int i = 0; i < balances.length; i++) {
+            rates[i] = plan.rateFor(balances[i]);
+        }
+        long[] interest = new long[balances.length];
+        InterestKernel.compute(balances, rates, interest, balances.length);
+        int credited = creditInterest(due, balances, interest,
+                b -> InterestKernel.interestOn(b, plan.rateFor(b)), 0, plan.getName());
+        planInterestTime.record(System.nanoTime() - start);
+        commitInterestRun(event, 0, plan.getName(), due.size(), credited);
+        return credited;
+    }
 
-            acc.deposit(interest);
-            ledger.append(Transaction.interest(user, interest));
-            long newBalance = acc.getBalance();
-            notifyListeners(user, newBalance,
-                    "Interest of " + interest + " applied. New balance: " + newBalance);
+    private static void commitInterestRun(BankEvents.InterestRun event, double rate, String plan,
+                                          int accounts, int credited) {
+        if (event.shouldCommit()) {
+            event.rate = rate;
+            event.plan = plan;
+            event.accounts = accounts;
+            event.credited = credited;
+            event.commit();
         }
     }
 
+    private static long[] snapshotBalances(List<Account> accounts) {
+        long[] balances = new long[accounts.size()];
+        for (int i = 0; i < balances.length; i++) {
+            balances[i] = accounts.get(i).getBalance();
+        }
+        return balances;
+    }
+
+    // Credits each account interest on its balance at the moment it is
+    // credited, under its lock, then tells the listeners. interest[i] was
+    // computed in bulk from balances[i] and is used when the account still
+    // holds that balance; if it has moved since (a withdrawal, or a new tier),
+    // interestOn recomputes it.
+    //
+    // The run is written INTEREST_SCOPE_ACCOUNTS accounts at a time, each
+    // slice one write scope with its own InterestBatch. A snapshot waits for
+    // at most one slice instead of the whole run, and may see the run half
+    // done, with the ledger matching the balances.
+    private int creditInterest(List<Account> accounts, long[] balances, long[] interest,
+                               LongUnaryOperator interestOn, double rate, String plan) {
+        int slice = Math.min(accounts.size(), INTEREST_SCOPE_ACCOUNTS);
+        Account[] credited = new Account[slice];
+        String[] users = new String[slice];
+        long[] amounts = new long[slice];
+        int total = 0;
+        for (int from = 0; from < accounts.size(); from += slice) {
+            int to = Math.min(from + slice, accounts.size());
+            int n = 0;
+            Epochs.enterWrite();
+            try {
+                for (int i = from; i < to; i++) {
+                    Account acc = accounts.get(i);
+                    long amount = acc.addInterest(balances[i], interest[i], interestOn);
+                    if (amount == 0) continue;
+                    credited[n] = acc;
+                    users[n] = acc.getUsername();
+                    amounts[n++] = amount;
+                }
+                if (n > 0) { // an empty batch would still count as an append
+                    ledger.appendInterestBatch(new InterestBatch(rate, plan,
+                            Arrays.copyOf(users, n), Arrays.copyOf(amounts, n)));
+                }
+            } finally {
+                Epochs.exitWrite();
+            }
+            for (int i = 0; i < n; i++) {
+                long newBalance = credited[i].getBalance();
+                notifyListeners(users[i], newBalance,
+                        "Interest of " + amounts[i] + " applied. New balance: " + newBalance);
+            }
+            total += n;
+        }
+        return total;
+    }
+
     // Ledger queries
 
     public List<Transaction> getUserTransactions(String username) {
-        return ledger.findUser(username);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            List<Transaction> history = ledger.findUser(username);
+            RequestTracer.stage("ledger");
+            ok = true;
+            return history;
+        } finally {
+            recordOp(Op.HISTORY, start, ok);
+        }
     }
 
     public List<Transaction> getAllTransactions() {
         return ledger.all();
     }
 
+    // Transactions with from <= time < to, only the ledger blocks in that window are scanned
+    public List<Transaction> getTransactionsBetween(Instant from, Instant to) {
+        return ledger.between(from, to);
+    }
+
+    public List<Transaction> getUserTransactionsBetween(String username, Instant from, Instant to) {
+        if (username == null) {
+            throw new IllegalArgumentException("Username must not be null");
+        }
+        return ledger.between(from, to, username);
+    }
+
+    // Reports from the ledger's rollups, cost grows with the buckets or users
+    // reported on rather than the ledger
+
+    public List<LedgerRollups.Totals> getHourlyTotals(Instant from, Instant to) {
+        return ledger.hourlyTotals(from, to);
+    }
+
+    public List<LedgerRollups.Totals> getDailyTotals(Instant from, Instant to) {
+        return ledger.dailyTotals(from, to);
+    }
+
+    public LedgerRollups.Flow getUserFlow(String username) {
+        if (username == null) {
+            throw new IllegalArgumentException("Username must not be null");
+        }
+        return ledger.flowOf(username);
+    }
+
+    public List<LedgerRollups.Flow> getUserFlows() {
+        return ledger.flows();
+    }
+
+    // Balance as of time: the starting credit plus the user's ledger rows at
+    // or before it. Account openings aren't in the ledger, so a time before
+    // the account existed gives the starting credit.
+    public long getBalanceAt(String username, Instant time) {
+        if (username == null || !accountStore.accountExists(username)) {
+            throw new IllegalArgumentException("No such account: " + username);
+        }
+        return AccountStore.INITIAL_BALANCE + ledger.balanceChangeUntil(username, time);
+    }
+
+    // A consistent view of every balance and the ledger at this moment,
+    // taken without stopping writers. Close it when done.
+    public BankSnapshot snapshot() {
+        Epochs epochs = accountStore.getEpochs();
+        synchronized (epochs) { // one pin at a time, with its ledger window
+            ledger.openSnapshotWindow();
+            long epoch;
+            try {
+                epoch = epochs.pin();
+            } catch (RuntimeException e) {
+                ledger.closeSnapshotWindow(0);
+                throw e;
+            }
+            return new BankSnapshot(epoch, accountStore, ledger, ledger.closeSnapshotWindow(epoch));
+        }
+    }
+
+    // Balance queries, from the store's index rather than a sorted copy
+
+    public List<BalanceIndex.Entry> getTopAccounts(int n) {
+        return accountStore.getBalanceIndex().top(n);
+    }
+
+    public List<BalanceIndex.Entry> getAccountsWithAtLeast(long min) {
+        return accountStore.getBalanceIndex().atLeast(min);
+    }
+
+    public long getBalancePercentile(double p) {
+        return accountStore.getBalanceIndex().percentile(p);
+    }
+
     // Listener registration – for online user notifications
 
     public void registerListener(String username, BalanceListener listener) {
@@ -0,0 +1,82 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Balances and ledger exactly as of one epoch, from BankService.snapshot().
+//
+// Writers carry on while a snapshot is open; accounts they change keep the
+// balance this snapshot reads until it is closed (see Epochs and Account).
+// Close it when done, e.g. with try-with-resources, so those old balances
+// can be dropped.
+public class BankSnapshot implements AutoCloseable {
+
+    private final long epoch;
+    private final AccountStore accountStore;
+    private final Ledger ledger;
+    private final Ledger.Mark mark;
+    private volatile boolean closed = false;
+
+    BankSnapshot(long epoch, AccountStore accountStore, Ledger ledger, Ledger.Mark mark) {
+        this.epoch = epoch;
+        this.accountStore = accountStore;
+        this.ledger = ledger;
+        this.mark = mark;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getBalance(String username) {
+        checkOpen();
+        Account acc = accountStore.getAccount(username);
+        if (acc == null || !acc.existedAt(epoch)) {
+            throw new IllegalArgumentException("No such account: " + username);
+        }
+        return acc.balanceAt(epoch);
+    }
+
+    // Every account that existed at the epoch, by username
+    public Map<String, Long> getBalances() {
+        checkOpen();
+        Map<String, Long> balances = new TreeMap<>();
+        for (Account acc : accountStore.allAccounts()) {
+            if (acc.existedAt(epoch)) {
+                balances.put(acc.getUsername(), acc.balanceAt(epoch));
+            }
+        }
+        return Collections.unmodifiableMap(balances);
+    }
+
+    // Money in the bank, which only deposits, withdrawals and interest change
+    public long getTotalBalance() {
+        long total = 0;
+        for (long balance : getBalances().values()) {
+            total += balance;
+        }
+        return total;
+    }
+
+    // The ledger as of the epoch, interest batches expanded like Ledger.all()
+    public List<Transaction> getTransactions() {
+        checkOpen();
+        return ledger.all(mark);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        accountStore.getEpochs().unpin(epoch);
+        accountStore.reclaimVersions();
+    }
+}
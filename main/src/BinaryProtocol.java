@@ -0,0 +1,162 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+// Compact binary framing for programmatic clients, used alongside the text menus.
+//
+// Every frame is [int length][payload], where length counts the payload bytes.
+// Request payload:  [byte opcode][fields...]
+// Response payload: [byte status][byte opcode][fields...]
+//
+// Amounts are 8 byte longs and account ids (usernames) are fixed width,
+// zero padded UTF-8, so the server can decode them without tokenizing.
+public final class BinaryProtocol {
+
+    // First byte a binary client sends. Never valid as the start of a text menu choice.
+    public static final byte MAGIC = (byte) 0xB7;
+
+    public static final int MAX_FRAME = 64 * 1024;
+    public static final int ID_WIDTH = 32;
+
+    // Request opcodes
+    public static final byte OP_LOGIN = 1;      // [id user][string password]
+    public static final byte OP_SIGNUP = 2;     // [id user][string password]
+    public static final byte OP_BALANCE = 3;    // -
+    public static final byte OP_DEPOSIT = 4;    // [long amount]
+    public static final byte OP_WITHDRAW = 5;   // [long amount]
+    public static final byte OP_TRANSFER = 6;   // [id target][long amount]
+    public static final byte OP_HISTORY = 7;    // -
+    public static final byte OP_LOGOUT = 8;     // -
+
+    // Response status codes
+    public static final byte STATUS_OK = 0;      // [long value] or history block
+    public static final byte STATUS_ERROR = 1;   // [string message]
+    public static final byte STATUS_NOTIFY = 2;  // pushed, opcode 0: [long balance][string message]
+
+    private BinaryProtocol() {
+    }
+
+    // Lower case name of an opcode, for logs and traces
+    public static String opName(byte op) {
+        switch (op) {
+            case OP_LOGIN: return "login";
+            case OP_SIGNUP: return "signup";
+            case OP_BALANCE: return "balance";
+            case OP_DEPOSIT: return "deposit";
+            case OP_WITHDRAW: return "withdraw";
+            case OP_TRANSFER: return "transfer";
+            case OP_HISTORY: return "history";
+            case OP_LOGOUT: return "logout";
+            default: return "op" + op;
+        }
+    }
+
+    // Frame helpers: begin reserves the length prefix, finish fills it in and flips for writing
+
+    public static void beginRequest(ByteBuffer buf, byte op) {
+        buf.clear();
+        buf.putInt(0);
+        buf.put(op);
+    }
+
+    public static void beginResponse(ByteBuffer buf, byte status, byte op) {
+        buf.clear();
+        buf.putInt(0);
+        buf.put(status);
+        buf.put(op);
+    }
+
+    public static void finish(ByteBuffer buf) {
+        buf.putInt(0, buf.position() - 4);
+        buf.flip();
+    }
+
+    // Field helpers
+
+    public static void putId(ByteBuffer buf, String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > ID_WIDTH) {
+            throw new IllegalArgumentException("Account id must be 1-" + ID_WIDTH + " bytes");
+        }
+        buf.put(bytes);
+        for (int i = bytes.length; i < ID_WIDTH; i++) {
+            buf.put((byte) 0);
+        }
+    }
+
+    // Reads a fixed width id, or null if the field is all zeros
+    public static String getId(ByteBuffer buf) {
+        // the absolute reads below only check the limit, not what is left
+        if (buf.remaining() < ID_WIDTH) {
+            throw new BufferUnderflowException();
+        }
+        int start = buf.position();
+        int len = 0;
+        while (len < ID_WIDTH && buf.get(start + len) != 0) {
+            len++;
+        }
+        buf.position(start + ID_WIDTH);
+        if (len == 0) return null;
+        return new String(buf.array(), buf.arrayOffset() + start, len, StandardCharsets.UTF_8);
+    }
+
+    public static void putOptionalId(ByteBuffer buf, String id) {
+        if (id == null) {
+            for (int i = 0; i < ID_WIDTH; i++) {
+                buf.put((byte) 0);
+            }
+        } else {
+            putId(buf, id);
+        }
+    }
+
+    public static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("String field too long");
+        }
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    public static String getString(ByteBuffer buf) {
+        int len = buf.getShort();
+        if (len < 0 || len > buf.remaining()) {
+            throw new IllegalArgumentException("Malformed string field");
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    // [string id][byte type][long epochMillis][id from][id to][long amount]
+    public static void putTransaction(ByteBuffer buf, Transaction t) {
+        putString(buf, t.getId());
+        buf.put((byte) t.getType().ordinal());
+        buf.putLong(t.getTime().toEpochMilli());
+        putOptionalId(buf, t.getFrom());
+        putOptionalId(buf, t.getTo());
+        buf.putLong(t.getAmount());
+    }
+
+    public static Transaction getTransaction(ByteBuffer buf) {
+        String id = getString(buf);
+        int ordinal = buf.get();
+        Transaction.Type[] types = Transaction.Type.values();
+        if (ordinal < 0 || ordinal >= types.length) {
+            throw new IllegalArgumentException("Malformed transaction type");
+        }
+        Transaction.Type type = types[ordinal];
+        Instant time = Instant.ofEpochMilli(buf.getLong());
+        String from = getId(buf);
+        String to = getId(buf);
+        long amount = buf.getLong();
+        return new Transaction(id, type, time, from, to, amount);
+    }
+
+    // Upper bound of the encoded size of one transaction, used to fill history frames
+    public static int transactionSize(Transaction t) {
+        return 2 + t.getId().length() * 3 + 1 + 8 + ID_WIDTH + ID_WIDTH + 8;
+    }
+}
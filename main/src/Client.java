@@ -1,12 +1,34 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 // connect to local host then connect to client and port
+//
+// Headless load mode:
+//   java Client --load [host] [port] [sessions=N] [rate=OPS_PER_SEC] [duration=SECONDS]
+//                      [mix=balance:40,deposit:20,withdraw:15,transfer:15,history:10] [prefix=load]
 public class Client {
 
     public static void main(String[] args) {
+        if (args.length >= 1 && args[0].equals("--load")) {
+            LoadGenerator.main(args);
+            return;
+        }
+
         String host = "localhost";
         int port = 5000;
 
@@ -25,16 +47,15 @@ public class Client {
         System.out.println("Connecting to " + host + ":" + port + " ...");
 
         try (Socket socket = new Socket(host, port);
-             Scanner serverIn = new Scanner(socket.getInputStream());
-             PrintWriter serverOut = new PrintWriter(socket.getOutputStream(), true)) {
+             SessionIO server = new SessionIO(socket.getInputStream(), socket.getOutputStream())) {
 
             System.out.println("input option");
 
             // Thread to read from server and print to console
             Thread readerThread = new Thread(() -> {
                 try {
-                    while (serverIn.hasNextLine()) {
-                        String line = serverIn.nextLine();
+                    String line;
+                    while ((line = server.readLine()) != null) {
                         System.out.println(line);
                     }
                 } catch (Exception e) {
@@ -46,23 +67,390 @@ public class Client {
             readerThread.start();
 
             // main thread to read from keyboard and send to server
-            Scanner userIn = new Scanner(System.in);
+            BufferedReader userIn = new BufferedReader(new InputStreamReader(System.in));
             while (true) {
-                if (!userIn.hasNextLine()) {
+                String line = userIn.readLine();
+                if (line == null) {
                     break;
                 }
-                String line = userIn.nextLine();
 
                 if (line.equalsIgnoreCase("/quit") || line.equalsIgnoreCase("/exit")) {
                     System.out.println("Closing connection...");
                     break;
                 }
 
-                serverOut.println(line);
+                server.println(line);
+                server.flush();
             }
 
         } catch (IOException e) {
             System.err.println("Could not connect to server: " + e.getMessage());
         }
     }
+
+    // Client side of BinaryProtocol for programs talking to the server.
+    // Calls are synchronous and not thread safe; notifications pushed by the
+    // server between responses go to the notification handler.
+    public static class BinaryCodec implements Closeable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+        private volatile BankService.BalanceListener notificationHandler;
+        private String username;
+
+        public BinaryCodec(String host, int port) throws IOException {
+            this.socket = new Socket(host, port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(BinaryProtocol.MAGIC);
+            out.flush();
+            if (in.readByte() != BinaryProtocol.MAGIC) {
+                socket.close();
+                throw new IOException("Server did not accept the binary protocol");
+            }
+        }
+
+        public void setNotificationHandler(BankService.BalanceListener handler) {
+            this.notificationHandler = handler;
+        }
+
+        public long login(String user, String password) throws IOException {
+            return authenticate(BinaryProtocol.OP_LOGIN, user, password);
+        }
+
+        public long signup(String user, String password) throws IOException {
+            return authenticate(BinaryProtocol.OP_SIGNUP, user, password);
+        }
+
+        private long authenticate(byte op, String user, String password) throws IOException {
+            BinaryProtocol.beginRequest(frame, op);
+            BinaryProtocol.putId(frame, user);
+            BinaryProtocol.putString(frame, password);
+            long balance = call(op).getLong();
+            this.username = user;
+            return balance;
+        }
+
+        public long balance() throws IOException {
+            BinaryProtocol.beginRequest(frame, BinaryProtocol.OP_BALANCE);
+            return call(BinaryProtocol.OP_BALANCE).getLong();
+        }
+
+        public long deposit(long amount) throws IOException {
+            BinaryProtocol.beginRequest(frame, BinaryProtocol.OP_DEPOSIT);
+            frame.putLong(amount);
+            return call(BinaryProtocol.OP_DEPOSIT).getLong();
+        }
+
+        public long withdraw(long amount) throws IOException {
+            BinaryProtocol.beginRequest(frame, BinaryProtocol.OP_WITHDRAW);
+            frame.putLong(amount);
+            return call(BinaryProtocol.OP_WITHDRAW).getLong();
+        }
+
+        public boolean transfer(String target, long amount) throws IOException {
+            BinaryProtocol.beginRequest(frame, BinaryProtocol.OP_TRANSFER);
+            BinaryProtocol.putId(frame, target);
+            frame.putLong(amount);
+            return call(BinaryProtocol.OP_TRANSFER).getLong() != 0;
+        }
+
+        public List<Transaction> history() throws IOException {
+            BinaryProtocol.beginRequest(frame, BinaryProtocol.OP_HISTORY);
+            ByteBuffer body = call(BinaryProtocol.OP_HISTORY);
+            body.getInt(); // total on the server, may be more than returned
+            int count = body.getInt();
+            List<Transaction> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(BinaryProtocol.getTransaction(body));
+            }
+            return result;
+        }
+
+        public void logout() throws IOException {
+            BinaryProtocol.beginRequest(frame, BinaryProtocol.OP_LOGOUT);
+            call(BinaryProtocol.OP_LOGOUT);
+            this.username = null;
+        }
+
+        // Sends the request in frame and returns the OK payload of the matching response.
+        // Server side errors are raised as IllegalStateException with the server's message.
+        private ByteBuffer call(byte op) throws IOException {
+            BinaryProtocol.finish(frame);
+            out.write(frame.array(), 0, frame.limit());
+            out.flush();
+
+            while (true) {
+                readFrame();
+                byte status = frame.get();
+                byte respOp = frame.get();
+                if (status == BinaryProtocol.STATUS_NOTIFY) {
+                    long balance = frame.getLong();
+                    String message = BinaryProtocol.getString(frame);
+                    BankService.BalanceListener handler = notificationHandler;
+                    if (handler != null) {
+                        handler.onBalanceChanged(username, balance, message);
+                    }
+                    continue;
+                }
+                if (respOp != op) {
+                    throw new IOException("Response for opcode " + respOp + " while waiting for " + op);
+                }
+                if (status == BinaryProtocol.STATUS_ERROR) {
+                    throw new IllegalStateException(BinaryProtocol.getString(frame));
+                }
+                return frame;
+            }
+        }
+
+        private void readFrame() throws IOException {
+            int length = in.readInt();
+            if (length <= 0 || length > BinaryProtocol.MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            in.readFully(frame.array(), 0, length);
+            frame.clear().limit(length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // Drives N concurrent binary sessions at a fixed total request rate and
+    // reports throughput and latency percentiles per operation.
+    //
+    // Every request has an intended start time on a fixed schedule, and its
+    // latency is measured from that time, not from when it was actually sent.
+    // If the server stalls, the requests that should have gone out during the
+    // stall are charged the time they spent waiting, so the percentiles do not
+    // suffer from coordinated omission.
+    public static class LoadGenerator {
+
+        enum Op { BALANCE, DEPOSIT, WITHDRAW, TRANSFER, HISTORY }
+
+        private final String host;
+        private final int port;
+        private final int sessions;
+        private final double rate;
+        private final long durationNanos;
+        private final String prefix;
+        private final Op[] schedule; // ops repeated by weight, picked at random
+
+        private final Map<Op, LatencyHistogram> histograms = new LinkedHashMap<>();
+        private final LatencyHistogram overall = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private volatile long elapsedNanos = 1;
+
+        public LoadGenerator(String host, int port, int sessions, double rate, long durationMillis,
+                             String mix, String prefix) {
+            if (sessions <= 0) throw new IllegalArgumentException("sessions must be > 0");
+            if (rate <= 0) throw new IllegalArgumentException("rate must be > 0");
+            if (durationMillis <= 0) throw new IllegalArgumentException("duration must be > 0");
+            this.host = host;
+            this.port = port;
+            this.sessions = sessions;
+            this.rate = rate;
+            this.durationNanos = durationMillis * 1_000_000L;
+            this.prefix = prefix;
+            this.schedule = parseMix(mix);
+            for (Op op : Op.values()) {
+                histograms.put(op, new LatencyHistogram());
+            }
+        }
+
+        public static void main(String[] args) {
+            String host = "localhost";
+            int port = 5000;
+            int sessions = 10;
+            double rate = 1000;
+            long durationMillis = 30_000;
+            String mix = "balance:40,deposit:20,withdraw:15,transfer:15,history:10";
+            String prefix = "load";
+
+            int positional = 0;
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    if (positional++ == 0) host = arg;
+                    else port = Integer.parseInt(arg);
+                    continue;
+                }
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "sessions": sessions = Integer.parseInt(value); break;
+                    case "rate": rate = Double.parseDouble(value); break;
+                    case "duration": durationMillis = (long) (Double.parseDouble(value) * 1000); break;
+                    case "mix": mix = value; break;
+                    case "prefix": prefix = value; break;
+                    default:
+                        System.out.println("Unknown option " + key);
+                        return;
+                }
+            }
+
+            LoadGenerator gen = new LoadGenerator(host, port, sessions, rate, durationMillis, mix, prefix);
+            try {
+                gen.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println(gen.report());
+        }
+
+        public void run() throws InterruptedException {
+            System.out.println("Load: " + sessions + " sessions, " + rate + " ops/s for "
+                    + (durationNanos / 1_000_000) + " ms against " + host + ":" + port);
+            long intervalNanos = (long) (1e9 * sessions / rate);
+            long start = System.nanoTime() + 500_000_000L; // give every session time to log in
+            Thread[] workers = new Thread[sessions];
+            for (int i = 0; i < sessions; i++) {
+                final int id = i;
+                // stagger sessions so their requests are spread over the interval
+                final long first = start + intervalNanos * i / sessions;
+                workers[i] = new Thread(() -> runSession(id, first, intervalNanos), "load-" + i);
+                workers[i].start();
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+            this.elapsedNanos = Math.max(1, System.nanoTime() - start);
+        }
+
+        private void runSession(int id, long first, long intervalNanos) {
+            String user = prefix + id;
+            long end = first + durationNanos;
+            long intended = first;
+            try (BinaryCodec codec = new BinaryCodec(host, port)) {
+                boolean loggedIn = authenticate(codec, user);
+
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (; intended < end; intended += intervalNanos) {
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (!loggedIn) {
+                        // the server was too busy to log us in, so this request
+                        // is lost; try again in its place and keep the schedule
+                        loggedIn = authenticate(codec, user);
+                        errors.increment();
+                        overall.record(System.nanoTime() - intended);
+                        continue;
+                    }
+                    Op op = schedule[rnd.nextInt(schedule.length)];
+                    try {
+                        perform(codec, op, id, rnd);
+                    } catch (IllegalStateException e) {
+                        errors.increment(); // e.g. insufficient funds, still a completed request
+                    }
+                    long latency = System.nanoTime() - intended;
+                    histograms.get(op).record(latency);
+                    overall.record(latency);
+                }
+                if (loggedIn) {
+                    codec.logout();
+                }
+            } catch (IOException e) {
+                // the requests still scheduled will never be sent
+                long lost = intended < end ? (end - intended + intervalNanos - 1) / intervalNanos : 0;
+                errors.add(lost);
+                System.err.println("Session " + user + " failed: " + e.getMessage()
+                        + ", " + lost + " scheduled requests lost");
+            }
+        }
+
+        // Signs up, or logs in if the account exists from an earlier run.
+        // False if the server refused both, e.g. with its verifier queue full.
+        private boolean authenticate(BinaryCodec codec, String user) throws IOException {
+            try {
+                codec.signup(user, "pw");
+                return true;
+            } catch (IllegalStateException e) {
+            }
+            try {
+                codec.login(user, "pw");
+                return true;
+            } catch (IllegalStateException e) {
+                return false;
+            }
+        }
+
+        private void perform(BinaryCodec codec, Op op, int id, ThreadLocalRandom rnd) throws IOException {
+            switch (op) {
+                case BALANCE:
+                    codec.balance();
+                    break;
+                case DEPOSIT:
+                    codec.deposit(1 + rnd.nextInt(100));
+                    break;
+                case WITHDRAW:
+                    codec.withdraw(1 + rnd.nextInt(100));
+                    break;
+                case TRANSFER: {
+                    if (sessions == 1) {
+                        codec.balance();
+                        break;
+                    }
+                    int target = rnd.nextInt(sessions - 1);
+                    if (target >= id) target++;
+                    codec.transfer(prefix + target, 1 + rnd.nextInt(50));
+                    break;
+                }
+                case HISTORY:
+                    codec.history();
+                    break;
+            }
+        }
+
+        public String report() {
+            double seconds = elapsedNanos / 1e9;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Completed %d requests in %.1fs (%.0f ops/s), %d errors%n",
+                    overall.getCount(), seconds, overall.getCount() / seconds, errors.sum()));
+            for (Map.Entry<Op, LatencyHistogram> e : histograms.entrySet()) {
+                if (e.getValue().getCount() == 0) continue;
+                sb.append(String.format("  %-8s %s%n", e.getKey(), e.getValue().summaryMicros()));
+            }
+            sb.append(String.format("  %-8s %s", "ALL", overall.summaryMicros()));
+            return sb.toString();
+        }
+
+        public LatencyHistogram getOverall() {
+            return overall;
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        // "balance:40,deposit:20" -> schedule array with each op repeated by its weight
+        static Op[] parseMix(String mix) {
+            List<Op> ops = new ArrayList<>();
+            for (String part : mix.split(",")) {
+                String[] kv = part.trim().split(":");
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("Bad mix entry: " + part);
+                }
+                Op op = Op.valueOf(kv[0].trim().toUpperCase());
+                int weight = Integer.parseInt(kv[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Mix weight must be >= 0: " + part);
+                }
+                for (int i = 0; i < weight; i++) {
+                    ops.add(op);
+                }
+            }
+            if (ops.isEmpty()) {
+                throw new IllegalArgumentException("Mix must contain at least one operation");
+            }
+            return ops.toArray(new Op[0]);
+        }
+    }
 }
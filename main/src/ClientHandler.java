@@ -1,49 +1,81 @@
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
-import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ClientHandler implements Runnable {
 
+    // How long to wait for a binary client's magic byte before falling back to the text menus
+    private static final int PROTOCOL_SNIFF_MILLIS = 200;
+    private static final String CREDENTIALS_BUSY = "Server busy, please try again in a moment.";
+
     private final Socket socket;
     private final BankService bankService;
-    private final Set<String> activeUsers;
-
-    private String currentUser = null;
+    private final SessionRegistry sessions;
+    private final Instant connectedAt = Instant.now();
+    private final SessionLimits limits;
+    private final SessionWatchdog watchdog;
+    private final RequestTracer tracer; // null when tracing is off
+
+    // volatile as the watchdog and notifier threads may force a disconnect
+    private volatile String currentUser = null;
+    private volatile SessionRegistry.Session session = null;
     private BankService.BalanceListener balanceListener = null;
+    private volatile SessionIO io = null;
+    private volatile boolean closed = false;
+
+    public ClientHandler(Socket socket, BankService bankService, SessionRegistry sessions) {
+        this(socket, bankService, sessions, SessionLimits.DEFAULTS, null);
+    }
 
-    public ClientHandler(Socket socket, BankService bankService, Set<String> activeUsers) {
+    public ClientHandler(Socket socket, BankService bankService, SessionRegistry sessions,
+                         SessionLimits limits, SessionWatchdog watchdog) {
+        this(socket, bankService, sessions, limits, watchdog, null);
+    }
+
+    public ClientHandler(Socket socket, BankService bankService, SessionRegistry sessions,
+                         SessionLimits limits, SessionWatchdog watchdog, RequestTracer tracer) {
         this.socket = socket;
         this.bankService = bankService;
-        this.activeUsers = activeUsers;
+        this.sessions = sessions;
+        this.limits = limits;
+        this.watchdog = watchdog;
+        this.tracer = tracer;
     }
 
     @Override
     public void run() {
         System.out.println("Client connected from " + socket.getRemoteSocketAddress());
+        if (watchdog != null) {
+            watchdog.register(this);
+        }
         try (Socket s = this.socket;
-             Scanner in = new Scanner(s.getInputStream());
-             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
-
-            out.println("Connected to bank.");
-
-            boolean running = true;
-            while (running) {
-                if (currentUser == null) {
-                    boolean loggedIn = loginMenu(in, out);
-                    if (!loggedIn) {
-                        running = false;
-                    }
+             SessionIO io = new SessionIO(s.getInputStream(), s.getOutputStream(), limits.getMaxPendingBytes())) {
+            this.io = io;
+            boolean binary = isBinaryClient(s, io);
+            try {
+                if (binary) {
+                    s.setTcpNoDelay(true);
+                    binarySession(io);
                 } else {
-                    boolean stayConnected = userMenu(currentUser, in, out);
-                    if (!stayConnected) {
-                        running = false;
-                    }
+                    textSession(io);
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println("Client " + socket.getRemoteSocketAddress() + " idle for "
+                        + limits.getReadIdleMillis() + " ms, disconnecting.");
+                if (!binary) {
+                    io.println();
+                    io.println("Disconnected after " + (limits.getReadIdleMillis() / 1000) + "s of inactivity.");
                 }
             }
-
         } catch (IOException e) {
             System.err.println("I/O error with client " + e.getMessage());
         } finally {
@@ -52,293 +84,604 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    // Binary clients send MAGIC straight after connecting, people wait for the greeting
+    private boolean isBinaryClient(Socket s, SessionIO io) throws IOException {
+        s.setSoTimeout(PROTOCOL_SNIFF_MILLIS);
+        try {
+            if (io.peek() == (BinaryProtocol.MAGIC & 0xFF)) {
+                io.read();
+                return true;
+            }
+            return false;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            s.setSoTimeout(limits.getReadIdleMillis());
+        }
+    }
+
+    private void textSession(SessionIO io) throws IOException {
+        io.println("Connected to bank.");
+
+        boolean running = true;
+        while (running) {
+            if (currentUser == null) {
+                boolean loggedIn = loginMenu(io);
+                if (!loggedIn) {
+                    running = false;
+                }
+            } else {
+                boolean stayConnected = userMenu(currentUser, io);
+                if (!stayConnected) {
+                    running = false;
+                }
+            }
+        }
+    }
+
     // login / signup menu
 
-    private boolean loginMenu(Scanner in, PrintWriter out) {
+    private boolean loginMenu(SessionIO io) throws IOException {
         while (currentUser == null) {
 
-            out.println();
-            out.println("=== Login Menu ===");
-            out.println("1. Login");
-            out.println("2. Signup");
-            out.println("3. Exit");
-            out.println("Pick an option: ");
-            out.flush();
+            io.println();
+            io.println("=== Login Menu ===");
+            io.println("1. Login");
+            io.println("2. Signup");
+            io.println("3. Exit");
+            io.println("Pick an option: ");
+            io.flush();
 
-            if (!in.hasNextLine()) {
+            String line = readTrimmed(io);
+            if (line == null) {
                 return false;
             }
-
-            String line = in.nextLine().trim();
             int choice;
             try {
                 choice = Integer.parseInt(line);
             } catch (NumberFormatException e) {
-                out.println("Invalid input, please enter a number.");
+                io.println("Invalid input, please enter a number.");
                 continue;
             }
 
             switch (choice) {
                 case 1:
-                    handleLogin(in, out);
+                    handleLogin(io);
                     break;
                 case 2:
-                    handleCreateAccount(in, out);
+                    handleCreateAccount(io);
                     break;
                 case 3:
-                    out.println("Goodbye.");
+                    io.println("Goodbye.");
                     return false;
                 default:
-                    out.println("Unknown option, please try again.");
+                    io.println("Unknown option, please try again.");
             }
         }
         return true;
     }
 
-    private void handleLogin(Scanner in, PrintWriter out) {
-        out.println("Username: ");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String username = in.nextLine().trim();
+    private void handleLogin(SessionIO io) throws IOException {
+        io.println("Username: ");
+        io.flush();
+        String username = readTrimmed(io);
+        if (username == null) return;
 
-        out.println("Password: ");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String password = in.nextLine().trim();
+        io.println("Password: ");
+        io.flush();
+        String password = readTrimmed(io);
+        if (password == null) return;
 
 
-        synchronized (activeUsers) {
-            if (activeUsers.contains(username)) {
-                out.println("This user is already logged in from another client.");
-                return;
-            }
+        String error = tryLogin(username, password, textNotifier(io));
+        if (error != null) {
+            io.println(error);
+            return;
         }
+        io.println("Login successful. Welcome, " + username + "!");
+    }
 
-        Account acc = bankService.login(username, password);
-        if (acc == null) {
-            out.println("Login failed: invalid username or password.");
+    private void handleCreateAccount(SessionIO io) throws IOException {
+        io.println("Choose a username: ");
+        io.flush();
+        String username = readTrimmed(io);
+        if (username == null) return;
+
+        io.println("Choose a password: ");
+        io.flush();
+        String password = readTrimmed(io);
+        if (password == null) return;
+
+        String error = trySignup(username, password, textNotifier(io));
+        if (error != null) {
+            io.println(error);
             return;
         }
+        io.println("Account created and logged in as " + username + ".");
+    }
 
-        setCurrentUser(username, out);
-        out.println("Login successful. Welcome, " + username + "!");
+    // Shared by both protocols: returns null on success, otherwise the message for the user
+    private String tryLogin(String username, String password, BankService.BalanceListener notifier) {
+        BankEvents.Login event = new BankEvents.Login();
+        event.begin();
+        String error = checkLogin(username, password, notifier);
+        commitLogin(event, username, false, error == null);
+        return error;
     }
 
-    private void handleCreateAccount(Scanner in, PrintWriter out) {
-        out.println("Choose a username: ");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String username = in.nextLine().trim();
+    private String checkLogin(String username, String password, BankService.BalanceListener notifier) {
+        if (sessions.isActive(username)) {
+            return "This user is already logged in from another client.";
+        }
 
-        out.println("Choose a password: ");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String password = in.nextLine().trim();
+        Account acc;
+        try {
+            acc = awaitCredentials(bankService.loginAsync(username, password));
+        } catch (RejectedExecutionException e) {
+            return CREDENTIALS_BUSY;
+        }
+        RequestTracer.stage("credentials");
+        if (acc == null) {
+            return "Login failed: invalid username or password.";
+        }
 
-        synchronized (activeUsers) {
-            if (activeUsers.contains(username)) {
-                out.println("That username is currently logged in. Please choose another.");
-                return;
-            }
+        // the check above is only a fast path, the claim is what decides a race
+        if (!setCurrentUser(username, notifier)) {
+            return "This user is already logged in from another client.";
+        }
+        return null;
+    }
+
+    private String trySignup(String username, String password, BankService.BalanceListener notifier) {
+        BankEvents.Login event = new BankEvents.Login();
+        event.begin();
+        String error = checkSignup(username, password, notifier);
+        commitLogin(event, username, true, error == null);
+        return error;
+    }
+
+    private String checkSignup(String username, String password, BankService.BalanceListener notifier) {
+        if (sessions.isActive(username)) {
+            return "That username is currently logged in. Please choose another.";
         }
 
-        Account acc = bankService.createAccount(username, password);
+        Account acc;
+        try {
+            acc = awaitCredentials(bankService.createAccountAsync(username, password));
+        } catch (RejectedExecutionException e) {
+            return CREDENTIALS_BUSY;
+        }
+        RequestTracer.stage("credentials");
         if (acc == null) {
-            out.println("Account creation failed: username may already exist or be invalid.");
-            return;
+            return "Account creation failed: username may already exist or be invalid.";
         }
 
-        setCurrentUser(username, out);
-        out.println("Account created and logged in as " + username + ".");
+        if (!setCurrentUser(username, notifier)) {
+            return "That username is currently logged in. Please choose another.";
+        }
+        return null;
     }
 
-    private void setCurrentUser(String username, PrintWriter out) {
-        this.currentUser = username;
-        synchronized (activeUsers) {
-            activeUsers.add(username);
+    private void commitLogin(BankEvents.Login event, String username, boolean signup, boolean success) {
+        if (event.shouldCommit()) {
+            event.user = username;
+            event.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+            event.signup = signup;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    // Password hashing runs on the credential verifier, this thread only waits
+    private static Account awaitCredentials(CompletableFuture<Account> pending) {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
         }
+    }
+
+    // Claims username in the registry, false if another session got there first
+    private synchronized boolean setCurrentUser(String username, BankService.BalanceListener notifier) {
+        if (closed) return false;
+        SessionRegistry.Session claimed = sessions.claim(username,
+                String.valueOf(socket.getRemoteSocketAddress()), connectedAt,
+                () -> forceDisconnect("kicked by admin"));
+        if (claimed == null) {
+            return false;
+        }
+        this.session = claimed;
+        this.currentUser = username;
 
         this.balanceListener = (user, newBalance, message) -> {
             if (!username.equals(this.currentUser)) {
                 return;
             }
-            synchronized (out) {
-                out.println();
-                out.println("[NOTIFICATION] " + message);
-                out.print("> ");
-                out.flush();
-            }
+            notifier.onBalanceChanged(user, newBalance, message);
         };
         bankService.registerListener(username, this.balanceListener);
+        return true;
+    }
+
+    private void touchSession() {
+        SessionRegistry.Session current = session;
+        if (current != null) {
+            current.touch();
+        }
+    }
+
+    private BankService.BalanceListener textNotifier(SessionIO io) {
+        return (user, newBalance, message) -> {
+            if (!io.offer("\n[NOTIFICATION] " + message + "\n> ")) {
+                forceDisconnect("too much unsent output");
+            }
+        };
+    }
+
+    // Next input line trimmed, or null if the client disconnected
+    private String readTrimmed(SessionIO io) throws IOException {
+        String line = io.readLine();
+        return line == null ? null : line.trim();
     }
 
     // user menu when logged in
-    private boolean userMenu(String currentUser, Scanner in, PrintWriter out) {
+    private boolean userMenu(String currentUser, SessionIO io) throws IOException {
         while (true) {
 
-            out.println();
-            out.println("=== User Menu (" + currentUser + ") ===");
-            out.println("1. Get balance");
-            out.println("2. Deposit");
-            out.println("3. Withdraw");
-            out.println("4. Transfer");
-            out.println("5. Get transactions");
-            out.println("9. Logout");
-            out.print("Pick an option: ");
-            out.flush();
-
-            if (!in.hasNextLine()) {
+            io.println();
+            io.println("=== User Menu (" + currentUser + ") ===");
+            io.println("1. Get balance");
+            io.println("2. Deposit");
+            io.println("3. Withdraw");
+            io.println("4. Transfer");
+            io.println("5. Get transactions");
+            io.println("9. Logout");
+            io.print("Pick an option: ");
+            io.flush();
+
+            String line = readTrimmed(io);
+            if (line == null) {
                 return false; // client disconnected
             }
-
-            String line = in.nextLine().trim();
+            touchSession();
             int choice;
             try {
                 choice = Integer.parseInt(line);
             } catch (NumberFormatException e) {
-                out.println("Invalid input, please enter a number.");
+                io.println("Invalid input, please enter a number.");
                 continue;
             }
 
             switch (choice) {
                 case 1:
-                    handleGetBalance(currentUser, out);
+                    handleGetBalance(currentUser, io);
                     break;
                 case 2:
-                    handleDeposit(currentUser, in, out);
+                    handleDeposit(currentUser, io);
                     break;
                 case 3:
-                    handleWithdraw(currentUser, in, out);
+                    handleWithdraw(currentUser, io);
                     break;
                 case 4:
-                    handleTransfer(currentUser, in, out);
+                    handleTransfer(currentUser, io);
                     break;
                 case 5:
-                    handleViewTransactions(currentUser, out);
+                    handleViewTransactions(currentUser, io);
                     break;
                 case 9:
-                    out.println("Logged out, goodbye.");
+                    io.println("Logged out, goodbye.");
                     logout();
                     return false;
                 default:
-                    out.println("Invalid option.");
+                    io.println("Invalid option.");
                     break;
             }
         }
     }
 
-    private void handleGetBalance(String username, PrintWriter out) {
+    private void handleGetBalance(String username, SessionIO io) {
         try {
             long balance = bankService.getBalance(username);
-            out.println("Current balance: " + balance);
+            io.println("Current balance: " + balance);
         } catch (IllegalArgumentException e) {
-            out.println("Error: " + e.getMessage());
+            io.println("Error: " + e.getMessage());
         }
     }
 
-    private void handleDeposit(String username, Scanner in, PrintWriter out) {
-        out.println("Enter amount to deposit: ");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String line = in.nextLine().trim();
+    private void handleDeposit(String username, SessionIO io) throws IOException {
+        io.println("Enter amount to deposit: ");
+        io.flush();
+        String line = readTrimmed(io);
+        if (line == null) return;
 
         long amount;
         try {
             amount = Long.parseLong(line);
         } catch (NumberFormatException e) {
-            out.println("Invalid amount. Please enter a whole number.");
+            io.println("Invalid amount. Please enter a whole number.");
             return;
         }
 
         try {
             long newBalance = bankService.deposit(username, amount);
-            out.println("Deposit successful. New balance: " + newBalance);
+            io.println("Deposit successful. New balance: " + newBalance);
         } catch (IllegalArgumentException e) {
-            out.println("Error: " + e.getMessage());
+            io.println("Error: " + e.getMessage());
         }
     }
 
-    private void handleWithdraw(String username, Scanner in, PrintWriter out) {
-        out.println("Enter amount to withdraw: ");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String line = in.nextLine().trim();
+    private void handleWithdraw(String username, SessionIO io) throws IOException {
+        io.println("Enter amount to withdraw: ");
+        io.flush();
+        String line = readTrimmed(io);
+        if (line == null) return;
 
         long amount;
         try {
             amount = Long.parseLong(line);
         } catch (NumberFormatException e) {
-            out.println("Invalid amount. Please enter a whole number.");
+            io.println("Invalid amount. Please enter a whole number.");
             return;
         }
 
         try {
             long newBalance = bankService.withdraw(username, amount);
-            out.println("Withdrawal successful. New balance: " + newBalance);
+            io.println("Withdrawal successful. New balance: " + newBalance);
         } catch (IllegalArgumentException | IllegalStateException e) {
-            out.println("Error: " + e.getMessage());
+            io.println("Error: " + e.getMessage());
         }
     }
 
-    private void handleTransfer(String username, Scanner in, PrintWriter out) {
-        out.println("Enter target username: ");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String target = in.nextLine().trim();
+    private void handleTransfer(String username, SessionIO io) throws IOException {
+        io.println("Enter target username: ");
+        io.flush();
+        String target = readTrimmed(io);
+        if (target == null) return;
 
-        out.print("Enter amount to transfer: \n");
-        out.flush();
-        if (!in.hasNextLine()) return;
-        String line = in.nextLine().trim();
+        io.print("Enter amount to transfer: \n");
+        io.flush();
+        String line = readTrimmed(io);
+        if (line == null) return;
 
         long amount;
         try {
             amount = Long.parseLong(line);
         } catch (NumberFormatException e) {
-            out.println("Invalid amount. Please enter a whole number.");
+            io.println("Invalid amount. Please enter a whole number.");
             return;
         }
 
         try {
             boolean ok = bankService.transfer(username, target, amount);
             if (ok) {
-                out.println("Transfer successful.");
+                io.println("Transfer successful.");
             } else {
-                out.println("Transfer failed (insufficient funds or invalid account).");
+                io.println("Transfer failed (insufficient funds or invalid account).");
             }
         } catch (IllegalArgumentException e) {
-            out.println("Error: " + e.getMessage());
+            io.println("Error: " + e.getMessage());
         }
     }
 
-    private void handleViewTransactions(String username, PrintWriter out) {
+    private void handleViewTransactions(String username, SessionIO io) {
         List<Transaction> txs = bankService.getUserTransactions(username);
         if (txs.isEmpty()) {
-            out.println("No transactions found.");
+            io.println("No transactions found.");
             return;
         }
-        out.println("Your transactions:");
+        io.println("Your transactions:");
         for (Transaction t : txs) {
-            out.println(" - " + t);
+            io.println(" - " + t);
+        }
+    }
+
+    // binary protocol session, see BinaryProtocol for the frame layout
+
+    private void binarySession(SessionIO io) throws IOException {
+        // One request and one response buffer per session, reused for every frame
+        ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+        ByteBuffer response = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+
+        io.write(BinaryProtocol.MAGIC);
+        io.flush();
+
+        while (true) {
+            int length;
+            try {
+                length = io.readInt();
+            } catch (EOFException e) {
+                return; // client disconnected
+            }
+            // the length has arrived, so the request has started
+            long readStart = System.nanoTime();
+            if (length <= 0 || length > BinaryProtocol.MAX_FRAME) {
+                System.err.println("Bad frame length " + length + " from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            io.readFully(request.array(), 0, length);
+            request.clear().limit(length);
+
+            byte op = request.get();
+            RequestTracer.Trace trace = tracer == null ? null
+                    : tracer.begin(BinaryProtocol.opName(op), currentUser, readStart);
+            try {
+                RequestTracer.stage("read");
+                try {
+                    handleBinaryRequest(op, request, response, io);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    writeError(response, op, e.getMessage());
+                } catch (BufferUnderflowException e) {
+                    writeError(response, op, "Malformed request");
+                }
+                RequestTracer.stage("handle");
+                writeFrame(io, response);
+                RequestTracer.stage("write");
+            } finally {
+                if (trace != null) {
+                    tracer.end(trace);
+                }
+            }
+        }
+    }
+
+    private void handleBinaryRequest(byte op, ByteBuffer request, ByteBuffer response, SessionIO io) {
+        if (op == BinaryProtocol.OP_LOGIN || op == BinaryProtocol.OP_SIGNUP) {
+            String username = BinaryProtocol.getId(request);
+            String password = BinaryProtocol.getString(request);
+            if (currentUser != null) {
+                writeError(response, op, "Already logged in as " + currentUser);
+                return;
+            }
+            if (username == null) {
+                writeError(response, op, "Username must not be empty");
+                return;
+            }
+            String error = op == BinaryProtocol.OP_LOGIN
+                    ? tryLogin(username, password, binaryNotifier(io))
+                    : trySignup(username, password, binaryNotifier(io));
+            if (error != null) {
+                writeError(response, op, error);
+            } else {
+                writeValue(response, op, bankService.getBalance(username));
+            }
+            return;
+        }
+
+        String user = currentUser;
+        if (user == null) {
+            writeError(response, op, "Not logged in");
+            return;
+        }
+        touchSession();
+
+        switch (op) {
+            case BinaryProtocol.OP_BALANCE:
+                writeValue(response, op, bankService.getBalance(user));
+                break;
+            case BinaryProtocol.OP_DEPOSIT:
+                writeValue(response, op, bankService.deposit(user, request.getLong()));
+                break;
+            case BinaryProtocol.OP_WITHDRAW:
+                writeValue(response, op, bankService.withdraw(user, request.getLong()));
+                break;
+            case BinaryProtocol.OP_TRANSFER: {
+                String target = BinaryProtocol.getId(request);
+                long amount = request.getLong();
+                boolean ok = bankService.transfer(user, target, amount);
+                writeValue(response, op, ok ? 1L : 0L);
+                break;
+            }
+            case BinaryProtocol.OP_HISTORY:
+                writeHistory(response, op, bankService.getUserTransactions(user));
+                break;
+            case BinaryProtocol.OP_LOGOUT:
+                logout();
+                writeValue(response, op, 0L);
+                break;
+            default:
+                writeError(response, op, "Unknown opcode " + op);
+        }
+    }
+
+    private void writeValue(ByteBuffer response, byte op, long value) {
+        BinaryProtocol.beginResponse(response, BinaryProtocol.STATUS_OK, op);
+        response.putLong(value);
+        BinaryProtocol.finish(response);
+    }
+
+    private void writeError(ByteBuffer response, byte op, String message) {
+        BinaryProtocol.beginResponse(response, BinaryProtocol.STATUS_ERROR, op);
+        BinaryProtocol.putString(response, message == null ? "Error" : message);
+        BinaryProtocol.finish(response);
+    }
+
+    // [int total][int count][count transactions], the most recent ones that fit in a frame
+    private void writeHistory(ByteBuffer response, byte op, List<Transaction> txs) {
+        int budget = BinaryProtocol.MAX_FRAME - 4 - 2 - 8;
+        int start = txs.size();
+        while (start > 0) {
+            int size = BinaryProtocol.transactionSize(txs.get(start - 1));
+            if (size > budget) break;
+            budget -= size;
+            start--;
+        }
+        BinaryProtocol.beginResponse(response, BinaryProtocol.STATUS_OK, op);
+        response.putInt(txs.size());
+        response.putInt(txs.size() - start);
+        for (int i = start; i < txs.size(); i++) {
+            BinaryProtocol.putTransaction(response, txs.get(i));
         }
+        BinaryProtocol.finish(response);
+    }
+
+    private void writeFrame(SessionIO io, ByteBuffer frame) throws IOException {
+        io.write(frame.array(), 0, frame.limit());
+        io.flush();
+    }
+
+    private BankService.BalanceListener binaryNotifier(SessionIO io) {
+        return (user, newBalance, message) -> {
+            ByteBuffer frame = ByteBuffer.allocate(4 + 2 + 8 + 2 + message.length() * 3);
+            BinaryProtocol.beginResponse(frame, BinaryProtocol.STATUS_NOTIFY, (byte) 0);
+            frame.putLong(newBalance);
+            BinaryProtocol.putString(frame, message);
+            BinaryProtocol.finish(frame);
+            if (!io.offer(frame.array(), 0, frame.limit())) {
+                forceDisconnect("too much unsent output");
+            }
+        };
+    }
+
+    // slow client protection
+
+    // Called by the SessionWatchdog sweep
+    void checkLimits(long nowNanos) {
+        SessionIO current = io;
+        if (current == null || closed) return;
+        if (current.writeStalledNanos(nowNanos) > limits.getWriteStallMillis() * 1_000_000L) {
+            forceDisconnect("write stalled for over " + limits.getWriteStallMillis() + " ms");
+        } else if (current.isOverflowed()) {
+            forceDisconnect("too much unsent output");
+        }
+    }
+
+    // Safe from any thread. Closing the socket also wakes the session thread
+    // out of a blocked read or write so it can finish.
+    void forceDisconnect(String reason) {
+        if (closed) return;
+        System.out.println("Forcing disconnect of " + socket.getRemoteSocketAddress() + ": " + reason);
+        cleanup();
     }
 
     //cleanup
-    private void logout() {
+    private synchronized void logout() {
         if (currentUser != null) {
+            BankEvents.Logout event = new BankEvents.Logout();
+            if (event.shouldCommit()) {
+                event.user = currentUser;
+                event.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+                event.connectedFor = Duration.between(connectedAt, Instant.now()).toMillis();
+                event.commit();
+            }
             if (balanceListener != null) {
                 bankService.unregisterListener(currentUser, balanceListener);
                 balanceListener = null;
             }
-            synchronized (activeUsers) {
-                activeUsers.remove(currentUser);
-            }
+            sessions.release(session);
+            session = null;
             currentUser = null;
         }
     }
 
-    private void cleanup() {
+    private synchronized void cleanup() {
+        closed = true;
         logout();
+        if (watchdog != null) {
+            watchdog.unregister(this);
+        }
         try {
             if (!socket.isClosed()) {
                 socket.close();
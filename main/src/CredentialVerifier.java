@@ -0,0 +1,52 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Small bounded executor for password hashing and verification.
+//
+// Slow hashes are CPU heavy on purpose. Running them here instead of on the
+// session threads caps how many cores a login storm can take. Once the queue
+// is full, new work fails at once with RejectedExecutionException, and the
+// client is told the server is busy.
+public class CredentialVerifier {
+
+    private final ThreadPoolExecutor executor;
+
+    public CredentialVerifier(int threads, int queueCapacity) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("number of threads must be > 0");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queue capacity must be > 0");
+        }
+        AtomicInteger ids = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "credential-verifier-" + ids.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public int queuedTasks() {
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Epoch clock for consistent snapshots of balances and the ledger.
+//
+// Every write runs in a write scope: BankService opens one around an
+// operation's balance changes and ledger append, and Account and Ledger open
+// their own if the caller didn't. The first write in a scope takes the
+// current epoch, with the account lock held, and registers as in flight
+// under that epoch's parity. Everything the scope changes is tagged with
+// that epoch.
+//
+// pin() starts a snapshot at the current epoch s: it moves new writers to
+// s + 1, then waits for the writers still in flight at s. After that every
+// write tagged <= s is complete and every later one is tagged > s, so a
+// reader that only looks at versions <= s sees one consistent state. Only
+// pin() waits; writers never wait for readers. Pins are serialized, so at
+// most two epochs have writers in flight and parity tells them apart.
+//
+// Accounts keep old balances only while a pinned snapshot may still need
+// them, see Account.
+public class Epochs {
+
+    // This thread's write scope, nested scopes share the outermost one's epoch
+    private static final class Scope {
+        int depth;
+        Epochs owner; // set once the scope has taken an epoch
+        long epoch;
+    }
+
+    private static final ThreadLocal<Scope> SCOPE = ThreadLocal.withInitial(Scope::new);
+
+    private final AtomicLong epoch = new AtomicLong(1); // 0 tags data from before any epoch, e.g. loaded
+    // Writers in flight per epoch parity. Not LongAdders: sum() isn't an atomic
+    // read, so a writer retrying on another cell could make it read 0 while
+    // one is still in flight.
+    private final AtomicLong[] inFlight = {new AtomicLong(), new AtomicLong()};
+    // epochs of open snapshots, sorted, one entry per snapshot
+    private volatile long[] pinned = new long[0];
+
+    public static void enterWrite() {
+        SCOPE.get().depth++;
+    }
+
+    public static void exitWrite() {
+        Scope scope = SCOPE.get();
+        if (scope.depth == 0) {
+            throw new IllegalStateException("Not in a write scope");
+        }
+        if (--scope.depth == 0 && scope.owner != null) {
+            scope.owner.inFlight[(int) (scope.epoch & 1)].decrementAndGet();
+            scope.owner = null;
+            scope.epoch = 0;
+        }
+    }
+
+    // Epoch of this thread's write scope, taken on the first call. Call it
+    // with the locks of whatever is being written held, so two writes to the
+    // same account take their epochs in the order they happen.
+    long writeEpoch() {
+        Scope scope = SCOPE.get();
+        if (scope.depth == 0) {
+            throw new IllegalStateException("Not in a write scope");
+        }
+        if (scope.owner == this) {
+            return scope.epoch;
+        }
+        if (scope.owner != null) {
+            throw new IllegalStateException("Write scope already belongs to another store");
+        }
+        while (true) {
+            long e = epoch.get();
+            AtomicLong writers = inFlight[(int) (e & 1)];
+            writers.incrementAndGet();
+            if (epoch.get() == e) {
+                scope.owner = this;
+                scope.epoch = e;
+                return e;
+            }
+            writers.decrementAndGet(); // a pin moved the epoch on, take the new one
+        }
+    }
+
+    // Epoch this thread's scope took, or 0 if it hasn't written yet
+    static long currentWriteEpoch() {
+        Scope scope = SCOPE.get();
+        return scope.owner == null ? 0 : scope.epoch;
+    }
+
+    public long current() {
+        return epoch.get();
+    }
+
+    // Starts a snapshot and returns its epoch. Must be matched by unpin().
+    public synchronized long pin() {
+        if (SCOPE.get().owner == this) {
+            throw new IllegalStateException("Can't pin inside a write scope, it would wait for itself");
+        }
+        long s = epoch.get();
+        long[] p = Arrays.copyOf(pinned, pinned.length + 1);
+        p[p.length - 1] = s; // s is the newest epoch, so p stays sorted
+        pinned = p;
+        epoch.set(s + 1);
+        AtomicLong writers = inFlight[(int) (s & 1)];
+        for (int spins = 0; writers.get() != 0; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return s;
+    }
+
+    public synchronized void unpin(long s) {
+        long[] p = pinned;
+        int i = Arrays.binarySearch(p, s);
+        if (i < 0) {
+            throw new IllegalArgumentException("Epoch " + s + " is not pinned");
+        }
+        long[] rest = new long[p.length - 1];
+        System.arraycopy(p, 0, rest, 0, i);
+        System.arraycopy(p, i + 1, rest, i, p.length - i - 1);
+        pinned = rest;
+    }
+
+    public int pinnedCount() {
+        return pinned.length;
+    }
+
+    // Whether a snapshot with an epoch in [from, to) is open
+    boolean pinnedIn(long from, long to) {
+        long[] p = pinned;
+        if (p.length == 0 || from >= to) return false;
+        int i = Arrays.binarySearch(p, from);
+        if (i < 0) i = -i - 1;
+        return i < p.length && p[i] < to;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+// One interest run as a single ledger record: a header (id, time, rate)
+// and a packed block of usernames and amounts, sorted by username so one
+// user's credit is a binary search away.
+//
+// Ledger expands it into ordinary INTEREST transactions for anyone reading
+// history, the i-th credit gets the id "<batch id>:<i>".
+public class InterestBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final Instant time;
+    private final double rate; // 0 when the rates came from a plan's tiers
+    private final String plan; // null for the global run
+    private final String[] users;
+    private final long[] amounts;
+
+    public InterestBatch(double rate, String plan, String[] users, long[] amounts) {
+        this(UUID.randomUUID().toString(), Instant.now(), rate, plan, users, amounts);
+    }
+
+    public InterestBatch(String id, Instant time, double rate, String plan, String[] users, long[] amounts) {
+        if (time == null) throw new IllegalArgumentException("Time cannot be null");
+        if (users == null || amounts == null || users.length != amounts.length) {
+            throw new IllegalArgumentException("Every credit needs a user and an amount");
+        }
+        if (rate < 0) throw new IllegalArgumentException("Rate cannot be negative");
+
+        Integer[] order = new Integer[users.length];
+        for (int i = 0; i < order.length; i++) {
+            if (users[i] == null) throw new IllegalArgumentException("User cannot be null");
+            if (amounts[i] <= 0) throw new IllegalArgumentException("Amount must be > 0");
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> users[a].compareTo(users[b]));
+        this.users = new String[users.length];
+        this.amounts = new long[users.length];
+        for (int i = 0; i < order.length; i++) {
+            this.users[i] = users[order[i]];
+            this.amounts[i] = amounts[order[i]];
+            if (i > 0 && this.users[i].equals(this.users[i - 1])) {
+                throw new IllegalArgumentException("User credited twice: " + this.users[i]);
+            }
+        }
+
+        this.id = id != null ? id : UUID.randomUUID().toString();
+        this.time = time;
+        this.rate = rate;
+        this.plan = plan;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Instant getTime() {
+        return time;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public String getPlan() {
+        return plan;
+    }
+
+    public int size() {
+        return users.length;
+    }
+
+    // i-th credit in username order
+    public String getUser(int i) {
+        return users[i];
+    }
+
+    public long getAmount(int i) {
+        return amounts[i];
+    }
+
+    public Transaction toTransaction(int i) {
+        return new Transaction(id + ":" + i, Transaction.Type.INTEREST, time, null, users[i], amounts[i]);
+    }
+
+    // username's credit in this run, null if it got none
+    public Transaction find(String username) {
+        int i = Arrays.binarySearch(users, username);
+        return i < 0 ? null : toTransaction(i);
+    }
+
+    void expandInto(List<Transaction> out) {
+        for (int i = 0; i < users.length; i++) {
+            out.add(toTransaction(i));
+        }
+    }
+}
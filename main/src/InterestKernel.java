@@ -0,0 +1,41 @@
+// Interest rounding, for one balance or a packed long[] snapshot of many.
+//
+// Only the computation is done in bulk. BankService still credits each
+// account on its own, under the account's lock, and recomputes with
+// interestOn() when the balance has moved since the snapshot. That credit
+// pass, not the arithmetic, is what an interest run costs (see
+// InterestKernelBenchmark). Balances of zero or less earn nothing.
+public final class InterestKernel {
+
+    private InterestKernel() {
+    }
+
+    public static long interestOn(long balance, double rate) {
+        return Math.round(Math.max(balance, 0L) * rate);
+    }
+
+    // out[i] = interest on balances[i] at rate, for i < count
+    public static void compute(long[] balances, double rate, long[] out, int count) {
+        checkBounds(balances, out, count);
+        for (int i = 0; i < count; i++) {
+            out[i] = interestOn(balances[i], rate);
+        }
+    }
+
+    // Same with a rate per balance, e.g. from an InterestPlan's tiers
+    public static void compute(long[] balances, double[] rates, long[] out, int count) {
+        checkBounds(balances, out, count);
+        if (rates.length < count) {
+            throw new IllegalArgumentException("count is larger than the rates array");
+        }
+        for (int i = 0; i < count; i++) {
+            out[i] = interestOn(balances[i], rates[i]);
+        }
+    }
+
+    private static void checkBounds(long[] balances, long[] out, int count) {
+        if (count < 0 || balances.length < count || out.length < count) {
+            throw new IllegalArgumentException("count must fit both arrays");
+        }
+    }
+}
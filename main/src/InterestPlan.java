@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+// Interest terms for accounts that don't follow the global rate.
+//
+// The rate depends on the balance band: tiers are sorted balance floors, each
+// with a rate, and a balance earns the rate of the highest floor it reaches
+// (nothing if it is below the first). Interest is credited every periodMillis.
+public final class InterestPlan {
+
+    private final String name;
+    private final long periodMillis;
+    private final long[] floors;
+    private final double[] rates;
+
+    public InterestPlan(String name, long periodMillis, long[] floors, double[] rates) {
+        if (name == null || name.isBlank() || name.contains(";")) {
+            throw new IllegalArgumentException("Plan name must not be empty or contain ';'");
+        }
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Interest period must be > 0");
+        }
+        if (floors == null || rates == null || floors.length == 0 || floors.length != rates.length) {
+            throw new IllegalArgumentException("Every tier needs a balance floor and a rate");
+        }
+        for (int i = 0; i < floors.length; i++) {
+            if (floors[i] < 0 || (i > 0 && floors[i] <= floors[i - 1])) {
+                throw new IllegalArgumentException("Tier floors must be >= 0 and ascending");
+            }
+            if (!(rates[i] >= 0)) {
+                throw new IllegalArgumentException("Tier rates must be >= 0");
+            }
+        }
+        this.name = name;
+        this.periodMillis = periodMillis;
+        this.floors = floors.clone();
+        this.rates = rates.clone();
+    }
+
+    // Tiers written as "floor:rate,floor:rate", e.g. "0:0.01,10000:0.02"
+    public static InterestPlan parse(String name, long periodMillis, String tiers) {
+        if (tiers == null || tiers.isBlank()) {
+            throw new IllegalArgumentException("No tiers given");
+        }
+        String[] parts = tiers.split(",");
+        long[] floors = new long[parts.length];
+        double[] rates = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] tier = parts[i].trim().split(":");
+            if (tier.length != 2) {
+                throw new IllegalArgumentException("Bad tier '" + parts[i] + "', expected floor:rate");
+            }
+            try {
+                floors[i] = Long.parseLong(tier[0].trim());
+                rates[i] = Double.parseDouble(tier[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad tier '" + parts[i] + "', expected floor:rate");
+            }
+        }
+        return new InterestPlan(name, periodMillis, floors, rates);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public double rateFor(long balance) {
+        int i = Arrays.binarySearch(floors, balance);
+        if (i < 0) i = -i - 2; // index of the highest floor below balance
+        return i < 0 ? 0.0 : rates[i];
+    }
+
+    public String tiersString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < floors.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(floors[i]).append(':').append(rates[i]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return name + " every " + periodMillis + " ms, tiers " + tiersString();
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Runs per-account InterestPlans on the TimingWheel.
+//
+// Accounts on the same plan form a cohort with one fixed rate wheel job, so a
+// tick only touches the members of the plans that are due. The global
+// interest run skips them. A million accounts over a thousand plans is a
+// thousand timers, and each run is a pass over one cohort's members.
+//
+// An account that joins a plan gets its first credit at the cohort's next
+// run, not a full period after joining.
+public class InterestScheduler {
+
+    private final BankService bankService;
+    private final AccountStore accountStore;
+    private final TimingWheel wheel;
+    private final Executor executor; // null runs cohorts on the wheel thread
+
+    private final Map<String, Cohort> cohorts = new ConcurrentHashMap<>();
+    private final Map<String, String> assignments = new ConcurrentHashMap<>(); // username -> plan name
+
+    private final class Cohort {
+        volatile InterestPlan plan;
+        final Set<Account> members = ConcurrentHashMap.newKeySet();
+        final TimingWheel.Timeout job;
+
+        Cohort(InterestPlan plan) {
+            this.plan = plan;
+            this.job = wheel.scheduleAtFixedRate(this::due, plan.getPeriodMillis(), plan.getPeriodMillis());
+        }
+
+        // on the wheel thread, the credits themselves go to the executor
+        private void due() {
+            if (members.isEmpty()) return;
+            if (executor == null) {
+                run();
+            } else {
+                executor.execute(this::run);
+            }
+        }
+
+        private void run() {
+            InterestPlan current = plan;
+            int credited = bankService.applyInterest(current, members);
+            System.out.println("[INTEREST] Plan " + current.getName() + " credited " + credited +
+                    " of " + members.size() + " accounts");
+        }
+    }
+
+    public InterestScheduler(BankService bankService, AccountStore accountStore, TimingWheel wheel, Executor executor) {
+        if (bankService == null || accountStore == null || wheel == null) {
+            throw new IllegalArgumentException("BankService, AccountStore and TimingWheel must not be null");
+        }
+        this.bankService = bankService;
+        this.accountStore = accountStore;
+        this.wheel = wheel;
+        this.executor = executor;
+    }
+
+    // Adds a plan, or replaces the terms of the plan with the same name
+    public synchronized void definePlan(InterestPlan plan) {
+        if (plan == null) {
+            throw new IllegalArgumentException("Plan must not be null");
+        }
+        Cohort cohort = cohorts.get(plan.getName());
+        if (cohort == null) {
+            cohorts.put(plan.getName(), new Cohort(plan));
+            return;
+        }
+        long oldPeriod = cohort.plan.getPeriodMillis();
+        cohort.plan = plan;
+        for (Account acc : cohort.members) {
+            acc.setInterestPlan(plan);
+        }
+        if (plan.getPeriodMillis() != oldPeriod) {
+            cohort.job.setPeriod(plan.getPeriodMillis());
+        }
+    }
+
+    // Members go back to the global rate
+    public synchronized boolean removePlan(String planName) {
+        Cohort cohort = cohorts.remove(planName);
+        if (cohort == null) return false;
+        cohort.job.cancel();
+        for (Account acc : cohort.members) {
+            acc.setInterestPlan(null);
+            assignments.remove(acc.getUsername());
+        }
+        return true;
+    }
+
+    public synchronized void assign(String username, String planName) {
+        Account acc = accountStore.getAccount(username);
+        if (acc == null) {
+            throw new IllegalArgumentException("No such account: " + username);
+        }
+        Cohort cohort = cohorts.get(planName);
+        if (cohort == null) {
+            throw new IllegalArgumentException("No such plan: " + planName);
+        }
+        leaveCohort(acc);
+        cohort.members.add(acc);
+        acc.setInterestPlan(cohort.plan);
+        assignments.put(username, planName);
+    }
+
+    // Back to the global rate. Returns false if the account had no plan.
+    public synchronized boolean unassign(String username) {
+        Account acc = accountStore.getAccount(username);
+        if (acc == null || !assignments.containsKey(username)) return false;
+        leaveCohort(acc);
+        acc.setInterestPlan(null);
+        return true;
+    }
+
+    private void leaveCohort(Account acc) {
+        String previous = assignments.remove(acc.getUsername());
+        if (previous != null) {
+            Cohort old = cohorts.get(previous);
+            if (old != null) {
+                old.members.remove(acc);
+            }
+        }
+    }
+
+    public InterestPlan getPlan(String planName) {
+        Cohort cohort = cohorts.get(planName);
+        return cohort == null ? null : cohort.plan;
+    }
+
+    // Plan name for username, null if on the global rate
+    public String planOf(String username) {
+        return assignments.get(username);
+    }
+
+    public int memberCount(String planName) {
+        Cohort cohort = cohorts.get(planName);
+        return cohort == null ? 0 : cohort.members.size();
+    }
+
+    // Plans ordered by name
+    public List<InterestPlan> plans() {
+        List<InterestPlan> list = new ArrayList<>();
+        for (Cohort c : cohorts.values()) {
+            list.add(c.plan);
+        }
+        list.sort(Comparator.comparing(InterestPlan::getName));
+        return list;
+    }
+
+    public void stop() {
+        for (Cohort c : cohorts.values()) {
+            c.job.cancel();
+        }
+    }
+
+    // persistence, one row per plan and one per assignment:
+    //   plan;name;periodMillis;floor:rate,floor:rate
+    //   assign;username;planName
+
+    public synchronized void saveTo(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (InterestPlan plan : plans()) {
+                writer.write("plan;" + plan.getName() + ";" + plan.getPeriodMillis() + ";" + plan.tiersString());
+                writer.newLine();
+            }
+            for (Map.Entry<String, String> e : assignments.entrySet()) {
+                writer.write("assign;" + e.getKey() + ";" + e.getValue());
+                writer.newLine();
+            }
+        }
+    }
+
+    // Plans are defined first, so assignments may come before or after them in the file
+    public synchronized void loadFrom(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return; // nothing to load yet
+        }
+        List<String[]> pending = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";");
+                try {
+                    if (parts.length == 4 && parts[0].equals("plan")) {
+                        definePlan(InterestPlan.parse(parts[1], Long.parseLong(parts[2]), parts[3]));
+                    } else if (parts.length == 3 && parts[0].equals("assign")) {
+                        pending.add(parts);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // skip bad rows
+                }
+            }
+        }
+        for (String[] parts : pending) {
+            try {
+                assign(parts[1], parts[2]);
+            } catch (IllegalArgumentException e) {
+                // account or plan is gone
+            }
+        }
+    }
+}
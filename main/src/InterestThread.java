@@ -1,5 +1,8 @@
 import java.time.Instant;
+import java.util.concurrent.Executor;
 
+// Applies interest every period. The server schedules it as a fixed rate job
+// on its TimingWheel; run() is the older stand-alone sleep loop.
 public class InterestThread implements Runnable {
 
     private final BankService bankService;
@@ -8,6 +11,10 @@ public class InterestThread implements Runnable {
     private volatile double rate;
     private volatile long periodMillis;
     private volatile boolean running = true;
+    // where interest is applied, null applies it on this thread
+    private volatile Executor executor;
+    // set when scheduled on a TimingWheel
+    private volatile TimingWheel.Timeout job;
 
     public InterestThread(BankService bankService, double initialRate, long initialPeriodMillis) {
         if (bankService == null) {
@@ -41,13 +48,33 @@ public class InterestThread implements Runnable {
             throw new IllegalArgumentException("Interest period must be > 0");
         }
         this.periodMillis = newPeriodMillis;
+        TimingWheel.Timeout j = job;
+        if (j != null) {
+            j.setPeriod(newPeriodMillis); // takes effect now, not after the current wait
+        }
         System.out.println("[INTEREST] Period changed to " + newPeriodMillis + " ms");
     }
 
 
+    // Hand each interest run to executor, e.g. the pool's SYSTEM lane,
+    // so this thread only keeps time
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    // Runs interest as a fixed rate job on wheel instead of a thread of its own
+    public void schedule(TimingWheel wheel) {
+        job = wheel.scheduleAtFixedRate(this::applyOnce, periodMillis, periodMillis);
+        System.out.println("[INTEREST] Scheduled every " + periodMillis + " ms.");
+    }
+
     //Request the thread to stop after the current sleep/iteration.
     public void stopRunning() {
         this.running = false;
+        TimingWheel.Timeout j = job;
+        if (j != null) {
+            j.cancel();
+        }
     }
 
     @Override
@@ -63,11 +90,7 @@ public class InterestThread implements Runnable {
                     break;
                 }
 
-                double currentRate = rate;
-                System.out.println("[INTEREST] Applying interest at rate "
-                        + currentRate + " at " + Instant.now());
-
-                bankService.applyInterest(currentRate);
+                applyOnce();
 
             } catch (InterruptedException e) {
                 // If interrupted, exit
@@ -82,4 +105,21 @@ public class InterestThread implements Runnable {
 
         System.out.println("[INTEREST] Background interest thread stopping.");
     }
+
+    private void applyOnce() {
+        if (!running) return;
+        double currentRate = rate;
+        Executor target = executor;
+        if (target == null) {
+            applyInterest(currentRate);
+        } else {
+            target.execute(() -> applyInterest(currentRate));
+        }
+    }
+
+    private void applyInterest(double currentRate) {
+        System.out.println("[INTEREST] Applying interest at rate "
+                + currentRate + " at " + Instant.now());
+        bankService.applyInterest(currentRate);
+    }
 }
@@ -0,0 +1,120 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram in the style of HdrHistogram, for latencies in nanoseconds.
+//
+// Values below 2^SUB_BITS get their own bucket. Above that, every power of two
+// range is split into 2^SUB_BITS equal buckets, so any recorded value is
+// reported within 1/128 (< 0.8%) of its true value. Recording is a few shifts
+// and a few uncontended atomic adds, so many threads can share one histogram.
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // LongAdders so threads recording at once don't fight over one counter
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexFor(value));
+        total.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) break;
+        }
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    // Sum of all recorded values
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = total.sum();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    // Value at the given percentile (0-100), reported as the top of its bucket
+    public long percentile(double p) {
+        if (p < 0 || p > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long n = total.sum();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Adds all of other's samples into this histogram
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        long m;
+        long otherMax = other.max.get();
+        while (otherMax > (m = max.get())) {
+            if (max.compareAndSet(m, otherMax)) break;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int indexFor(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_COUNT;
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / SUB_COUNT;
+        int sub = (index - SUB_COUNT) % SUB_COUNT;
+        return (long) (SUB_COUNT + sub) << shift;
+    }
+
+    static long upperBound(int index) {
+        if (index + 1 >= BUCKETS) return Long.MAX_VALUE;
+        return lowerBound(index + 1) - 1;
+    }
+
+    // Summary in microseconds, e.g. "n=1000 mean=52.1us p50=48us p99=120us p999=410us max=980us"
+    public String summaryMicros() {
+        return String.format("n=%d mean=%.1fus p50=%dus p99=%dus p999=%dus max=%dus",
+                getCount(), getMean() / 1000.0,
+                percentile(50) / 1000, percentile(99) / 1000, percentile(99.9) / 1000, getMax() / 1000);
+    }
+}
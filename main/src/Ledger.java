@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.io.BufferedReader;
@@ -14,41 +15,299 @@ public class Ledger implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    // First line of an interest batch in the ledger file:
+    //   #interestBatch;id;epochMillis;rate;plan;count
+    // followed by count lines of user;amount
+    static final String BATCH_HEADER = "#interestBatch";
+
     // Single shared list of all transactions in the system
     private final List<Transaction> transactions = new ArrayList<>();
+    // Interest runs, each placed before the transaction at its position
+    private final List<BatchAt> batches = new ArrayList<>();
+    // written under the lock, volatile so metrics can read them without it
+    private volatile long size = 0; // rows, counting each batched credit
+    private volatile long appends = 0; // append calls since start, a batch is one
+
+    // Time index. Positions in transactions are cut into blocks of
+    // BLOCK_SIZE, and each block keeps the earliest and latest time of its
+    // rows and of the batches placed in it, in nanoseconds since the epoch.
+    // Rows are close to time order, so a time range overlaps a few
+    // neighbouring blocks and range queries scan only those.
+    private static final int BLOCK_SIZE = 1024;
+    private long[] blockMinNanos = new long[16];
+    private long[] blockMaxNanos = new long[16];
+    private int blocks = 0;
+
+    // Totals per type per hour and day, and per user in/out, kept up to date
+    // by addRow/addBatch so reports don't scan the rows
+    private final LedgerRollups rollups = new LedgerRollups();
+    // Each user's balance changes in time order, with checkpoints
+    private final BalanceHistory history = new BalanceHistory();
+
+    // Snapshot window, see openSnapshotWindow(). While open, the write
+    // epoch of each row and batch added is kept, indexed from the first
+    // added after it opened.
+    private boolean windowOpen = false;
+    private int windowFirstRow;
+    private int windowFirstBatch;
+    private long[] windowRowEpochs = new long[16];
+    private long[] windowBatchEpochs = new long[16];
+
+    // What a snapshot sees of the ledger: the rows and batches before
+    // rows/batches, less the ones written after its epoch
+    static final class Mark {
+        final int rows;
+        final int batches;
+        final int[] hiddenRows; // positions, ascending
+        final int[] hiddenBatches; // indexes into batches, ascending
+
+        Mark(int rows, int batches, int[] hiddenRows, int[] hiddenBatches) {
+            this.rows = rows;
+            this.batches = batches;
+            this.hiddenRows = hiddenRows;
+            this.hiddenBatches = hiddenBatches;
+        }
+    }
+
+    private static final class BatchAt implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int position;
+        final InterestBatch batch;
+
+        BatchAt(int position, InterestBatch batch) {
+            this.position = position;
+            this.batch = batch;
+        }
+    }
 
     public Ledger() {
     }
 
     // new transaction to ledger
-    public synchronized void append(Transaction t) {
+    public void append(Transaction t) {
         if (t == null) {
             throw new IllegalArgumentException("Transaction cannot be null");
         }
+        BankEvents.LedgerAppend event = new BankEvents.LedgerAppend();
+        event.begin();
+        long waitStart = event.isEnabled() ? System.nanoTime() : 0;
+        synchronized (this) {
+            if (waitStart != 0) {
+                event.lockWait = System.nanoTime() - waitStart;
+            }
+            addRow(t);
+            appends++;
+        }
+        if (event.shouldCommit()) {
+            event.type = t.getType().name();
+            event.rows = 1;
+            event.commit();
+        }
+    }
+
+    // One record for a whole interest run instead of a row per account
+    public void appendInterestBatch(InterestBatch batch) {
+        if (batch == null) {
+            throw new IllegalArgumentException("Batch cannot be null");
+        }
+        BankEvents.LedgerAppend event = new BankEvents.LedgerAppend();
+        event.begin();
+        long waitStart = event.isEnabled() ? System.nanoTime() : 0;
+        synchronized (this) {
+            if (waitStart != 0) {
+                event.lockWait = System.nanoTime() - waitStart;
+            }
+            addBatch(batch);
+            appends++;
+        }
+        if (event.shouldCommit()) {
+            event.type = "INTEREST_BATCH";
+            event.rows = batch.size();
+            event.commit();
+        }
+    }
+
+    // under the lock
+    private void addRow(Transaction t) {
+        indexTime(transactions.size(), t.getTime());
         transactions.add(t);
+        rollups.add(t);
+        history.add(t);
+        if (windowOpen) {
+            windowRowEpochs = tag(windowRowEpochs, transactions.size() - 1 - windowFirstRow);
+        }
+        size++;
     }
+
+    // under the lock
+    private void addBatch(InterestBatch batch) {
+        if (batch.size() == 0) return;
+        indexTime(transactions.size(), batch.getTime());
+        batches.add(new BatchAt(transactions.size(), batch));
+        rollups.add(batch);
+        history.add(batch);
+        if (windowOpen) {
+            windowBatchEpochs = tag(windowBatchEpochs, batches.size() - 1 - windowFirstBatch);
+        }
+        size += batch.size();
+    }
+
+    // Records the write epoch of this thread's scope at i, 0 if it has none
+    private static long[] tag(long[] epochs, int i) {
+        if (i == epochs.length) {
+            epochs = Arrays.copyOf(epochs, epochs.length * 2);
+        }
+        epochs[i] = Epochs.currentWriteEpoch();
+        return epochs;
+    }
+
+    // BankService calls this just before Epochs.pin(). Rows added before it
+    // were all written at epochs up to the pinned one; rows added between it
+    // and closeSnapshotWindow() may be from either side, so their epochs are
+    // kept to sort them out.
+    synchronized void openSnapshotWindow() {
+        windowOpen = true;
+        windowFirstRow = transactions.size();
+        windowFirstBatch = batches.size();
+    }
+
+    // After the pin, marks what a snapshot at epoch sees. Rows added in the
+    // window outside any write scope have epoch 0 and count as later.
+    synchronized Mark closeSnapshotWindow(long epoch) {
+        windowOpen = false;
+        int rows = transactions.size();
+        int batchCount = batches.size();
+        return new Mark(rows, batchCount,
+                hidden(windowRowEpochs, windowFirstRow, rows - windowFirstRow, epoch),
+                hidden(windowBatchEpochs, windowFirstBatch, batchCount - windowFirstBatch, epoch));
+    }
+
+    private static int[] hidden(long[] epochs, int first, int count, long epoch) {
+        int n = 0;
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (epochs[i] == 0 || epochs[i] > epoch) {
+                result[n++] = first + i;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // all() as a snapshot marked by closeSnapshotWindow() sees it
+    synchronized List<Transaction> all(Mark mark) {
+        List<Transaction> result = new ArrayList<>(mark.rows);
+        int b = 0;
+        int hr = 0;
+        int hb = 0;
+        for (int i = 0; i <= mark.rows; i++) {
+            for (; b < mark.batches && batches.get(b).position == i; b++) {
+                if (hb < mark.hiddenBatches.length && mark.hiddenBatches[hb] == b) {
+                    hb++;
+                    continue;
+                }
+                batches.get(b).batch.expandInto(result);
+            }
+            if (i < mark.rows) {
+                if (hr < mark.hiddenRows.length && mark.hiddenRows[hr] == i) {
+                    hr++;
+                    continue;
+                }
+                result.add(transactions.get(i));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private void indexTime(int position, Instant time) {
+        int block = position / BLOCK_SIZE;
+        if (block >= blockMinNanos.length) {
+            blockMinNanos = Arrays.copyOf(blockMinNanos, blockMinNanos.length * 2);
+            blockMaxNanos = Arrays.copyOf(blockMaxNanos, blockMaxNanos.length * 2);
+        }
+        for (; blocks <= block; blocks++) {
+            blockMinNanos[blocks] = Long.MAX_VALUE;
+            blockMaxNanos[blocks] = Long.MIN_VALUE;
+        }
+        long nanos = epochNanos(time);
+        blockMinNanos[block] = Math.min(blockMinNanos[block], nanos);
+        blockMaxNanos[block] = Math.max(blockMaxNanos[block], nanos);
+    }
+
+    private static long epochNanos(Instant time) {
+        return time.getEpochSecond() * 1_000_000_000L + time.getNano();
+    }
+
     public synchronized void saveTo(Path path) throws IOException {
+        BankEvents.LedgerPersist event = new BankEvents.LedgerPersist();
+        event.begin();
         try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
-            for (Transaction t : transactions) {
-                writer.write(format(t));
-                writer.newLine();
+            int b = 0;
+            for (int i = 0; i <= transactions.size(); i++) {
+                for (; b < batches.size() && batches.get(b).position == i; b++) {
+                    writeBatch(writer, batches.get(b).batch);
+                }
+                if (i < transactions.size()) {
+                    writer.write(format(transactions.get(i)));
+                    writer.newLine();
+                }
             }
         }
+        commitPersist(event, "save", path);
+    }
+
+    private void commitPersist(BankEvents.LedgerPersist event, String operation, Path path) throws IOException {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.path = path.toString();
+            event.rows = size;
+            event.bytes = Files.size(path);
+            event.commit();
+        }
+    }
+
+    private void writeBatch(BufferedWriter writer, InterestBatch batch) throws IOException {
+        writer.write(BATCH_HEADER + ";" + batch.getId() + ";" +
+                batch.getTime().toEpochMilli() + ";" +
+                batch.getRate() + ";" +
+                (batch.getPlan() == null ? "" : batch.getPlan()) + ";" +
+                batch.size());
+        writer.newLine();
+        for (int i = 0; i < batch.size(); i++) {
+            writer.write(batch.getUser(i) + ";" + batch.getAmount(i));
+            writer.newLine();
+        }
     }
 
     public synchronized void loadFrom(Path path) throws IOException {
         transactions.clear();
+        batches.clear();
+        size = 0;
+        blocks = 0;
+        rollups.clear();
+        history.clear();
+        windowOpen = false;
         if (!Files.exists(path)) return;
 
+        BankEvents.LedgerPersist event = new BankEvents.LedgerPersist();
+        event.begin();
+
         try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
             String line;
             while ((line = reader.readLine()) != null) {
+                if (line.startsWith(BATCH_HEADER + ";")) {
+                    InterestBatch batch = readBatch(line, reader);
+                    if (batch != null) {
+                        addBatch(batch);
+                    }
+                    continue;
+                }
                 Transaction t = parse(line);
                 if (t != null) {
-                    transactions.add(t);
+                    addRow(t);
                 }
             }
         }
+        commitPersist(event, "load", path);
     }
 
     private String format(Transaction t) {
@@ -63,7 +322,8 @@ public class Ledger implements Serializable {
                 t.getAmount();
     }
 
-    private Transaction parse(String line) {
+    // null for a line that isn't a valid row
+    static Transaction parse(String line) {
         String[] parts = line.split(";", -1);
         if (parts.length != 6) return null;
         try {
@@ -79,19 +339,197 @@ public class Ledger implements Serializable {
         }
     }
 
-    // user transactions
+    // Reads the user;amount lines after a batch header. Returns null for a
+    // damaged batch, its lines are still consumed.
+    private InterestBatch readBatch(String header, BufferedReader reader) throws IOException {
+        String[] lines = new String[batchCount(header)];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = reader.readLine();
+            if (lines[i] == null) return null;
+        }
+        return parseBatch(header, lines);
+    }
+
+    // Number of user;amount lines that follow a batch header, 0 if it's damaged
+    static int batchCount(String header) {
+        String[] parts = header.split(";", -1);
+        try {
+            return parts.length == 6 ? Math.max(Integer.parseInt(parts[5]), 0) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // The batch for a header and its batchCount() lines, null if any is damaged
+    static InterestBatch parseBatch(String header, String[] lines) {
+        String[] parts = header.split(";", -1);
+        if (parts.length != 6) return null;
+        String[] users = new String[lines.length];
+        long[] amounts = new long[lines.length];
+        try {
+            for (int i = 0; i < lines.length; i++) {
+                int sep = lines[i].lastIndexOf(';');
+                users[i] = lines[i].substring(0, sep);
+                amounts[i] = Long.parseLong(lines[i].substring(sep + 1));
+            }
+            return new InterestBatch(parts[1], Instant.ofEpochMilli(Long.parseLong(parts[2])),
+                    Double.parseDouble(parts[3]), parts[4].isEmpty() ? null : parts[4], users, amounts);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Rows in the ledger, as all() would return them
+    public long size() {
+        return size;
+    }
+
+    // Appends since this ledger was created, a whole batch counts once
+    public long appendCount() {
+        return appends;
+    }
+
+    // user transactions, interest batches included
     public synchronized List<Transaction> findUser(String username) {
         List<Transaction> result = new ArrayList<>();
-        for (Transaction t : transactions) {
-            if (username.equals(t.getFrom()) || username.equals(t.getTo())) {
-                result.add(t);
+        int b = 0;
+        for (int i = 0; i <= transactions.size(); i++) {
+            for (; b < batches.size() && batches.get(b).position == i; b++) {
+                Transaction credit = batches.get(b).batch.find(username);
+                if (credit != null) {
+                    result.add(credit);
+                }
+            }
+            if (i < transactions.size()) {
+                Transaction t = transactions.get(i);
+                if (username.equals(t.getFrom()) || username.equals(t.getTo())) {
+                    result.add(t);
+                }
             }
         }
         return Collections.unmodifiableList(result);
     }
 
-    // all transactions
+    // Transactions with from <= time < to, in ledger order
+    public List<Transaction> between(Instant from, Instant to) {
+        return between(from, to, null);
+    }
+
+    // Same, only username's, or everyone's if username is null
+    public synchronized List<Transaction> between(Instant from, Instant to, String username) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Range needs a start and an end");
+        }
+        List<Transaction> result = new ArrayList<>();
+        long lo = epochNanos(from);
+        long hi = epochNanos(to);
+        for (int block = 0; block < blocks; block++) {
+            if (blockMaxNanos[block] < lo || blockMinNanos[block] >= hi) continue;
+            int start = block * BLOCK_SIZE;
+            int end = Math.min(start + BLOCK_SIZE, transactions.size() + 1);
+            int b = firstBatchAt(start);
+            for (int i = start; i < end; i++) {
+                for (; b < batches.size() && batches.get(b).position == i; b++) {
+                    InterestBatch batch = batches.get(b).batch;
+                    if (!inRange(batch.getTime(), from, to)) continue;
+                    if (username == null) {
+                        batch.expandInto(result);
+                    } else {
+                        Transaction credit = batch.find(username);
+                        if (credit != null) {
+                            result.add(credit);
+                        }
+                    }
+                }
+                if (i < transactions.size()) {
+                    Transaction t = transactions.get(i);
+                    if (inRange(t.getTime(), from, to) && (username == null
+                            || username.equals(t.getFrom()) || username.equals(t.getTo()))) {
+                        result.add(t);
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // Totals per UTC hour starting in [from, to), hours without rows left out
+    public synchronized List<LedgerRollups.Totals> hourlyTotals(Instant from, Instant to) {
+        return rollups.hourly(from, to);
+    }
+
+    // Totals per UTC day starting in [from, to)
+    public synchronized List<LedgerRollups.Totals> dailyTotals(Instant from, Instant to) {
+        return rollups.daily(from, to);
+    }
+
+    public synchronized LedgerRollups.Flow flowOf(String username) {
+        return rollups.flowOf(username);
+    }
+
+    // In/out totals of every user that appears in the ledger
+    public synchronized List<LedgerRollups.Flow> flows() {
+        return rollups.allFlows();
+    }
+
+    // Net change to username's balance from the rows at or before time
+    public synchronized long balanceChangeUntil(String username, Instant time) {
+        if (username == null || time == null) {
+            throw new IllegalArgumentException("Username and time must not be null");
+        }
+        return history.changeUntil(username, time);
+    }
+
+    // Blocks a range query from..to would scan
+    synchronized int blocksOverlapping(Instant from, Instant to) {
+        long lo = epochNanos(from);
+        long hi = epochNanos(to);
+        int n = 0;
+        for (int block = 0; block < blocks; block++) {
+            if (blockMaxNanos[block] >= lo && blockMinNanos[block] < hi) n++;
+        }
+        return n;
+    }
+
+    private static boolean inRange(Instant time, Instant from, Instant to) {
+        return !time.isBefore(from) && time.isBefore(to);
+    }
+
+    // index of the first batch at or after position
+    private int firstBatchAt(int position) {
+        int lo = 0;
+        int hi = batches.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (batches.get(mid).position < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // all transactions, each interest batch expanded to a row per credit
     public synchronized List<Transaction> all() {
-        return Collections.unmodifiableList(new ArrayList<>(transactions));
+        List<Transaction> result = new ArrayList<>(transactions.size() + batchedCredits());
+        int b = 0;
+        for (int i = 0; i <= transactions.size(); i++) {
+            for (; b < batches.size() && batches.get(b).position == i; b++) {
+                batches.get(b).batch.expandInto(result);
+            }
+            if (i < transactions.size()) {
+                result.add(transactions.get(i));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private int batchedCredits() {
+        int n = 0;
+        for (BatchAt b : batches) {
+            n += b.batch.size();
+        }
+        return n;
     }
 }
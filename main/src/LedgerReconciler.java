@@ -0,0 +1,316 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Checks saved balances against the ledger file.
+//
+// Every account starts at AccountStore.INITIAL_BALANCE and only changes
+// through rows in the ledger, so replaying a user's rows from there must
+// give their balance. The file is streamed: this thread reads lines into
+// chunks, an interest batch always whole in one chunk, and worker threads
+// parse the chunks and sum a delta per user. Memory grows with the number
+// of users, not the length of the ledger.
+//
+// Run on the saved files with
+//   java LedgerReconciler [ledger.txt] [accounts.txt] [threads]
+// which exits with status 1 if anything disagrees.
+public class LedgerReconciler {
+
+    private static final int CHUNK_LINES = 8192;
+    private static final int MAX_LISTED = 1000; // discrepancies kept in a report
+    private static final String[] END = new String[0];
+
+    // A user whose replayed balance isn't what the store holds
+    public static final class Discrepancy {
+        private final String user;
+        private final long replayed;
+        private final Long actual; // null when the user has no account
+
+        private Discrepancy(String user, long replayed, Long actual) {
+            this.user = user;
+            this.replayed = replayed;
+            this.actual = actual;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public long getReplayed() {
+            return replayed;
+        }
+
+        public Long getActual() {
+            return actual;
+        }
+
+        @Override
+        public String toString() {
+            if (actual == null) {
+                return user + ": in the ledger but has no account, replayed " + replayed;
+            }
+            return user + ": balance " + actual + ", ledger gives " + replayed
+                    + " (off by " + (actual - replayed) + ")";
+        }
+    }
+
+    public static final class Report {
+        private final long rows;
+        private final int ledgerUsers;
+        private final int accounts;
+        private final long discrepancyCount;
+        private final List<Discrepancy> discrepancies;
+        private final long millis;
+
+        private Report(long rows, int ledgerUsers, int accounts, long discrepancyCount,
+                       List<Discrepancy> discrepancies, long millis) {
+            this.rows = rows;
+            this.ledgerUsers = ledgerUsers;
+            this.accounts = accounts;
+            this.discrepancyCount = discrepancyCount;
+            this.discrepancies = discrepancies;
+            this.millis = millis;
+        }
+
+        // Ledger rows replayed, each batched credit counted
+        public long getRows() {
+            return rows;
+        }
+
+        public int getLedgerUsers() {
+            return ledgerUsers;
+        }
+
+        public int getAccounts() {
+            return accounts;
+        }
+
+        public long getDiscrepancyCount() {
+            return discrepancyCount;
+        }
+
+        // The first MAX_LISTED discrepancies found
+        public List<Discrepancy> getDiscrepancies() {
+            return discrepancies;
+        }
+
+        public boolean isClean() {
+            return discrepancyCount == 0;
+        }
+
+        @Override
+        public String toString() {
+            return rows + " rows for " + ledgerUsers + " users replayed against " + accounts
+                    + " accounts in " + millis + " ms, " + discrepancyCount + " discrepancies";
+        }
+    }
+
+    private final int threads;
+
+    public LedgerReconciler(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be > 0");
+        }
+        this.threads = threads;
+    }
+
+    public Report reconcile(Path ledgerFile, Collection<Account> accounts) throws IOException {
+        long start = System.nanoTime();
+        long[] rows = new long[1];
+        Map<String, long[]> replayed = replay(ledgerFile, rows);
+        int ledgerUsers = replayed.size();
+
+        List<Discrepancy> found = new ArrayList<>();
+        long count = 0;
+        for (Account account : accounts) {
+            long[] d = replayed.remove(account.getUsername());
+            long expected = AccountStore.INITIAL_BALANCE + (d == null ? 0 : d[0]);
+            long balance = account.getBalance();
+            if (balance != expected) {
+                if (found.size() < MAX_LISTED) {
+                    found.add(new Discrepancy(account.getUsername(), expected, balance));
+                }
+                count++;
+            }
+        }
+        for (Map.Entry<String, long[]> e : replayed.entrySet()) {
+            if (found.size() < MAX_LISTED) {
+                found.add(new Discrepancy(e.getKey(), AccountStore.INITIAL_BALANCE + e.getValue()[0], null));
+            }
+            count++; // left over, so no account has this name
+        }
+        return new Report(rows[0], ledgerUsers, accounts.size(), count, found,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // user -> {net change}, adds the rows replayed to rows[0]
+    private Map<String, long[]> replay(Path ledgerFile, long[] rows) throws IOException {
+        BlockingQueue<String[]> chunks = new ArrayBlockingQueue<>(threads * 2);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Map<String, long[]>> partials = new ArrayList<>();
+        long[] workerRows = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Map<String, long[]> partial = new HashMap<>();
+            partials.add(partial);
+            int id = i;
+            workers[i] = new Thread(() -> workerRows[id] = work(chunks, partial, failure), "reconciler-" + i);
+            workers[i].start();
+        }
+
+        try {
+            if (Files.exists(ledgerFile)) {
+                readChunks(ledgerFile, chunks);
+            }
+        } finally {
+            try {
+                for (int i = 0; i < threads; i++) {
+                    chunks.put(END);
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Thread worker : workers) {
+                    worker.interrupt();
+                }
+                throw new IllegalStateException("Interrupted while reconciling");
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Reconciliation failed", failure.get());
+        }
+
+        // joined, so the workers' maps and counts are visible here
+        Map<String, long[]> merged = partials.get(0);
+        for (int i = 1; i < partials.size(); i++) {
+            for (Map.Entry<String, long[]> e : partials.get(i).entrySet()) {
+                merged.computeIfAbsent(e.getKey(), u -> new long[1])[0] += e.getValue()[0];
+            }
+        }
+        for (long n : workerRows) {
+            rows[0] += n;
+        }
+        return merged;
+    }
+
+    // Cuts the file into chunks of about CHUNK_LINES lines, never inside a batch
+    private static void readChunks(Path ledgerFile, BlockingQueue<String[]> chunks) throws IOException {
+        List<String> chunk = new ArrayList<>(CHUNK_LINES);
+        try (BufferedReader reader = Files.newBufferedReader(ledgerFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                chunk.add(line);
+                if (line.startsWith(Ledger.BATCH_HEADER + ";")) {
+                    for (int i = Ledger.batchCount(line); i > 0 && (line = reader.readLine()) != null; i--) {
+                        chunk.add(line);
+                    }
+                }
+                if (chunk.size() >= CHUNK_LINES) {
+                    put(chunks, chunk.toArray(new String[0]));
+                    chunk.clear();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            put(chunks, chunk.toArray(new String[0]));
+        }
+    }
+
+    private static void put(BlockingQueue<String[]> chunks, String[] chunk) {
+        try {
+            chunks.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reconciling");
+        }
+    }
+
+    // Runs until END and returns the rows replayed. After a failure it keeps
+    // taking chunks so the reader never blocks.
+    private static long work(BlockingQueue<String[]> chunks, Map<String, long[]> partial,
+                             AtomicReference<Throwable> failure) {
+        long rows = 0;
+        try {
+            String[] chunk;
+            while ((chunk = chunks.take()) != END) {
+                if (failure.get() == null) {
+                    try {
+                        rows += replayChunk(chunk, partial);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return rows;
+    }
+
+    // Same rules as Ledger.loadFrom, damaged rows and batches are skipped
+    private static long replayChunk(String[] chunk, Map<String, long[]> partial) {
+        long rows = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            String line = chunk[i];
+            if (line.startsWith(Ledger.BATCH_HEADER + ";")) {
+                int count = Ledger.batchCount(line);
+                if (i + count >= chunk.length) break; // file ended inside the batch
+                String[] lines = new String[count];
+                System.arraycopy(chunk, i + 1, lines, 0, count);
+                i += count;
+                InterestBatch batch = Ledger.parseBatch(line, lines);
+                if (batch == null) continue;
+                for (int j = 0; j < batch.size(); j++) {
+                    add(partial, batch.getUser(j), batch.getAmount(j));
+                }
+                rows += batch.size();
+                continue;
+            }
+            Transaction t = Ledger.parse(line);
+            if (t == null) continue;
+            if (t.getFrom() != null) {
+                add(partial, t.getFrom(), -t.getAmount());
+            }
+            if (t.getTo() != null) {
+                add(partial, t.getTo(), t.getAmount());
+            }
+            rows++;
+        }
+        return rows;
+    }
+
+    private static void add(Map<String, long[]> partial, String user, long delta) {
+        partial.computeIfAbsent(user, u -> new long[1])[0] += delta;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path ledgerFile = Path.of(args.length > 0 ? args[0] : "ledger.txt");
+        Path accountsFile = Path.of(args.length > 1 ? args[1] : "accounts.txt");
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        AccountStore store = new AccountStore();
+        store.loadFrom(accountsFile);
+        Report report = new LedgerReconciler(threads).reconcile(ledgerFile, store.allAccounts());
+        System.out.println("[RECONCILE] " + report);
+        for (Discrepancy d : report.getDiscrepancies()) {
+            System.out.println(" - " + d);
+        }
+        if (report.getDiscrepancyCount() > report.getDiscrepancies().size()) {
+            System.out.println(" ... and " + (report.getDiscrepancyCount() - report.getDiscrepancies().size()) + " more");
+        }
+        System.exit(report.isClean() ? 0 : 1);
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Running totals over the ledger, for reports that shouldn't scan it.
+//
+// Ledger adds every row and interest batch here as it is appended (or
+// loaded), under its own lock. Kept per UTC hour and per UTC day: a count
+// and an amount sum for each Transaction.Type. Kept per user: money in
+// (deposits, interest, transfers received) and money out (withdrawals,
+// transfers sent). A report reads only the buckets or users it covers.
+public class LedgerRollups implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long HOUR_MILLIS = 3_600_000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    private static final int TYPES = Transaction.Type.values().length;
+
+    // Counts and sums per type for one hour or day
+    public static final class Totals implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Instant start;
+        private final long[] counts = new long[TYPES];
+        private final long[] sums = new long[TYPES];
+
+        private Totals(Instant start) {
+            this.start = start;
+        }
+
+        private Totals copy() {
+            Totals c = new Totals(start);
+            System.arraycopy(counts, 0, c.counts, 0, TYPES);
+            System.arraycopy(sums, 0, c.sums, 0, TYPES);
+            return c;
+        }
+
+        private void add(Transaction.Type type, long count, long sum) {
+            counts[type.ordinal()] += count;
+            sums[type.ordinal()] += sum;
+        }
+
+        public Instant getStart() {
+            return start;
+        }
+
+        public long getCount(Transaction.Type type) {
+            return counts[type.ordinal()];
+        }
+
+        public long getSum(Transaction.Type type) {
+            return sums[type.ordinal()];
+        }
+
+        public long getTotalCount() {
+            long n = 0;
+            for (long c : counts) n += c;
+            return n;
+        }
+
+        // e.g. "2024-05-01T10:00:00Z DEPOSIT 12/3400 WITHDRAWAL 3/200"
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(start.toString());
+            for (Transaction.Type type : Transaction.Type.values()) {
+                if (counts[type.ordinal()] == 0) continue;
+                sb.append(' ').append(type).append(' ')
+                        .append(counts[type.ordinal()]).append('/').append(sums[type.ordinal()]);
+            }
+            return sb.toString();
+        }
+    }
+
+    // Money in and out of one user's account over the whole ledger
+    public static final class Flow implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String user;
+        private long in;
+        private long out;
+
+        private Flow(String user) {
+            this.user = user;
+        }
+
+        private Flow copy() {
+            Flow c = new Flow(user);
+            c.in = in;
+            c.out = out;
+            return c;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public long getIn() {
+            return in;
+        }
+
+        public long getOut() {
+            return out;
+        }
+
+        public long getNet() {
+            return in - out;
+        }
+
+        @Override
+        public String toString() {
+            return user + " in=" + in + " out=" + out + " net=" + getNet();
+        }
+    }
+
+    private final TreeMap<Long, Totals> hours = new TreeMap<>(); // keyed by epoch hour
+    private final TreeMap<Long, Totals> days = new TreeMap<>(); // keyed by epoch day
+    private final Map<String, Flow> flows = new HashMap<>();
+
+    void add(Transaction t) {
+        long millis = t.getTime().toEpochMilli();
+        bucket(hours, millis, HOUR_MILLIS).add(t.getType(), 1, t.getAmount());
+        bucket(days, millis, DAY_MILLIS).add(t.getType(), 1, t.getAmount());
+        if (t.getFrom() != null) {
+            flow(t.getFrom()).out += t.getAmount();
+        }
+        if (t.getTo() != null) {
+            flow(t.getTo()).in += t.getAmount();
+        }
+    }
+
+    void add(InterestBatch batch) {
+        long sum = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            sum += batch.getAmount(i);
+            flow(batch.getUser(i)).in += batch.getAmount(i);
+        }
+        long millis = batch.getTime().toEpochMilli();
+        bucket(hours, millis, HOUR_MILLIS).add(Transaction.Type.INTEREST, batch.size(), sum);
+        bucket(days, millis, DAY_MILLIS).add(Transaction.Type.INTEREST, batch.size(), sum);
+    }
+
+    void clear() {
+        hours.clear();
+        days.clear();
+        flows.clear();
+    }
+
+    private static Totals bucket(TreeMap<Long, Totals> buckets, long millis, long width) {
+        long key = Math.floorDiv(millis, width);
+        Totals totals = buckets.get(key);
+        if (totals == null) {
+            totals = new Totals(Instant.ofEpochMilli(key * width));
+            buckets.put(key, totals);
+        }
+        return totals;
+    }
+
+    private Flow flow(String user) {
+        return flows.computeIfAbsent(user, Flow::new);
+    }
+
+    // Hours that have rows and start in [from, to), oldest first
+    List<Totals> hourly(Instant from, Instant to) {
+        return range(hours, from, to, HOUR_MILLIS);
+    }
+
+    // Same per UTC day
+    List<Totals> daily(Instant from, Instant to) {
+        return range(days, from, to, DAY_MILLIS);
+    }
+
+    private static List<Totals> range(TreeMap<Long, Totals> buckets, Instant from, Instant to, long width) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("Range needs a start and an end");
+        }
+        long lo = Math.floorDiv(from.toEpochMilli() + width - 1, width); // first bucket starting at or after from
+        long hi = Math.floorDiv(to.toEpochMilli() + width - 1, width);
+        List<Totals> result = new ArrayList<>();
+        if (lo >= hi) return result;
+        NavigableMap<Long, Totals> sub = buckets.subMap(lo, true, hi, false);
+        for (Totals t : sub.values()) {
+            result.add(t.copy());
+        }
+        return result;
+    }
+
+    Flow flowOf(String user) {
+        Flow f = flows.get(user);
+        return f == null ? new Flow(user) : f.copy();
+    }
+
+    List<Flow> allFlows() {
+        Collection<Flow> all = flows.values();
+        List<Flow> result = new ArrayList<>(all.size());
+        for (Flow f : all) {
+            result.add(f.copy());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Registry of the server's counters, timers and gauges, written out in the
+// Prometheus text format by scrape().
+//
+// Recording is meant for hot paths: a Counter is a LongAdder, and a Timer
+// spreads its samples over a few LatencyHistograms picked by thread, so
+// threads rarely touch the same cache lines. Both are merged only when
+// scraped. Gauges are read from a supplier at scrape time and cost nothing
+// in between.
+//
+// Metrics are identified by name plus label pairs, e.g.
+//   metrics.timer("bank_operation_seconds", "help text", "op", "deposit")
+// Asking twice for the same series returns the same instrument.
+public class Metrics {
+
+    // a power of two, so a thread's stripe is its id masked
+    private static final int TIMER_STRIPES =
+            Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    // Latencies in nanoseconds, exported in seconds as a summary
+    public static final class Timer {
+        private final LatencyHistogram[] stripes = new LatencyHistogram[TIMER_STRIPES];
+
+        private Timer() {
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new LatencyHistogram();
+            }
+        }
+
+        public void record(long nanos) {
+            stripes[(int) (Thread.currentThread().getId() & (stripes.length - 1))].record(nanos);
+        }
+
+        // All stripes merged into one histogram
+        public LatencyHistogram snapshot() {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (LatencyHistogram h : stripes) {
+                merged.add(h);
+            }
+            return merged;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> series = new LinkedHashMap<>(); // labels -> instrument
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) register(name, help, "counter", labels, Counter::new);
+    }
+
+    // A counter kept elsewhere, e.g. a total the owner already maintains
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "counter", labels, () -> value);
+    }
+
+    public Timer timer(String name, String help, String... labels) {
+        return (Timer) register(name, help, "summary", labels, Timer::new);
+    }
+
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "gauge", labels, () -> value);
+    }
+
+    private synchronized Object register(String name, String help, String type, String[] labels,
+                                         Supplier<Object> factory) {
+        if (name == null || !name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+            throw new IllegalArgumentException("Bad metric name: " + name);
+        }
+        Family family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already a " + family.type);
+        }
+        return family.series.computeIfAbsent(formatLabels(labels), l -> factory.get());
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name, value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // Every metric in the Prometheus text exposition format
+    public String scrape() {
+        List<Family> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(families.values());
+        }
+        StringBuilder out = new StringBuilder();
+        for (Family f : snapshot) {
+            List<Map.Entry<String, Object>> series;
+            synchronized (this) {
+                series = new ArrayList<>(f.series.entrySet());
+            }
+            out.append("# HELP ").append(f.name).append(' ').append(f.help.replace("\n", " ")).append('\n');
+            out.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> e : series) {
+                String labels = e.getKey();
+                Object instrument = e.getValue();
+                if (instrument instanceof Timer) {
+                    writeSummary(out, f.name, labels, ((Timer) instrument).snapshot());
+                } else if (instrument instanceof Counter) {
+                    sample(out, f.name, labels, ((Counter) instrument).get());
+                } else {
+                    long value;
+                    try {
+                        value = ((LongSupplier) instrument).getAsLong();
+                    } catch (RuntimeException ex) {
+                        continue; // leave the series out rather than fail the scrape
+                    }
+                    sample(out, f.name, labels, value);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void writeSummary(StringBuilder out, String name, String labels, LatencyHistogram h) {
+        String sep = labels.isEmpty() ? "" : ",";
+        for (double q : QUANTILES) {
+            out.append(name).append('{').append(labels).append(sep)
+                    .append("quantile=\"").append(q).append("\"} ")
+                    .append(h.percentile(q * 100) / 1e9).append('\n');
+        }
+        out.append(name).append("_sum");
+        appendLabels(out, labels);
+        out.append(' ').append(h.getSum() / 1e9).append('\n');
+        out.append(name).append("_count");
+        appendLabels(out, labels);
+        out.append(' ').append(h.getCount()).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        appendLabels(out, labels);
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void appendLabels(StringBuilder out, String labels) {
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Salted PBKDF2-HMAC-SHA256 password hashes.
+// Stored form: "pbkdf2$<iterations>$<base64 salt>$<base64 hash>", so every
+// hash carries its own cost and the cost can be raised without a reset.
+public final class PasswordHasher {
+
+    public static final int DEFAULT_ITERATIONS = 100_000;
+    public static final int MIN_ITERATIONS = 1_000;
+
+    private static final String PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    public static String hash(String password, int iterations) {
+        if (password == null || password.isBlank()) {
+            throw new IllegalArgumentException("Password must not be empty");
+        }
+        if (iterations < MIN_ITERATIONS) {
+            throw new IllegalArgumentException("Hash cost must be >= " + MIN_ITERATIONS);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return PREFIX + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(hash);
+    }
+
+    public static boolean verify(String candidate, String stored) {
+        if (candidate == null || !isHash(stored)) return false;
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) return false;
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            // constant time comparison
+            return MessageDigest.isEqual(expected, pbkdf2(candidate, salt, iterations));
+        } catch (IllegalArgumentException e) {
+            return false; // corrupt stored hash
+        }
+    }
+
+    public static boolean isHash(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    // Cost the stored hash was made with, or -1 if it is not a hash
+    public static int iterationsOf(String stored) {
+        if (!isHash(stored)) return -1;
+        int end = stored.indexOf('$', PREFIX.length());
+        try {
+            return Integer.parseInt(stored.substring(PREFIX.length(), end));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            return factory.generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("PBKDF2 not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Sampled per-request tracing, to see which stage of a slow request took the time.
+//
+// ClientHandler begins a trace for a sampled fraction of requests. While it
+// is open, code on the same thread calls RequestTracer.stage("name") as each
+// stage finishes, and the trace records a span from the previous stage's end
+// to now. Traces at or over the slow threshold are kept in a ring buffer of
+// the most recent ones for the admin menu.
+//
+// A request that isn't sampled costs one random draw, and each stage() call
+// on it is a ThreadLocal read that finds nothing.
+public class RequestTracer {
+
+    private static final int MAX_SPANS = 32;
+
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+    public static final class Trace {
+        private final String operation;
+        private final String user;
+        private final Instant startedAt;
+        private final long startNanos;
+        private final String[] stages = new String[MAX_SPANS];
+        private final long[] endNanos = new long[MAX_SPANS]; // since startNanos
+        private int spans = 0;
+        private long totalNanos = -1; // set by end()
+
+        private Trace(String operation, String user, long startNanos) {
+            this.operation = operation;
+            this.user = user;
+            this.startNanos = startNanos;
+            this.startedAt = Instant.now().minusNanos(System.nanoTime() - startNanos);
+        }
+
+        private void stage(String name) {
+            if (spans == MAX_SPANS) return;
+            stages[spans] = name;
+            endNanos[spans++] = System.nanoTime() - startNanos;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public Instant getStartedAt() {
+            return startedAt;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public int spanCount() {
+            return spans;
+        }
+
+        public String getStage(int i) {
+            return stages[i];
+        }
+
+        // Span i runs from the end of span i-1 (or the start) to here
+        public long getSpanStartNanos(int i) {
+            return i == 0 ? 0 : endNanos[i - 1];
+        }
+
+        public long getSpanNanos(int i) {
+            return endNanos[i] - getSpanStartNanos(i);
+        }
+
+        // e.g. "2024-01-01T10:00:00Z transfer alice 8214us: read=12us lookup=3us lock=8101us ..."
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(startedAt).append(' ').append(operation).append(' ')
+                    .append(user == null ? "-" : user).append(' ')
+                    .append(totalNanos / 1000).append("us:");
+            for (int i = 0; i < spans; i++) {
+                sb.append(' ').append(stages[i]).append('=').append(getSpanNanos(i) / 1000).append("us");
+            }
+            return sb.toString();
+        }
+    }
+
+    private volatile double sampleRate;
+    private volatile long slowThresholdNanos;
+    private final AtomicReferenceArray<Trace> slowTraces;
+    private final AtomicLong slowCount = new AtomicLong();
+    private final LongAdder sampledCount = new LongAdder();
+
+    public RequestTracer(double sampleRate, long slowThresholdMillis, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        setSampleRate(sampleRate);
+        setSlowThresholdMillis(slowThresholdMillis);
+        this.slowTraces = new AtomicReferenceArray<>(capacity);
+    }
+
+    // Fraction of requests traced, 0 turns tracing off and 1 traces everything
+    public void setSampleRate(double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("sample rate must be between 0 and 1");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSlowThresholdMillis(long slowThresholdMillis) {
+        if (slowThresholdMillis < 0) {
+            throw new IllegalArgumentException("slow threshold must be >= 0");
+        }
+        this.slowThresholdNanos = slowThresholdMillis * 1_000_000;
+    }
+
+    public long getSlowThresholdMillis() {
+        return slowThresholdNanos / 1_000_000;
+    }
+
+    // Starts a trace on this thread if the request is sampled, else returns null.
+    // Pass the result to end() either way.
+    public Trace begin(String operation, String user) {
+        return begin(operation, user, System.nanoTime());
+    }
+
+    // For a request that began before we knew what it was, e.g. at the
+    // start of a frame read. startNanos is a System.nanoTime() value.
+    public Trace begin(String operation, String user, long startNanos) {
+        double rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return null;
+        }
+        Trace trace = new Trace(operation, user, startNanos);
+        CURRENT.set(trace);
+        sampledCount.increment();
+        return trace;
+    }
+
+    // Ends the span of the current stage, if this thread has a trace open
+    public static void stage(String name) {
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.stage(name);
+        }
+    }
+
+    // Closes trace and keeps it if it was slow. null is ignored.
+    public void end(Trace trace) {
+        if (trace == null) return;
+        trace.totalNanos = System.nanoTime() - trace.startNanos;
+        if (CURRENT.get() == trace) {
+            CURRENT.remove();
+        }
+        if (trace.totalNanos >= slowThresholdNanos) {
+            long slot = slowCount.getAndIncrement();
+            slowTraces.set((int) (slot % slowTraces.length()), trace);
+        }
+    }
+
+    // Kept slow traces, newest first
+    public List<Trace> slowTraces() {
+        long count = slowCount.get();
+        int n = (int) Math.min(count, slowTraces.length());
+        List<Trace> result = new ArrayList<>(n);
+        for (long i = count - 1; i >= count - n; i--) {
+            Trace t = slowTraces.get((int) (i % slowTraces.length()));
+            if (t != null) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    public long getSampledCount() {
+        return sampledCount.sum();
+    }
+
+    // Slow traces seen since start, including ones pushed out of the buffer
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+}
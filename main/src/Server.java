@@ -1,61 +1,156 @@
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.HashSet;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Server {
 
     // Files for persistence
     private static final Path ACCOUNTS_FILE = Path.of("accounts.txt");
     private static final Path LEDGER_FILE = Path.of("ledger.txt");
+    private static final Path PLANS_FILE = Path.of("plans.txt");
 
+    private final Metrics metrics = new Metrics();
     private final AccountStore accountStore = new AccountStore();
     private final Ledger ledger = new Ledger();
-    private final BankService bankService = new BankService(accountStore, ledger);
+    private final BankService bankService = new BankService(accountStore, ledger, metrics);
+    private MetricsEndpoint metricsEndpoint;
 
-    private final Set<String> activeUsers = new HashSet<>();
+    private final SessionRegistry sessions = new SessionRegistry();
     private final ThreadPool threadPool;
+    private final SessionLimits sessionLimits;
+    private final SessionWatchdog sessionWatchdog = new SessionWatchdog(1000);
+    // 1% of binary requests traced, the last 100 taking 50 ms or more are kept
+    private final RequestTracer tracer = new RequestTracer(0.01, 50, 100);
+    // password hashing gets at most half the cores, logins past the queue are turned away
+    private final CredentialVerifier credentialVerifier =
+            new CredentialVerifier(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 64);
 
     private InterestThread interestThread;
+    // 10 ms ticks, 512 buckets: one turn of the wheel is about 5 seconds
+    private final TimingWheel timingWheel = new TimingWheel(10, 512);
+    private InterestScheduler interestScheduler;
 
     private volatile boolean running = true;
 
-    public Server(int port, int poolSize, double interestRate, long interestPeriodMillis) {
-        threadPool = new ThreadPool(poolSize);
+    public Server(int port, int metricsPort, int corePoolSize, int maxPoolSize, long poolKeepAliveMillis, long poolGrowAfterMillis,
+                  int queueCapacity, double interestRate, long interestPeriodMillis,
+                  SessionLimits sessionLimits) {
+        // a full queue means every worker is busy, turn new sessions away instead of stalling them
+        threadPool = new ThreadPool(corePoolSize, maxPoolSize, poolKeepAliveMillis, poolGrowAfterMillis,
+                queueCapacity, ThreadPool.RejectionPolicy.REJECT);
+        // sessions can hold every general worker, this one is kept for interest and admin work
+        threadPool.reserveWorkers(ThreadPool.Lane.SYSTEM, 1);
+        System.out.println("[SERVER] Thread pool: " + corePoolSize + " to " + maxPoolSize + " workers");
+        this.sessionLimits = sessionLimits;
+        bankService.setCredentialVerifier(credentialVerifier);
+        registerGauges();
+        startMetricsEndpoint(metricsPort);
         loadData();
+        timingWheel.start();
         startInterestThread(interestRate, interestPeriodMillis);
+        startInterestScheduler();
+        startSessionWatchdog();
         startNetworkListener(port);
         adminMenu();
         shutdown();
     }
 
+    // Values read when /metrics is scraped, the counters and timers live with their owners
+    private void registerGauges() {
+        metrics.gauge("bank_active_sessions", "Logged in client sessions", () -> sessions.count());
+        metrics.gauge("bank_accounts", "Accounts in the store", accountStore::size);
+        metrics.gauge("ledger_entries", "Ledger rows, each batched interest credit counted", ledger::size);
+        metrics.counter("ledger_appends_total", "Ledger appends, an interest batch counts once",
+                ledger::appendCount);
+        for (ThreadPool.Lane lane : ThreadPool.Lane.values()) {
+            String name = lane.name().toLowerCase();
+            metrics.gauge("pool_queue_depth", "Tasks waiting for a worker",
+                    () -> threadPool.getQueueDepth(lane), "lane", name);
+        }
+        metrics.gauge("pool_active_workers", "Workers running a task", threadPool::getActiveCount);
+        metrics.gauge("pool_workers", "Worker threads alive", threadPool::getPoolSize);
+        metrics.gauge("credential_queue_depth", "Password checks waiting for a thread",
+                credentialVerifier::queuedTasks);
+        metrics.gauge("timer_pending", "Jobs scheduled on the timing wheel", timingWheel::pendingTimers);
+        metrics.counter("traces_sampled_total", "Requests traced", tracer::getSampledCount);
+        metrics.counter("traces_slow_total", "Traced requests over the slow threshold", tracer::getSlowCount);
+    }
+
+    // A metrics port that is taken only costs us the endpoint
+    private void startMetricsEndpoint(int metricsPort) {
+        try {
+            metricsEndpoint = new MetricsEndpoint(metrics, metricsPort);
+            metricsEndpoint.start();
+            System.out.println("[SERVER] Metrics at http://localhost:" + metricsEndpoint.getPort() + "/metrics");
+        } catch (IOException e) {
+            System.err.println("[SERVER] Metrics endpoint not started: " + e.getMessage());
+        }
+    }
+
+    private Metrics.Timer persistenceTime(String file, String op) {
+        return metrics.timer("persistence_seconds", "Time to load or save a data file",
+                "file", file, "op", op);
+    }
+
     // Load accounts & ledger from file
     private void loadData() {
+        long start = System.nanoTime();
         try {
             accountStore.loadFrom(ACCOUNTS_FILE);
             System.out.println("[SERVER] Accounts loaded.");
         } catch (IOException e) {
             System.out.println("[SERVER] No accounts file found.");
         }
+        persistenceTime("accounts", "load").record(System.nanoTime() - start);
 
+        start = System.nanoTime();
         try {
             ledger.loadFrom(LEDGER_FILE);
             System.out.println("[SERVER] Ledger loaded.");
         } catch (IOException e) {
             System.out.println("[SERVER] No ledger file found.");
         }
+        persistenceTime("ledger", "load").record(System.nanoTime() - start);
     }
 
-    // Start background interest thread
+    // Interest is a fixed rate job on the wheel, the work itself runs on the SYSTEM lane
     private void startInterestThread(double rate, long periodMillis) {
         interestThread = new InterestThread(bankService, rate, periodMillis);
-        Thread t = new Thread(interestThread);
-        t.setDaemon(true); // won't block shutdown
-        t.start();
-        System.out.println("[SERVER] Interest thread started.");
+        interestThread.setExecutor(threadPool.laneExecutor(ThreadPool.Lane.SYSTEM));
+        interestThread.schedule(timingWheel);
+        System.out.println("[SERVER] Interest job started.");
+    }
+
+    // Per-account plans, loaded once the wheel runs since each plan is a wheel job
+    private void startInterestScheduler() {
+        interestScheduler = new InterestScheduler(bankService, accountStore, timingWheel,
+                threadPool.laneExecutor(ThreadPool.Lane.SYSTEM));
+        long start = System.nanoTime();
+        try {
+            interestScheduler.loadFrom(PLANS_FILE);
+            System.out.println("[SERVER] Interest plans loaded: " + interestScheduler.plans().size());
+        } catch (IOException e) {
+            System.out.println("[SERVER] Failed to load interest plans: " + e.getMessage());
+        }
+        persistenceTime("plans", "load").record(System.nanoTime() - start);
+    }
+
+    // Start the sweep that disconnects clients whose writes have stalled
+    private void startSessionWatchdog() {
+        sessionWatchdog.schedule(timingWheel);
+        System.out.println("[SERVER] Session watchdog started with " + sessionLimits);
     }
 
     // Start accepting client connections asynchronously
@@ -67,7 +162,12 @@ public class Server {
                 while (running) {
                     Socket client = serverSocket.accept();
                     System.out.println("[SERVER] Client connected: " + client.getRemoteSocketAddress());
-                    threadPool.execute(new ClientHandler(client, bankService, activeUsers));
+                    try {
+                        threadPool.execute(new ClientHandler(client, bankService, sessions,
+                                sessionLimits, sessionWatchdog, tracer));
+                    } catch (RejectedExecutionException e) {
+                        rejectBusy(client);
+                    }
                 }
 
             } catch (IOException e) {
@@ -81,6 +181,19 @@ public class Server {
         listener.start();
     }
 
+    // Tells an overflow connection to come back later. The reply is tiny, so
+    // this cannot block the accept loop on a full socket buffer.
+    private void rejectBusy(Socket client) {
+        System.out.println("[SERVER] Pool full, rejecting " + client.getRemoteSocketAddress());
+        try (Socket s = client) {
+            OutputStream out = s.getOutputStream();
+            out.write("Server busy, please try again later.\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException ignored) {
+            // they are gone already
+        }
+    }
+
     // Admin menu runs in the server terminal
     private void adminMenu() {
         Scanner scanner = new Scanner(System.in);
@@ -93,7 +206,18 @@ public class Server {
             System.out.println("5. Transfer funds (admin)");
             System.out.println("6. Change interest rate");
             System.out.println("7. Change interest period");
-            System.out.println("9. Shutdown server");
+            System.out.println("8. Kick a user session");
+            System.out.println("9. Change password hash cost");
+            System.out.println("10. Thread pool stats");
+            System.out.println("11. Interest plans");
+            System.out.println("12. Slow request traces");
+            System.out.println("13. Transactions in a time range");
+            System.out.println("14. Ledger reports");
+            System.out.println("15. Reconcile saved accounts with the ledger");
+            System.out.println("16. Largest accounts");
+            System.out.println("17. Balance at a past time");
+            System.out.println("18. Consistent balance report");
+            System.out.println("19. Shutdown server");
             System.out.print("Choice: ");
 
             String choice = scanner.nextLine().trim();
@@ -120,7 +244,40 @@ public class Server {
                 case "7":
                     changeInterestPeriod(scanner);
                     break;
+                case "8":
+                    kickSession(scanner);
+                    break;
                 case "9":
+                    changeHashCost(scanner);
+                    break;
+                case "10":
+                    showPoolStats();
+                    break;
+                case "11":
+                    managePlans(scanner);
+                    break;
+                case "12":
+                    showSlowTraces(scanner);
+                    break;
+                case "13":
+                    showTransactionsBetween(scanner);
+                    break;
+                case "14":
+                    showReports(scanner);
+                    break;
+                case "15":
+                    reconcileSavedFiles();
+                    break;
+                case "16":
+                    showBalances(scanner);
+                    break;
+                case "17":
+                    showBalanceAt(scanner);
+                    break;
+                case "18":
+                    showSnapshotReport();
+                    break;
+                case "19":
                     running = false;
                     return;
                 default:
@@ -132,8 +289,43 @@ public class Server {
     // Admin actions
 
     private void showActiveUsers() {
-        synchronized (activeUsers) {
-            System.out.println("Active users: " + activeUsers);
+        System.out.println("Active users: " + sessions.count());
+        for (SessionRegistry.Session s : sessions.snapshot()) {
+            System.out.println(" - " + s);
+        }
+    }
+
+    private void showPoolStats() {
+        System.out.println(threadPool.getStats());
+    }
+
+    private void showSlowTraces(Scanner sc) {
+        List<RequestTracer.Trace> traces = tracer.slowTraces();
+        System.out.println("Sampling " + tracer.getSampleRate() + " of requests, slow at "
+                + tracer.getSlowThresholdMillis() + " ms. " + tracer.getSampledCount() + " sampled, "
+                + tracer.getSlowCount() + " slow, newest first:");
+        for (RequestTracer.Trace t : traces) {
+            System.out.println(" - " + t);
+        }
+        System.out.print("New sample rate 0-1 (enter to keep): ");
+        String rate = sc.nextLine().trim();
+        System.out.print("New slow threshold in ms (enter to keep): ");
+        String threshold = sc.nextLine().trim();
+        try {
+            if (!rate.isEmpty()) tracer.setSampleRate(Double.parseDouble(rate));
+            if (!threshold.isEmpty()) tracer.setSlowThresholdMillis(Long.parseLong(threshold));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void kickSession(Scanner sc) {
+        System.out.print("User to disconnect: ");
+        String user = sc.nextLine().trim();
+        if (sessions.kick(user)) {
+            System.out.println("Disconnected " + user + ".");
+        } else {
+            System.out.println(user + " is not logged in.");
         }
     }
 
@@ -144,6 +336,172 @@ public class Server {
         }
     }
 
+    private void showTransactionsBetween(Scanner sc) {
+        try {
+            System.out.print("From (e.g. 2024-05-01 or 2024-05-01T09:30): ");
+            Instant from = parseTime(sc.nextLine().trim());
+            System.out.print("To, exclusive: ");
+            Instant to = parseTime(sc.nextLine().trim());
+            System.out.print("User (enter for everyone): ");
+            String user = sc.nextLine().trim();
+            List<Transaction> txs = user.isEmpty()
+                    ? bankService.getTransactionsBetween(from, to)
+                    : bankService.getUserTransactionsBetween(user, from, to);
+            System.out.println("=== " + txs.size() + " TRANSACTIONS ===");
+            for (Transaction t : txs) {
+                System.out.println(t);
+            }
+        } catch (DateTimeParseException e) {
+            System.out.println("Error: could not read the time " + e.getParsedString());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    // Totals from the ledger rollups, buckets are UTC hours and days
+    private void showReports(Scanner sc) {
+        System.out.print("(h)ourly totals, (d)aily totals, (u)ser flows, or enter to go back: ");
+        String action = sc.nextLine().trim();
+        try {
+            switch (action) {
+                case "h":
+                case "d": {
+                    System.out.print("From (e.g. 2024-05-01 or 2024-05-01T09:30): ");
+                    Instant from = parseTime(sc.nextLine().trim());
+                    System.out.print("To, exclusive: ");
+                    Instant to = parseTime(sc.nextLine().trim());
+                    List<LedgerRollups.Totals> totals = action.equals("h")
+                            ? bankService.getHourlyTotals(from, to)
+                            : bankService.getDailyTotals(from, to);
+                    System.out.println("=== COUNT/SUM PER TYPE ===");
+                    for (LedgerRollups.Totals t : totals) {
+                        System.out.println(t);
+                    }
+                    break;
+                }
+                case "u": {
+                    System.out.print("User (enter for everyone): ");
+                    String user = sc.nextLine().trim();
+                    if (!user.isEmpty()) {
+                        System.out.println(bankService.getUserFlow(user));
+                        break;
+                    }
+                    List<LedgerRollups.Flow> flows = bankService.getUserFlows();
+                    flows.sort((a, b) -> Long.compare(b.getNet(), a.getNet()));
+                    System.out.println("=== NET FLOW PER USER ===");
+                    for (LedgerRollups.Flow f : flows) {
+                        System.out.println(f);
+                    }
+                    break;
+                }
+                case "":
+                    break;
+                default:
+                    System.out.println("Invalid choice.");
+            }
+        } catch (DateTimeParseException e) {
+            System.out.println("Error: could not read the time " + e.getParsedString());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void showBalances(Scanner sc) {
+        System.out.print("(t)op N, (a)t least an amount, (p)ercentiles, or enter to go back: ");
+        String action = sc.nextLine().trim();
+        try {
+            switch (action) {
+                case "t": {
+                    System.out.print("How many: ");
+                    for (BalanceIndex.Entry e : bankService.getTopAccounts(Integer.parseInt(sc.nextLine().trim()))) {
+                        System.out.println(" - " + e);
+                    }
+                    break;
+                }
+                case "a": {
+                    System.out.print("Minimum balance: ");
+                    List<BalanceIndex.Entry> rich = bankService.getAccountsWithAtLeast(Long.parseLong(sc.nextLine().trim()));
+                    System.out.println("=== " + rich.size() + " ACCOUNTS ===");
+                    for (BalanceIndex.Entry e : rich) {
+                        System.out.println(" - " + e);
+                    }
+                    break;
+                }
+                case "p": {
+                    for (double p : new double[]{50, 90, 99, 100}) {
+                        System.out.println("p" + (int) p + ": " + bankService.getBalancePercentile(p));
+                    }
+                    break;
+                }
+                case "":
+                    break;
+                default:
+                    System.out.println("Invalid choice.");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void showBalanceAt(Scanner sc) {
+        try {
+            System.out.print("User: ");
+            String user = sc.nextLine().trim();
+            System.out.print("As of (e.g. 2024-05-01T09:30): ");
+            Instant time = parseTime(sc.nextLine().trim());
+            System.out.println(user + " had " + bankService.getBalanceAt(user, time) + " at " + time);
+        } catch (DateTimeParseException e) {
+            System.out.println("Error: could not read the time " + e.getParsedString());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    // Balances and ledger as of one moment, while clients carry on
+    private void showSnapshotReport() {
+        try (BankSnapshot snapshot = bankService.snapshot()) {
+            Map<String, Long> balances = snapshot.getBalances();
+            long total = 0;
+            for (long balance : balances.values()) {
+                total += balance;
+            }
+            System.out.println("=== AS OF EPOCH " + snapshot.getEpoch() + " ===");
+            System.out.println(balances.size() + " accounts holding " + total + ", "
+                    + snapshot.getTransactions().size() + " ledger rows");
+            for (Map.Entry<String, Long> e : balances.entrySet()) {
+                System.out.println(" - " + e.getKey() + " " + e.getValue());
+            }
+        }
+    }
+
+    // Checks accounts.txt against ledger.txt as last saved, e.g. after a
+    // crash between the two writes in shutdown()
+    private void reconcileSavedFiles() {
+        try {
+            AccountStore saved = new AccountStore();
+            saved.loadFrom(ACCOUNTS_FILE);
+            LedgerReconciler.Report report = new LedgerReconciler(Runtime.getRuntime().availableProcessors())
+                    .reconcile(LEDGER_FILE, saved.allAccounts());
+            System.out.println(report);
+            for (LedgerReconciler.Discrepancy d : report.getDiscrepancies()) {
+                System.out.println(" - " + d);
+            }
+        } catch (IOException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    // A date or date and time in the server's time zone, or an instant ending in Z
+    private static Instant parseTime(String text) {
+        if (text.endsWith("Z")) {
+            return Instant.parse(text);
+        }
+        if (text.contains("T")) {
+            return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant();
+        }
+        return LocalDate.parse(text).atStartOfDay(ZoneId.systemDefault()).toInstant();
+    }
+
     private void adminCredit(Scanner sc) {
         System.out.print("User: ");
         String user = sc.nextLine().trim();
@@ -200,26 +558,112 @@ public class Server {
         System.out.println("Interest period updated.");
     }
 
+    private void changeHashCost(Scanner sc) {
+        System.out.println("Current cost: " + accountStore.getHashIterations() + " iterations");
+        System.out.print("New cost in iterations: ");
+        try {
+            accountStore.setHashIterations(Integer.parseInt(sc.nextLine().trim()));
+            System.out.println("Hash cost updated, existing passwords are rehashed at next login.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    private void managePlans(Scanner sc) {
+        for (InterestPlan plan : interestScheduler.plans()) {
+            System.out.println(" - " + plan + ", " + interestScheduler.memberCount(plan.getName()) + " accounts");
+        }
+        System.out.print("(d)efine plan, (a)ssign user, (u)nassign user, (r)emove plan, or enter to go back: ");
+        String action = sc.nextLine().trim();
+        try {
+            switch (action) {
+                case "d": {
+                    System.out.print("Plan name: ");
+                    String name = sc.nextLine().trim();
+                    System.out.print("Period in milliseconds: ");
+                    long period = Long.parseLong(sc.nextLine().trim());
+                    System.out.print("Tiers as floor:rate,... (e.g. 0:0.01,10000:0.02): ");
+                    interestScheduler.definePlan(InterestPlan.parse(name, period, sc.nextLine().trim()));
+                    System.out.println("Plan " + name + " saved.");
+                    break;
+                }
+                case "a": {
+                    System.out.print("User: ");
+                    String user = sc.nextLine().trim();
+                    System.out.print("Plan name: ");
+                    interestScheduler.assign(user, sc.nextLine().trim());
+                    System.out.println(user + " assigned.");
+                    break;
+                }
+                case "u": {
+                    System.out.print("User: ");
+                    String user = sc.nextLine().trim();
+                    if (interestScheduler.unassign(user)) {
+                        System.out.println(user + " is back on the global rate.");
+                    } else {
+                        System.out.println(user + " has no plan.");
+                    }
+                    break;
+                }
+                case "r": {
+                    System.out.print("Plan name: ");
+                    String name = sc.nextLine().trim();
+                    if (interestScheduler.removePlan(name)) {
+                        System.out.println("Plan " + name + " removed, its accounts are back on the global rate.");
+                    } else {
+                        System.out.println("No such plan.");
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
     // Shutdown logic
     private void shutdown() {
         System.out.println("[SERVER] Shutting down...");
 
         interestThread.stopRunning();
+        interestScheduler.stop();
+        sessionWatchdog.stopRunning();
+        timingWheel.stop();
         threadPool.shutdown();
+        credentialVerifier.shutdown();
 
+        long start = System.nanoTime();
         try {
             accountStore.saveTo(ACCOUNTS_FILE);
             System.out.println("[SERVER] Accounts saved.");
         } catch (IOException e) {
             System.err.println("[SERVER] Failed to save accounts: " + e.getMessage());
         }
+        persistenceTime("accounts", "save").record(System.nanoTime() - start);
 
+        start = System.nanoTime();
         try {
             ledger.saveTo(LEDGER_FILE);
             System.out.println("[SERVER] Ledger saved.");
         } catch (IOException e) {
             System.err.println("[SERVER] Failed to save ledger: " + e.getMessage());
         }
+        persistenceTime("ledger", "save").record(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        try {
+            interestScheduler.saveTo(PLANS_FILE);
+            System.out.println("[SERVER] Interest plans saved.");
+        } catch (IOException e) {
+            System.err.println("[SERVER] Failed to save interest plans: " + e.getMessage());
+        }
+        persistenceTime("plans", "save").record(System.nanoTime() - start);
+
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
 
         System.out.println("[SERVER] Shutdown complete.");
     }
@@ -227,10 +671,23 @@ public class Server {
     // main
     public static void main(String[] args) {
         int port = 5000;
-        int poolSize = 10;
+        int metricsPort = 9464; // Prometheus scrapes http://host:9464/metrics
+        // each session holds a worker, so the pool follows the number of connected clients
+        int corePoolSize = 10;
+        int maxPoolSize = 100;
+        long poolKeepAliveMillis = 60_000;
+        long poolGrowAfterMillis = 50; // grow once a session has waited this long for a worker
+        int queueCapacity = 50; // sessions waiting for a worker before new ones are refused
         double interestRate = 0.025;
         long interestPeriod = 60_000;
 
-        new Server(port, poolSize, interestRate, interestPeriod);
+        // slow client protection
+        int readIdleMillis = 10 * 60_000;
+        long writeStallMillis = 30_000;
+        int maxPendingBytes = 256 * 1024;
+
+        new Server(port, metricsPort, corePoolSize, maxPoolSize, poolKeepAliveMillis, poolGrowAfterMillis,
+                queueCapacity, interestRate, interestPeriod,
+                new SessionLimits(readIdleMillis, writeStallMillis, maxPendingBytes));
     }
 }
@@ -0,0 +1,365 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Buffered I/O for one socket session, used instead of Scanner/PrintWriter.
+//
+// Input is read into a reusable byte buffer and lines are split by hand, so
+// reading a line costs no regex work and at most one String. Output is
+// collected in a byte buffer and only reaches the socket on flush(), which
+// callers do once per response. Any pending output is also flushed before
+// blocking on input, so a prompt can never be left sitting in the buffer.
+//
+// Reading is for the session thread only. Each print/println/write call is
+// appended atomically, and the socket write itself happens outside the
+// buffer's monitor. Other threads (notifications) use offer(), which only
+// appends and never touches the socket, so it can't be held up by a slow
+// client; it refuses data past maxPendingBytes, counting what is being
+// written. Offered output is sent by a drain task on a shared writer pool,
+// or by the session thread's next flush, whichever gets there first. A
+// writer thread is only held while a write is actually in progress, so idle
+// sessions cost none.
+public class SessionIO implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MAX_PENDING_BYTES = 256 * 1024;
+
+    // Runs drain tasks for offered output, shared by all sessions. Its threads
+    // exit after a few idle seconds.
+    private static final Executor WRITERS = newWriterPool();
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private int inPos = 0;
+    private int inLimit = 0;
+    private byte[] lineBuf = new byte[128];
+
+    // Output is appended to pending under this object's monitor. The thread
+    // holding writeLock swaps it with sending and writes that to the socket.
+    private byte[] pending = new byte[BUFFER_SIZE];
+    private int pendingCount = 0;
+    private byte[] sending = new byte[BUFFER_SIZE];
+    private int sendingCount = 0; // bytes of sending not yet written, guarded by this
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final int maxPendingBytes;
+    private final Executor writers;
+
+    // guarded by this object's monitor
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+
+    // System.nanoTime() when the current socket write started, 0 if none in progress
+    private volatile long writeStartedNanos = 0;
+    private volatile boolean overflowed = false;
+
+    // Number of read/write calls that reached the socket, for load tests
+    private long socketReads = 0;
+    private volatile long socketWrites = 0;
+
+    public SessionIO(InputStream in, OutputStream out) {
+        this(in, out, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    public SessionIO(InputStream in, OutputStream out, int maxPendingBytes) {
+        this(in, out, maxPendingBytes, WRITERS);
+    }
+
+    public SessionIO(InputStream in, OutputStream out, int maxPendingBytes, Executor writers) {
+        if (in == null || out == null || writers == null) {
+            throw new IllegalArgumentException("Streams must not be null");
+        }
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("maxPendingBytes must be > 0");
+        }
+        this.in = in;
+        this.out = out;
+        this.maxPendingBytes = maxPendingBytes;
+        this.writers = writers;
+    }
+
+    // input
+
+    // Returns the next line without its terminator, or null at end of stream
+    public String readLine() throws IOException {
+        int len = 0;
+        boolean ascii = true;
+        while (true) {
+            if (inPos == inLimit && !fill()) {
+                if (len == 0) return null;
+                break;
+            }
+            byte b = inBuf[inPos++];
+            if (b == '\n') break;
+            if (len == lineBuf.length) {
+                byte[] bigger = new byte[lineBuf.length * 2];
+                System.arraycopy(lineBuf, 0, bigger, 0, len);
+                lineBuf = bigger;
+            }
+            lineBuf[len++] = b;
+            if (b < 0) ascii = false;
+        }
+        if (len > 0 && lineBuf[len - 1] == '\r') len--;
+        // Latin-1 decoding of pure ASCII is a plain copy
+        return new String(lineBuf, 0, len, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    // Next byte without consuming it, or -1 at end of stream
+    public int peek() throws IOException {
+        if (inPos == inLimit && !fill()) return -1;
+        return inBuf[inPos] & 0xFF;
+    }
+
+    public int read() throws IOException {
+        if (inPos == inLimit && !fill()) return -1;
+        return inBuf[inPos++] & 0xFF;
+    }
+
+    public int readInt() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = read();
+            if (b < 0) throw new EOFException();
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    public void readFully(byte[] dest, int off, int len) throws IOException {
+        while (len > 0) {
+            if (inPos == inLimit && !fill()) throw new EOFException();
+            int n = Math.min(len, inLimit - inPos);
+            System.arraycopy(inBuf, inPos, dest, off, n);
+            inPos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        flush();
+        int n = in.read(inBuf, 0, inBuf.length);
+        socketReads++;
+        if (n <= 0) return false;
+        inPos = 0;
+        inLimit = n;
+        return true;
+    }
+
+    // output, session thread
+
+    public void print(String s) {
+        int len = s.length();
+        synchronized (this) {
+            ensureCapacity(len);
+            for (int i = 0; i < len; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // rare, fall back to the JDK encoder for the rest of the string
+                    byte[] bytes = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                    append(bytes, 0, bytes.length);
+                    break;
+                }
+                pending[pendingCount++] = (byte) c;
+            }
+        }
+        drainIfFull();
+    }
+
+    public void println(String s) {
+        print(s + "\n");
+    }
+
+    public void println() {
+        write('\n');
+    }
+
+    public void write(byte[] src, int off, int len) {
+        synchronized (this) {
+            append(src, off, len);
+        }
+        drainIfFull();
+    }
+
+    public void write(int b) {
+        synchronized (this) {
+            ensureCapacity(1);
+            pending[pendingCount++] = (byte) b;
+        }
+        drainIfFull();
+    }
+
+    // Sends everything buffered so far to the socket
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            drainLocked();
+        } finally {
+            writeLock.unlock();
+        }
+        // something may have been offered while we held the lock
+        tryFlush();
+    }
+
+    // output, any thread
+
+    // Queues a whole message for the writer pool and returns at once. Returns
+    // false and drops it if the client would have more than maxPendingBytes
+    // unsent, or the session is closed.
+    public boolean offer(byte[] src, int off, int len) {
+        synchronized (this) {
+            if (closed) return false;
+            if (pendingCount + sendingCount + len > maxPendingBytes) {
+                overflowed = true;
+                return false;
+            }
+            append(src, off, len);
+            if (drainScheduled) return true;
+            drainScheduled = true;
+        }
+        writers.execute(this::drainOffered);
+        return true;
+    }
+
+    public boolean offer(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return offer(bytes, 0, bytes.length);
+    }
+
+    // Drain task. It never waits for writeLock: whoever holds it re-checks for
+    // pending output after releasing it.
+    private void drainOffered() {
+        synchronized (this) {
+            drainScheduled = false;
+            if (closed) return; // close() flushes whatever is left
+        }
+        tryFlush();
+    }
+
+    // Writes pending output only if no other thread is writing. Whoever holds
+    // writeLock re-checks after releasing it, so nothing is left behind.
+    private void tryFlush() {
+        while (hasPending() && writeLock.tryLock()) {
+            try {
+                drainLocked();
+            } catch (IOException e) {
+                return; // the session thread will see the broken socket
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void drainLocked() throws IOException {
+        while (true) {
+            int n;
+            synchronized (this) {
+                if (pendingCount == 0) return;
+                byte[] tmp = sending;
+                sending = pending;
+                pending = tmp;
+                n = pendingCount;
+                pendingCount = 0;
+                sendingCount = n;
+            }
+            writeStartedNanos = System.nanoTime();
+            try {
+                out.write(sending, 0, n);
+                out.flush();
+            } finally {
+                writeStartedNanos = 0;
+                synchronized (this) {
+                    sendingCount = 0;
+                }
+            }
+            socketWrites++;
+        }
+    }
+
+    private synchronized boolean hasPending() {
+        return pendingCount > 0;
+    }
+
+    // A long response is pushed out in pieces instead of growing the buffer
+    private void drainIfFull() {
+        if (!isFull()) return;
+        try {
+            flush();
+        } catch (IOException e) {
+            // the socket is gone, the next read will fail
+        }
+    }
+
+    private synchronized boolean isFull() {
+        return pendingCount >= BUFFER_SIZE;
+    }
+
+    private void append(byte[] src, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(src, off, pending, pendingCount, len);
+        pendingCount += len;
+    }
+
+    private void ensureCapacity(int extra) {
+        int needed = pendingCount + extra;
+        if (needed > pending.length) {
+            byte[] bigger = new byte[Math.max(needed, pending.length * 2)];
+            System.arraycopy(pending, 0, bigger, 0, pendingCount);
+            pending = bigger;
+        }
+    }
+
+    // slow client detection
+
+    // How long the current socket write has been blocked, 0 if none is in progress
+    public long writeStalledNanos(long nowNanos) {
+        long started = writeStartedNanos;
+        return started == 0 ? 0 : nowNanos - started;
+    }
+
+    // True once an offer was refused because too much output was pending
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    public long getSocketReads() {
+        return socketReads;
+    }
+
+    public long getSocketWrites() {
+        return socketWrites;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            flush();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static Executor newWriterPool() {
+        AtomicInteger ids = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 5, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "session-writer-" + ids.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+}
@@ -0,0 +1,46 @@
+// Per-session limits that stop idle or slow clients from holding server resources.
+public final class SessionLimits {
+
+    public static final SessionLimits DEFAULTS =
+            new SessionLimits(10 * 60_000, 30_000L, SessionIO.DEFAULT_MAX_PENDING_BYTES);
+
+    // Disconnect a client that sends nothing for this long
+    private final int readIdleMillis;
+    // Disconnect a client whose socket write has been blocked for this long
+    private final long writeStallMillis;
+    // Disconnect a client with more than this many notification bytes unsent
+    private final int maxPendingBytes;
+
+    public SessionLimits(int readIdleMillis, long writeStallMillis, int maxPendingBytes) {
+        if (readIdleMillis <= 0) {
+            throw new IllegalArgumentException("Read idle timeout must be > 0");
+        }
+        if (writeStallMillis <= 0) {
+            throw new IllegalArgumentException("Write stall timeout must be > 0");
+        }
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("Max pending bytes must be > 0");
+        }
+        this.readIdleMillis = readIdleMillis;
+        this.writeStallMillis = writeStallMillis;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public int getReadIdleMillis() {
+        return readIdleMillis;
+    }
+
+    public long getWriteStallMillis() {
+        return writeStallMillis;
+    }
+
+    public int getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionLimits{readIdle=" + readIdleMillis + "ms, writeStall=" + writeStallMillis +
+                "ms, maxPending=" + maxPendingBytes + " bytes}";
+    }
+}
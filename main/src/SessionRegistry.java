@@ -0,0 +1,126 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Logged in sessions keyed by username.
+//
+// Built on a ConcurrentHashMap so logins, logouts and admin listings never
+// share a lock. claim() is a single putIfAbsent, so two clients racing to log
+// in as the same user cannot both succeed.
+public class SessionRegistry {
+
+    public static final class Session {
+        private final String username;
+        private final String remoteAddress;
+        private final Instant connectedAt;
+        private final Runnable kicker;
+        private volatile long lastActivityMillis;
+        private final LongAdder ops = new LongAdder();
+
+        Session(String username, String remoteAddress, Instant connectedAt, Runnable kicker) {
+            this.username = username;
+            this.remoteAddress = remoteAddress;
+            this.connectedAt = connectedAt;
+            this.kicker = kicker;
+            this.lastActivityMillis = System.currentTimeMillis();
+        }
+
+        // Record one request from this session
+        public void touch() {
+            lastActivityMillis = System.currentTimeMillis();
+            ops.increment();
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public Instant getConnectedAt() {
+            return connectedAt;
+        }
+
+        public Instant getLastActivity() {
+            return Instant.ofEpochMilli(lastActivityMillis);
+        }
+
+        public long getOpsCount() {
+            return ops.sum();
+        }
+
+        @Override
+        public String toString() {
+            return username + " from " + remoteAddress +
+                    ", connected " + connectedAt +
+                    ", last active " + getLastActivity() +
+                    ", ops " + getOpsCount();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // ConcurrentHashMap.size() sums every counter cell, keep our own for O(1) reads
+    private final AtomicInteger count = new AtomicInteger();
+
+    // Returns the new session, or null if username is already logged in.
+    // kicker is run by kick() and should disconnect the session.
+    public Session claim(String username, String remoteAddress, Instant connectedAt, Runnable kicker) {
+        if (username == null || kicker == null) {
+            throw new IllegalArgumentException("Username and kicker must not be null");
+        }
+        Session session = new Session(username, remoteAddress, connectedAt, kicker);
+        if (sessions.putIfAbsent(username, session) != null) {
+            return null;
+        }
+        count.incrementAndGet();
+        return session;
+    }
+
+    // Removes this exact session, a newer one for the same user is left alone
+    public boolean release(Session session) {
+        if (session == null) return false;
+        if (sessions.remove(session.getUsername(), session)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isActive(String username) {
+        return username != null && sessions.containsKey(username);
+    }
+
+    public Session get(String username) {
+        return username == null ? null : sessions.get(username);
+    }
+
+    public int count() {
+        return count.get();
+    }
+
+    // Sessions ordered by username
+    public List<Session> snapshot() {
+        List<Session> list = new ArrayList<>(sessions.values());
+        list.sort(Comparator.comparing(Session::getUsername));
+        return list;
+    }
+
+    public Collection<String> usernames() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    // Disconnects the user's session. Returns false if they are not logged in.
+    public boolean kick(String username) {
+        Session session = get(username);
+        if (session == null) return false;
+        session.kicker.run();
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Background sweep over live sessions. A blocked socket write cannot time out
+// by itself, so this closes the socket of any session whose write has been
+// stuck for longer than its SessionLimits allow. Read idling is handled by the
+// socket timeout in ClientHandler.
+public class SessionWatchdog implements Runnable {
+
+    private final Set<ClientHandler> sessions = ConcurrentHashMap.newKeySet();
+    private final long sweepMillis;
+    private volatile boolean running = true;
+    private volatile TimingWheel.Timeout job;
+
+    public SessionWatchdog(long sweepMillis) {
+        if (sweepMillis <= 0) {
+            throw new IllegalArgumentException("Sweep period must be > 0");
+        }
+        this.sweepMillis = sweepMillis;
+    }
+
+    public void register(ClientHandler handler) {
+        sessions.add(handler);
+    }
+
+    public void unregister(ClientHandler handler) {
+        sessions.remove(handler);
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    // Sweeps every sweepMillis on wheel instead of a thread of its own
+    public void schedule(TimingWheel wheel) {
+        job = wheel.scheduleAtFixedRate(this::sweep, sweepMillis, sweepMillis);
+    }
+
+    public void stopRunning() {
+        running = false;
+        TimingWheel.Timeout j = job;
+        if (j != null) {
+            j.cancel();
+        }
+    }
+
+    // One pass over all sessions, also called directly by tests
+    public void sweep() {
+        long now = System.nanoTime();
+        for (ClientHandler handler : sessions) {
+            try {
+                handler.checkLimits(now);
+            } catch (RuntimeException e) {
+                System.err.println("[WATCHDOG] Error checking session: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(sweepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            sweep();
+        }
+    }
+}
@@ -1,33 +1,488 @@
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ThreadPool {
+// Pool of worker threads with per-lane priorities, an optionally bounded
+// CLIENT lane and, for the shared queue, optional elastic sizing. All of it
+// is described below; with none of it turned on it is a plain fixed size pool.
+//
+// By default every task goes through one shared blocking queue. In work
+// stealing mode each worker has its own lock-free deque instead:
+//  - tasks submitted by a worker go on the tail of its own deque
+//  - tasks from outside the pool are spread round robin onto the deque tails
+//  - owners and thieves both take from the head, so every deque stays FIFO
+//    and no session waits behind newer ones (the same choice as the JDK's
+//    async mode work stealing pools)
+// Idle workers park, and execute() wakes one up.
+//
+// Tasks are submitted to a Lane. SYSTEM tasks (interest, admin work) are
+// always taken before CLIENT tasks, and reserveWorkers() can set aside
+// threads that serve only one lane. Sessions hold their worker for as long as
+// the client stays connected, so a reserved SYSTEM worker is what keeps
+// system work from waiting behind them.
+//
+// The CLIENT lane can be bounded. When it is full, execute() hands the task
+// to the pool's RejectionPolicy instead of letting the backlog grow without
+// limit. The SYSTEM lane is never bounded.
+//
+// A shared queue pool can also be elastic: it keeps coreThreads workers, and a
+// supervisor adds workers up to maxThreads while the oldest queued task has
+// waited longer than growAfterWaitMillis. Workers above core that find
+// nothing to do for keepAliveMillis exit again.
+//
+// Every task's queue wait and run time go into histograms, and a task that
+// throws is counted and logged without killing its worker. getStats()
+// returns a snapshot of all of it.
+public class ThreadPool implements Executor {
 
-    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
-    private final List<Thread> workerThreads = new ArrayList<>();
+    public enum Lane {
+        SYSTEM, CLIENT
+    }
+
+    // What execute() does with a task that does not fit in a full CLIENT lane
+    public interface RejectionPolicy {
+        void rejected(Runnable task, ThreadPool pool);
+
+        // Throw RejectedExecutionException so the caller can answer "busy"
+        RejectionPolicy REJECT = (task, pool) -> {
+            throw new RejectedExecutionException("ThreadPool queue is full");
+        };
+
+        // Run the task on the submitting thread, which slows the submitter down
+        RejectionPolicy CALLER_RUNS = (task, pool) -> task.run();
+
+        // Discard the oldest queued task to make room. Only for tasks that can be lost.
+        RejectionPolicy DROP_OLDEST = (task, pool) -> {
+            while (!pool.tryEnqueue(task, Lane.CLIENT)) {
+                if (pool.pollOldest() == null && !pool.tryEnqueue(task, Lane.CLIENT)) {
+                    throw new RejectedExecutionException("ThreadPool queue is full");
+                }
+            }
+        };
+
+        // Wait up to timeoutMillis for space, then throw RejectedExecutionException
+        static RejectionPolicy blockWithTimeout(long timeoutMillis) {
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException("timeout must be > 0");
+            }
+            return (task, pool) -> {
+                try {
+                    if (pool.enqueue(task, TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new RejectedExecutionException("ThreadPool queue stayed full for " + timeoutMillis + " ms");
+            };
+        }
+    }
+
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+    private static final Lane[] LANES = Lane.values();
+
+    private final LaneQueue queue;
+    private final Set<Thread> workerThreads = ConcurrentHashMap.newKeySet();
     private volatile boolean running = true;
+    private final int queueCapacity;
+    private final RejectionPolicy rejectionPolicy;
+    private final AtomicInteger[] reservedWorkers = {new AtomicInteger(), new AtomicInteger()};
+
+    // sizing
+    private final int coreThreads;
+    private final int maxThreads;
+    private final long keepAliveNanos;
+    private final long growAfterWaitNanos;
+    private final AtomicInteger poolSize = new AtomicInteger();
+    private final AtomicInteger peakPoolSize = new AtomicInteger();
+    private final LongAdder growCount = new LongAdder();
+    private final LongAdder shrinkCount = new LongAdder();
+
+    // instrumentation, wait times per lane
+    private final LatencyHistogram[] waitTimes = {new LatencyHistogram(), new LatencyHistogram()};
+    private final LatencyHistogram runTimes = new LatencyHistogram();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder failedTasks = new LongAdder();
+    private final LongAdder rejectedTasks = new LongAdder();
+    private final LongAdder droppedTasks = new LongAdder();
+
+    // work stealing mode only
+    private final boolean workStealing;
+    private final StealingWorker[] stealingWorkers;
+    private final ThreadLocal<StealingWorker> currentWorker = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<StealingWorker> idleWorkers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    // SYSTEM tasks skip the deques, every worker checks here first
+    private final ConcurrentLinkedQueue<QueuedTask> systemTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger[] stealingQueued = {new AtomicInteger(), new AtomicInteger()};
+    // free CLIENT slots across all deques, null when unbounded
+    private final Semaphore slots;
 
     public ThreadPool(int numThreads) {
-        if (numThreads <=0) {
+        this(numThreads, false);
+    }
+
+    public ThreadPool(int numThreads, boolean workStealing) {
+        this(numThreads, workStealing, UNBOUNDED, RejectionPolicy.REJECT);
+    }
+
+    public ThreadPool(int numThreads, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        this(numThreads, false, queueCapacity, rejectionPolicy);
+    }
+
+    public ThreadPool(int numThreads, boolean workStealing, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        this(numThreads, numThreads, 0, 0, workStealing, queueCapacity, rejectionPolicy);
+    }
+
+    // Elastic shared queue pool
+    public ThreadPool(int coreThreads, int maxThreads, long keepAliveMillis, long growAfterWaitMillis,
+                      int queueCapacity, RejectionPolicy rejectionPolicy) {
+        this(coreThreads, maxThreads, keepAliveMillis, growAfterWaitMillis, false, queueCapacity, rejectionPolicy);
+    }
+
+    private ThreadPool(int coreThreads, int maxThreads, long keepAliveMillis, long growAfterWaitMillis,
+                       boolean workStealing, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        if (coreThreads <=0) {
             throw new IllegalArgumentException("number of threads must be > 0");
         }
-        for (int i = 0; i < numThreads; i++) {
-            Thread t = new Thread(new Worker());
-            t.start();
-            workerThreads.add(t);
+        if (maxThreads < coreThreads) {
+            throw new IllegalArgumentException("max threads must be >= core threads");
         }
+        boolean elastic = maxThreads > coreThreads;
+        if (elastic && (keepAliveMillis <= 0 || growAfterWaitMillis <= 0)) {
+            throw new IllegalArgumentException("keep alive and grow threshold must be > 0");
+        }
+        if (elastic && workStealing) {
+            throw new IllegalArgumentException("a work stealing pool has a fixed size");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queue capacity must be > 0");
+        }
+        if (rejectionPolicy == null) {
+            throw new IllegalArgumentException("rejection policy cannot be null");
+        }
+        this.coreThreads = coreThreads;
+        this.maxThreads = maxThreads;
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+        this.growAfterWaitNanos = TimeUnit.MILLISECONDS.toNanos(growAfterWaitMillis);
+        this.queueCapacity = queueCapacity;
+        this.rejectionPolicy = rejectionPolicy;
+        this.queue = workStealing ? null : new LaneQueue(queueCapacity);
+        this.slots = workStealing && queueCapacity != UNBOUNDED ? new Semaphore(queueCapacity) : null;
+        this.workStealing = workStealing;
+        this.stealingWorkers = workStealing ? new StealingWorker[coreThreads] : null;
+        if (workStealing) {
+            // start only once every deque exists, workers scan all of them
+            for (int i = 0; i < coreThreads; i++) {
+                stealingWorkers[i] = new StealingWorker();
+            }
+        }
+        for (int i = 0; i < coreThreads; i++) {
+            poolSize.incrementAndGet();
+            Thread t = startWorker(workStealing ? stealingWorkers[i] : new Worker());
+            if (workStealing) {
+                stealingWorkers[i].thread = t;
+            }
+        }
+        peakPoolSize.set(coreThreads);
+        if (elastic) {
+            Thread supervisor = new Thread(this::supervise, "threadpool-supervisor");
+            supervisor.setDaemon(true);
+            supervisor.start();
+        }
+    }
+
+    private Thread startWorker(Runnable worker) {
+        Thread t = new Thread(() -> {
+            try {
+                worker.run();
+            } finally {
+                workerThreads.remove(Thread.currentThread());
+            }
+        });
+        workerThreads.add(t);
+        t.start();
+        return t;
+    }
+
+    // Starts count extra workers that only run tasks from lane. They are not
+    // part of core/max and never retire. Shared queue pools only.
+    public void reserveWorkers(Lane lane, int count) {
+        if (lane == null || count <= 0) {
+            throw new IllegalArgumentException("lane must be set and count must be > 0");
+        }
+        if (workStealing) {
+            throw new IllegalStateException("a work stealing pool has no reserved workers");
+        }
+        if (!running) {
+            throw new IllegalStateException("ThreadPool is not running");
+        }
+        for (int i = 0; i < count; i++) {
+            reservedWorkers[lane.ordinal()].incrementAndGet();
+            startWorker(new LaneWorker(lane));
+        }
+    }
+
+    public int getReservedWorkers(Lane lane) {
+        return reservedWorkers[lane.ordinal()].get();
+    }
+
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    // Capacity of the CLIENT lane
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getCoreSize() {
+        return coreThreads;
+    }
+
+    public int getMaxSize() {
+        return maxThreads;
     }
 
+    // General workers currently alive, reserved ones not included
+    public int getPoolSize() {
+        return poolSize.get();
+    }
+
+    public int getPeakPoolSize() {
+        return peakPoolSize.get();
+    }
+
+    // Workers added above core by the supervisor
+    public long getGrowCount() {
+        return growCount.sum();
+    }
+
+    // Workers above core that exited after keepAlive with nothing to do
+    public long getShrinkCount() {
+        return shrinkCount.sum();
+    }
+
+    // Tasks waiting for a worker
+    public int getQueueDepth() {
+        return getQueueDepth(Lane.SYSTEM) + getQueueDepth(Lane.CLIENT);
+    }
+
+    public int getQueueDepth(Lane lane) {
+        return workStealing ? stealingQueued[lane.ordinal()].get() : queue.size(lane);
+    }
+
+    // Workers running a task right now
+    public int getActiveCount() {
+        return activeWorkers.get();
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    // Point in time copy of the pool's counters and histograms
+    public static final class Stats {
+        private final int poolSize;
+        private final int peakPoolSize;
+        private final int activeCount;
+        private final int[] reserved = new int[LANES.length];
+        private final int[] queueDepth = new int[LANES.length];
+        private final long completed;
+        private final long failed;
+        private final long rejected;
+        private final long dropped;
+        private final long grown;
+        private final long shrunk;
+        private final LatencyHistogram[] waitTimes = {new LatencyHistogram(), new LatencyHistogram()};
+        private final LatencyHistogram runTimes = new LatencyHistogram();
+
+        private Stats(ThreadPool pool) {
+            poolSize = pool.getPoolSize();
+            peakPoolSize = pool.getPeakPoolSize();
+            activeCount = pool.getActiveCount();
+            for (Lane lane : LANES) {
+                reserved[lane.ordinal()] = pool.getReservedWorkers(lane);
+                queueDepth[lane.ordinal()] = pool.getQueueDepth(lane);
+                waitTimes[lane.ordinal()].add(pool.waitTimes[lane.ordinal()]);
+            }
+            completed = pool.completedTasks.sum();
+            failed = pool.failedTasks.sum();
+            rejected = pool.rejectedTasks.sum();
+            dropped = pool.droppedTasks.sum();
+            grown = pool.getGrowCount();
+            shrunk = pool.getShrinkCount();
+            runTimes.add(pool.runTimes);
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getPeakPoolSize() {
+            return peakPoolSize;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getReservedWorkers(Lane lane) {
+            return reserved[lane.ordinal()];
+        }
+
+        public int getQueueDepth() {
+            return queueDepth[0] + queueDepth[1];
+        }
+
+        public int getQueueDepth(Lane lane) {
+            return queueDepth[lane.ordinal()];
+        }
+
+        public long getCompletedCount() {
+            return completed;
+        }
+
+        // Tasks that threw, the worker carried on
+        public long getFailedCount() {
+            return failed;
+        }
+
+        // Times execute() found the queue full and handed the task to the policy
+        public long getRejectedCount() {
+            return rejected;
+        }
+
+        // Tasks discarded by DROP_OLDEST
+        public long getDroppedCount() {
+            return dropped;
+        }
+
+        public long getGrowCount() {
+            return grown;
+        }
+
+        public long getShrinkCount() {
+            return shrunk;
+        }
+
+        // nanoseconds from execute() to a worker picking the task up, all lanes
+        public LatencyHistogram getWaitTimes() {
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram h : waitTimes) {
+                all.add(h);
+            }
+            return all;
+        }
+
+        public LatencyHistogram getWaitTimes(Lane lane) {
+            return waitTimes[lane.ordinal()];
+        }
+
+        // nanoseconds spent running the task
+        public LatencyHistogram getRunTimes() {
+            return runTimes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("workers ").append(poolSize).append(" (peak ").append(peakPoolSize)
+                    .append(", active ").append(activeCount)
+                    .append(", grew ").append(grown).append(", shrank ").append(shrunk).append(")\n");
+            sb.append("tasks completed ").append(completed).append(", failed ").append(failed)
+                    .append(", rejected ").append(rejected).append(", dropped ").append(dropped).append("\n");
+            for (Lane lane : LANES) {
+                int i = lane.ordinal();
+                sb.append(String.format("%-6s queued %d, reserved workers %d, wait %s%n",
+                        lane, queueDepth[i], reserved[i], waitTimes[i].summaryMicros()));
+            }
+            sb.append("run    ").append(runTimes.summaryMicros());
+            return sb.toString();
+        }
+    }
+
+    // Submits to the CLIENT lane.
+    // Throws RejectedExecutionException if the queue is full and the policy rejects
+    @Override
     public void execute(Runnable task) {
+        execute(task, Lane.CLIENT);
+    }
+
+    public void execute(Runnable task, Lane lane) {
         if (!running) {
             throw new IllegalStateException("ThreadPool is not running");
-        } else if (task == null) {
+        } else if (task == null || lane == null) {
             throw new IllegalArgumentException("task cannot be null");
+        } else if (!tryEnqueue(task, lane)) {
+            rejectedTasks.increment();
+            rejectionPolicy.rejected(task, this);
+        }
+    }
+
+    // An Executor that submits everything to lane
+    public Executor laneExecutor(Lane lane) {
+        if (lane == null) {
+            throw new IllegalArgumentException("lane cannot be null");
+        }
+        return task -> execute(task, lane);
+    }
+
+    // queue access for the rejection policies
+
+    private boolean tryEnqueue(Runnable task, Lane lane) {
+        if (!workStealing) {
+            return queue.offer(new QueuedTask(task, lane));
+        }
+        if (lane == Lane.CLIENT && slots != null && !slots.tryAcquire()) {
+            return false;
+        }
+        push(new QueuedTask(task, lane));
+        return true;
+    }
+
+    // Only the CLIENT lane ever fills, so waiting is only done there
+    private boolean enqueue(Runnable task, long timeoutNanos) throws InterruptedException {
+        if (!workStealing) {
+            return queue.offer(new QueuedTask(task, Lane.CLIENT), timeoutNanos);
+        }
+        if (slots != null && !slots.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        push(new QueuedTask(task, Lane.CLIENT));
+        return true;
+    }
+
+    // Removes and returns the longest waiting CLIENT task, or null if there is none
+    private Runnable pollOldest() {
+        QueuedTask oldest = null;
+        if (!workStealing) {
+            oldest = queue.pollOldest(Lane.CLIENT);
         } else {
-            queue.offer(task);
+            // oldest of the first non-empty deque, good enough across deques
+            for (StealingWorker w : stealingWorkers) {
+                oldest = w.deque.pollFirst();
+                if (oldest != null) {
+                    dequeued(oldest);
+                    break;
+                }
+            }
         }
+        if (oldest == null) return null;
+        droppedTasks.increment();
+        return oldest.task;
     }
 
     public void shutdown() {
@@ -37,17 +492,347 @@ public class ThreadPool {
         }
     }
 
+    // Runs one task on the calling worker and records it
+    private void runTask(QueuedTask next) {
+        long start = System.nanoTime();
+        waitTimes[next.lane.ordinal()].record(start - next.enqueuedNanos);
+        activeWorkers.incrementAndGet();
+        try {
+            next.task.run();
+            completedTasks.increment();
+        } catch (Throwable t) {
+            // used to end the worker thread without a trace
+            failedTasks.increment();
+            System.err.println("[POOL] Task threw " + t + " on " + Thread.currentThread().getName());
+            t.printStackTrace();
+        } finally {
+            activeWorkers.decrementAndGet();
+            runTimes.record(System.nanoTime() - start);
+        }
+    }
+
+    // A queued task, stamped for the wait time histogram and the supervisor
+    private static final class QueuedTask {
+        final Runnable task;
+        final Lane lane;
+        final long enqueuedNanos = System.nanoTime();
+
+        QueuedTask(Runnable task, Lane lane) {
+            this.task = task;
+            this.lane = lane;
+        }
+    }
+
+    // One FIFO per lane behind a single lock. Takers that accept any lane get
+    // SYSTEM tasks first. Only the CLIENT lane has a capacity.
+    private static final class LaneQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition anyReady = lock.newCondition();
+        private final Condition[] laneReady = {lock.newCondition(), lock.newCondition()};
+        private final Condition clientNotFull = lock.newCondition();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayDeque<QueuedTask>[] lanes = new ArrayDeque[]{new ArrayDeque<>(), new ArrayDeque<>()};
+        private final int clientCapacity;
+
+        LaneQueue(int clientCapacity) {
+            this.clientCapacity = clientCapacity;
+        }
+
+        boolean offer(QueuedTask task) {
+            lock.lock();
+            try {
+                if (isFull(task.lane)) return false;
+                add(task);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean offer(QueuedTask task, long timeoutNanos) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (isFull(task.lane)) {
+                    if (timeoutNanos <= 0) return false;
+                    timeoutNanos = clientNotFull.awaitNanos(timeoutNanos);
+                }
+                add(task);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Next task from only (or any lane if null). Waits up to timeoutNanos,
+        // or forever if it is negative. Returns null on timeout.
+        QueuedTask take(Lane only, long timeoutNanos) throws InterruptedException {
+            Condition ready = only == null ? anyReady : laneReady[only.ordinal()];
+            lock.lockInterruptibly();
+            try {
+                while (true) {
+                    QueuedTask task = only == null ? pollAnyLocked() : pollLocked(only);
+                    if (task != null) return task;
+                    if (timeoutNanos < 0) {
+                        ready.await();
+                    } else if (timeoutNanos == 0) {
+                        return null;
+                    } else {
+                        timeoutNanos = ready.awaitNanos(timeoutNanos);
+                        if (timeoutNanos <= 0) timeoutNanos = 0;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        QueuedTask pollOldest(Lane lane) {
+            lock.lock();
+            try {
+                return pollLocked(lane);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Enqueue time of the longest waiting task in any lane, or -1 if empty
+        long oldestEnqueuedNanos() {
+            lock.lock();
+            try {
+                long oldest = -1;
+                for (ArrayDeque<QueuedTask> lane : lanes) {
+                    QueuedTask head = lane.peekFirst();
+                    if (head != null && (oldest == -1 || head.enqueuedNanos - oldest < 0)) {
+                        oldest = head.enqueuedNanos;
+                    }
+                }
+                return oldest;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return lanes[0].size() + lanes[1].size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size(Lane lane) {
+            lock.lock();
+            try {
+                return lanes[lane.ordinal()].size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isFull(Lane lane) {
+            return lane == Lane.CLIENT && lanes[lane.ordinal()].size() >= clientCapacity;
+        }
+
+        private void add(QueuedTask task) {
+            lanes[task.lane.ordinal()].addLast(task);
+            // one waiter of each kind, a spare wake up just waits again
+            laneReady[task.lane.ordinal()].signal();
+            anyReady.signal();
+        }
+
+        private QueuedTask pollAnyLocked() {
+            QueuedTask task = pollLocked(Lane.SYSTEM);
+            return task != null ? task : pollLocked(Lane.CLIENT);
+        }
+
+        private QueuedTask pollLocked(Lane lane) {
+            QueuedTask task = lanes[lane.ordinal()].pollFirst();
+            if (task != null && lane == Lane.CLIENT) {
+                clientNotFull.signal();
+            }
+            return task;
+        }
+    }
+
     private class Worker implements Runnable {
         @Override
         public void run() {
             while (running) {
                 try {
-                    Runnable task = queue.take();
-                    task.run();
+                    QueuedTask next;
+                    if (poolSize.get() > coreThreads) {
+                        next = queue.take(null, keepAliveNanos);
+                        if (next == null && retire()) return;
+                    } else {
+                        next = queue.take(null, -1);
+                    }
+                    if (next != null) {
+                        runTask(next);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            poolSize.decrementAndGet();
+        }
+
+        // Leaves the pool if it is still above core
+        private boolean retire() {
+            int n = poolSize.get();
+            if (n > coreThreads && poolSize.compareAndSet(n, n - 1)) {
+                shrinkCount.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // A reserved worker, only ever runs tasks from its own lane
+    private class LaneWorker implements Runnable {
+        private final Lane lane;
+
+        LaneWorker(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    runTask(queue.take(lane, -1));
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                 }
             }
+            reservedWorkers[lane.ordinal()].decrementAndGet();
+        }
+    }
+
+    // elastic sizing
+
+    private void supervise() {
+        long checkMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(growAfterWaitNanos) / 2);
+        while (running) {
+            try {
+                Thread.sleep(checkMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long oldest = queue.oldestEnqueuedNanos();
+            if (oldest == -1 || System.nanoTime() - oldest < growAfterWaitNanos) {
+                continue;
+            }
+            // every worker is busy, give each waiting task its own, up to max
+            int backlog = queue.size();
+            while (backlog-- > 0 && addWorker()) {
+                // keep going
+            }
+        }
+    }
+
+    private boolean addWorker() {
+        int n;
+        do {
+            n = poolSize.get();
+            if (n >= maxThreads || !running) return false;
+        } while (!poolSize.compareAndSet(n, n + 1));
+        peakPoolSize.accumulateAndGet(n + 1, Math::max);
+        growCount.increment();
+        startWorker(new Worker());
+        return true;
+    }
+
+    // work stealing
+
+    private void push(QueuedTask task) {
+        stealingQueued[task.lane.ordinal()].incrementAndGet();
+        StealingWorker self = currentWorker.get();
+        if (task.lane == Lane.SYSTEM) {
+            systemTasks.add(task);
+        } else if (self != null) {
+            self.deque.addLast(task);
+        } else {
+            int i = Math.floorMod(nextWorker.getAndIncrement(), stealingWorkers.length);
+            stealingWorkers[i].deque.addLast(task);
+        }
+        wakeIdleWorker();
+    }
+
+    // A task left the system queue or a deque
+    private void dequeued(QueuedTask task) {
+        stealingQueued[task.lane.ordinal()].decrementAndGet();
+        if (task.lane == Lane.CLIENT && slots != null) {
+            slots.release();
+        }
+    }
+
+    private void wakeIdleWorker() {
+        StealingWorker w;
+        while ((w = idleWorkers.poll()) != null) {
+            if (w.idle.compareAndSet(true, false)) {
+                LockSupport.unpark(w.thread);
+                return;
+            }
+        }
+    }
+
+    private class StealingWorker implements Runnable {
+
+        private final ConcurrentLinkedDeque<QueuedTask> deque = new ConcurrentLinkedDeque<>();
+        // true while registered in idleWorkers, whoever clears it owns the wake up
+        private final AtomicBoolean idle = new AtomicBoolean(false);
+        private volatile Thread thread;
+
+        @Override
+        public void run() {
+            currentWorker.set(this);
+            while (running) {
+                QueuedTask task = findTask();
+                if (task == null) task = awaitTask();
+                if (task != null) {
+                    dequeued(task);
+                    runTask(task);
+                }
+            }
+            poolSize.decrementAndGet();
+        }
+
+        private QueuedTask findTask() {
+            QueuedTask task = systemTasks.poll();
+            if (task == null) task = deque.pollFirst();
+            if (task == null) task = steal();
+            return task;
+        }
+
+        private QueuedTask steal() {
+            int n = stealingWorkers.length;
+            int start = n == 1 ? 0 : ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                StealingWorker victim = stealingWorkers[(start + i) % n];
+                if (victim == this) continue;
+                QueuedTask task = victim.deque.pollFirst();
+                if (task != null) return task;
+            }
+            return null;
+        }
+
+        // Registers as idle before the last scan, so a task pushed after the
+        // scan always finds this worker in idleWorkers and unparks it
+        private QueuedTask awaitTask() {
+            idle.set(true);
+            idleWorkers.add(this);
+            QueuedTask task = findTask();
+            if (task != null) {
+                if (idle.compareAndSet(true, false)) {
+                    idleWorkers.remove(this);
+                }
+                return task;
+            }
+            while (idle.get() && running) {
+                LockSupport.park(this);
+            }
+            return null;
         }
     }
 }
@@ -0,0 +1,327 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed wheel timer, the server's scheduling service.
+//
+// Time is cut into ticks of tickMillis, and the wheel has wheelSize buckets
+// (a power of two). A timer due in n ticks goes in bucket (now + n) % size,
+// with n / size full turns to wait. Buckets are intrusive linked lists, so
+// adding, cancelling or moving a timer is O(1) however many are pending. The
+// cost is precision: timers fire up to one tick late.
+//
+// Only the wheel thread touches the buckets. schedule(), cancel() and the
+// reschedule calls just queue the timer, and the wheel thread applies the
+// change at its next tick. Jobs run on the wheel thread unless given an
+// Executor, so anything slow should pass one (e.g. a ThreadPool lane).
+public class TimingWheel {
+
+    // how many queued changes one tick applies, the rest wait for the next one
+    private static final int MAX_CHANGES_PER_TICK = 100_000;
+
+    // A scheduled job. Returned by the schedule methods and safe to use from any thread.
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final Executor executor;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile long deadlineNanos;
+        private volatile long periodNanos; // 0 for one-shot jobs
+        // deadline a fixed rate job last fired for, before its first run one
+        // period before the first deadline
+        private volatile long lastDeadlineNanos;
+
+        // wheel thread only
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        private long remainingRounds;
+
+        private Timeout(TimingWheel wheel, Runnable task, Executor executor, long deadlineNanos, long periodNanos) {
+            this.wheel = wheel;
+            this.task = task;
+            this.executor = executor;
+            this.deadlineNanos = deadlineNanos;
+            this.periodNanos = periodNanos;
+            this.lastDeadlineNanos = deadlineNanos - periodNanos;
+        }
+
+        // Stops the job. Returns false if it was already cancelled or a one-shot already ran.
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            wheel.changes.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        // True once a one-shot job has run
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        public boolean isPeriodic() {
+            return periodNanos > 0;
+        }
+
+        public long getPeriodMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(periodNanos);
+        }
+
+        // Fires delayMillis from now instead, a one-shot that already ran is
+        // armed again. Returns false if cancelled.
+        public boolean reschedule(long delayMillis) {
+            if (delayMillis < 0) {
+                throw new IllegalArgumentException("delay must be >= 0");
+            }
+            deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if (state.compareAndSet(EXPIRED, PENDING)) {
+                wheel.pending.incrementAndGet();
+            } else if (state.get() != PENDING) {
+                return false;
+            }
+            wheel.changes.add(this);
+            return true;
+        }
+
+        // Changes a fixed rate job's period now. The next run is due one new
+        // period after the last one, or straight away if that has passed.
+        public void setPeriod(long periodMillis) {
+            if (!isPeriodic()) {
+                throw new IllegalStateException("not a fixed rate job");
+            }
+            if (periodMillis <= 0) {
+                throw new IllegalArgumentException("period must be > 0");
+            }
+            long newPeriod = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+            periodNanos = newPeriod;
+            deadlineNanos = lastDeadlineNanos + newPeriod;
+            if (state.get() == PENDING) {
+                wheel.changes.add(this);
+            }
+        }
+    }
+
+    // Doubly linked list of timers, owned by the wheel thread
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null) {
+                head = t;
+            } else {
+                tail.next = t;
+            }
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null) head = t.next; else t.prev.next = t.next;
+            if (t.next == null) tail = t.prev; else t.next.prev = t.prev;
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> changes = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private volatile boolean running = false;
+    private volatile Thread thread;
+    private long startNanos;
+    private long tick = 0; // wheel thread only
+
+    public TimingWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tick must be > 0");
+        }
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheel size must be a power of two");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("TimingWheel already started");
+        }
+        startNanos = System.nanoTime();
+        running = true;
+        thread = new Thread(this::run, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops the wheel thread, pending timers never fire
+    public void stop() {
+        running = false;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    // Timers that are scheduled and have not run or been cancelled yet
+    public long pendingTimers() {
+        return pending.get();
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        return schedule(task, delayMillis, null);
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis, Executor executor) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delay must be >= 0");
+        }
+        return add(task, delayMillis, 0, executor);
+    }
+
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        return scheduleAtFixedRate(task, initialDelayMillis, periodMillis, null);
+    }
+
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis, Executor executor) {
+        if (initialDelayMillis < 0 || periodMillis <= 0) {
+            throw new IllegalArgumentException("delay must be >= 0 and period > 0");
+        }
+        return add(task, initialDelayMillis, TimeUnit.MILLISECONDS.toNanos(periodMillis), executor);
+    }
+
+    private Timeout add(Runnable task, long delayMillis, long periodNanos, Executor executor) {
+        if (task == null) {
+            throw new IllegalArgumentException("task cannot be null");
+        }
+        if (!running) {
+            throw new IllegalStateException("TimingWheel is not running");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        Timeout timeout = new Timeout(this, task, executor, deadline, periodNanos);
+        pending.incrementAndGet();
+        changes.add(timeout);
+        return timeout;
+    }
+
+    // wheel thread
+
+    private void run() {
+        List<Timeout> periodic = new ArrayList<>();
+        while (running) {
+            long tickEnd = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while (running && (wait = tickEnd - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (!running) break;
+
+            applyChanges();
+            long now = System.nanoTime();
+            Bucket bucket = buckets[(int) (tick & mask)];
+            Timeout t = bucket.head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds > 0) {
+                    t.remainingRounds--;
+                } else {
+                    bucket.remove(t);
+                    if (fire(t, now)) {
+                        periodic.add(t);
+                    }
+                }
+                t = next;
+            }
+            // put fixed rate jobs back after the pass, they may land in this same bucket
+            for (Timeout p : periodic) {
+                insert(p);
+            }
+            periodic.clear();
+            tick++;
+        }
+    }
+
+    private void applyChanges() {
+        for (int i = 0; i < MAX_CHANGES_PER_TICK; i++) {
+            Timeout t = changes.poll();
+            if (t == null) return;
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+            if (t.state.get() == Timeout.CANCELLED) {
+                if (t.remainingRounds != -1) {
+                    t.remainingRounds = -1; // count each cancellation once
+                    pending.decrementAndGet();
+                }
+            } else if (t.state.get() == Timeout.PENDING) {
+                insert(t);
+            }
+        }
+    }
+
+    private void insert(Timeout t) {
+        // a tick is processed once it has ended, so anything due before then fires in it
+        long due = Math.max((t.deadlineNanos - startNanos) / tickNanos, tick);
+        t.remainingRounds = (due - tick) / buckets.length;
+        buckets[(int) (due & mask)].add(t);
+    }
+
+    // Runs t. Returns true if it is fixed rate and should be inserted again.
+    private boolean fire(Timeout t, long now) {
+        long period = t.periodNanos;
+        if (period == 0) {
+            if (!t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) return false;
+            pending.decrementAndGet();
+        } else if (t.state.get() != Timeout.PENDING) {
+            return false;
+        }
+        dispatch(t);
+        if (period == 0) return false;
+
+        // fixed rate, runs missed while we were behind are skipped
+        long deadline = t.deadlineNanos;
+        t.lastDeadlineNanos = deadline;
+        period = t.periodNanos;
+        deadline += period;
+        if (deadline - now <= 0) {
+            deadline += ((now - deadline) / period + 1) * period;
+        }
+        t.deadlineNanos = deadline;
+        return true;
+    }
+
+    private void dispatch(Timeout t) {
+        try {
+            if (t.executor == null) {
+                t.task.run();
+            } else {
+                t.executor.execute(t.task);
+            }
+        } catch (RuntimeException e) {
+            // one bad job must not stop the wheel
+            System.err.println("[TIMER] Job failed: " + e);
+            e.printStackTrace();
+        }
+    }
+}
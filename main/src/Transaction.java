@@ -1,6 +1,5 @@
 import java.io.Serializable;
 import java.time.Instant;
-import java.util.Objects;
 import java.util.UUID;
 
 public class Transaction implements Serializable {
@@ -31,7 +30,8 @@ public class Transaction implements Serializable {
         if (time == null) throw new IllegalArgumentException("Time cannot be null");
         if (amount <= 0) throw new IllegalArgumentException("Amount must be > 0");
 
-        this.id = Objects.requireNonNullElse(id, UUID.randomUUID().toString());
+        // not requireNonNullElse, which would make a random UUID for every loaded row
+        this.id = id != null ? id : UUID.randomUUID().toString();
         this.type = type;
         this.time = time;
         this.from = from;
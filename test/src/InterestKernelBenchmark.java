@@ -0,0 +1,101 @@
+// Interest credit pass throughput: the old one account at a time loop
+// against the snapshot + InterestKernel + Account.addInterest path that
+// BankService uses. Accounts are wired up like AccountStore does (epochs and
+// the balance index), so both modes pay for the same bookkeeping on every
+// credit. Hand-rolled like ThreadPoolBenchmark, warmup iterations are thrown
+// away and the measured ones reported as mean +- stddev.
+//
+//   java InterestKernelBenchmark [accounts]
+//
+// Modes:
+//   compute - InterestKernel.compute over a long[] snapshot alone
+//   objects - read, round and deposit per Account, as before user-040
+//   bulk    - snapshot, InterestKernel.compute, then addInterest per Account
+public class InterestKernelBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final double RATE = 0.0001;
+
+    // keeps the JIT from removing the loops
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        Epochs epochs = new Epochs();
+        BalanceIndex index = new BalanceIndex();
+        Account[] accounts = new Account[n];
+        java.util.Random random = new java.util.Random(42);
+        // cheapest hash cost, only the balances matter here
+        String hash = PasswordHasher.hash("pwd", PasswordHasher.MIN_ITERATIONS);
+        for (int i = 0; i < n; i++) {
+            accounts[i] = Account.withPasswordHash("user" + i, hash, random.nextInt(1_000_000));
+            accounts[i].setEpochs(epochs, 0);
+            index.add(accounts[i]);
+        }
+        long[] balances = new long[n];
+        long[] out = new long[n];
+        for (int i = 0; i < n; i++) {
+            balances[i] = accounts[i].getBalance();
+        }
+
+        System.out.println("accounts=" + n);
+        System.out.printf("%-8s %20s%n", "mode", "accounts/s");
+        report("compute", n, () -> {
+            InterestKernel.compute(balances, RATE, out, n);
+            blackhole += out[n - 1];
+        });
+        report("objects", n, () -> {
+            Epochs.enterWrite();
+            try {
+                long sum = 0;
+                for (Account acc : accounts) {
+                    long interest = InterestKernel.interestOn(acc.getBalance(), RATE);
+                    if (interest > 0) {
+                        acc.deposit(interest);
+                        sum += interest;
+                    }
+                }
+                blackhole += sum;
+            } finally {
+                Epochs.exitWrite();
+            }
+        });
+        report("bulk", n, () -> {
+            for (int i = 0; i < n; i++) {
+                balances[i] = accounts[i].getBalance();
+            }
+            InterestKernel.compute(balances, RATE, out, n);
+            Epochs.enterWrite();
+            try {
+                long sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += accounts[i].addInterest(balances[i], out[i], b -> InterestKernel.interestOn(b, RATE));
+                }
+                blackhole += sum;
+            } finally {
+                Epochs.exitWrite();
+            }
+        });
+        if (blackhole == 42) System.out.println();
+    }
+
+    private static void report(String mode, int n, Runnable body) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            body.run();
+        }
+        double[] samples = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            body.run();
+            samples[i] = n / ((System.nanoTime() - start) / 1e9);
+        }
+        double mean = 0;
+        for (double s : samples) mean += s;
+        mean /= samples.length;
+        double var = 0;
+        for (double s : samples) var += (s - mean) * (s - mean);
+        System.out.printf("%-8s %,16.0f +- %,.0f%n", mode, mean, Math.sqrt(var / (samples.length - 1)));
+    }
+}
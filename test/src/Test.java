@@ -1,17 +1,38 @@
 // Lots of imports :(
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -148,7 +169,33 @@ class AccountStoreTest {
 
         assertNotNull(first);
         assertNull(second); // this username already exists
-        assertEquals("pwd1", store.getAccount("alice").getPasswordForPersistence());
+        assertTrue(store.getAccount("alice").checkPassword("pwd1"));
+        assertFalse(store.getAccount("alice").checkPassword("pwd2"));
+    }
+
+    @Test
+    void loadFromMigratesPlainTextRowsAndKeepsHashCost() throws IOException {
+
+        Path tempFile = Files.createTempFile("accountStoreTest", ".txt");
+        try {
+            Files.writeString(tempFile, "#hashCost;2000\nalice;pwd1;1500\nbob;pwd2;700\n");
+            AccountStore loaded = new AccountStore();
+            loaded.loadFrom(tempFile);
+
+            assertEquals(2000, loaded.getHashIterations());
+            Account alice = loaded.getAccount("alice");
+            assertEquals(1500L, alice.getBalance());
+            assertTrue(alice.checkPassword("pwd1"));
+            assertTrue(PasswordHasher.isHash(alice.getPasswordForPersistence()));
+            assertEquals(2000, alice.getHashIterations());
+
+            loaded.saveTo(tempFile);
+            String saved = Files.readString(tempFile);
+            assertTrue(saved.startsWith("#hashCost;2000"));
+            assertFalse(saved.contains(";pwd1;"));
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
     }
 
     @Test
@@ -179,6 +226,120 @@ class AccountStoreTest {
 
     }
 
+
+    @Test
+    void balanceIndexFollowsEveryBalanceChange() throws Exception {
+        AccountStore store = new AccountStore();
+        store.setHashIterations(PasswordHasher.MIN_ITERATIONS);
+        BankService service = new BankService(store, new Ledger());
+        for (int i = 0; i < 20; i++) {
+            store.createAccount("u" + i, "pwd");
+        }
+        service.deposit("u3", 5000);
+        service.withdraw("u7", 900);
+        service.applyInterest(0.1);
+
+        BalanceIndex index = store.getBalanceIndex();
+        assertEquals(20, index.size());
+        assertEquals("u3", index.top(1).get(0).getUser());
+        assertEquals(6600, index.top(1).get(0).getBalance());
+        assertEquals(110, index.percentile(0));
+        assertEquals(1100, index.percentile(50));
+        assertEquals(6600, index.percentile(100));
+        assertEquals(List.of("u3"), index.atLeast(1101).stream().map(BalanceIndex.Entry::getUser).toList());
+
+        // concurrent transfers keep exactly one entry per account at its balance
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    service.transfer("u" + (i * 7 + seed) % 20, "u" + (i * 13 + seed * 3) % 20, 1 + (i + seed) % 50);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        List<BalanceIndex.Entry> all = index.top(100);
+        assertEquals(20, all.size());
+        for (BalanceIndex.Entry e : all) {
+            assertEquals(store.getAccount(e.getUser()).getBalance(), e.getBalance());
+        }
+
+        Path tempFile = Files.createTempFile("accountStoreTest", ".txt");
+        try {
+            store.saveTo(tempFile);
+            Account old = store.getAccount("u0");
+            store.loadFrom(tempFile);
+            old.deposit(1_000_000); // no longer in the store, must not show up
+            assertEquals(20, index.size());
+            assertEquals(all.get(0).getBalance(), index.top(1).get(0).getBalance());
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
+
+//Password hashing tests
+
+class PasswordHasherTest {
+
+    @Test
+    void hashVerifiesOnlyTheOriginalPassword() {
+        String a = PasswordHasher.hash("secret", 1000);
+        String b = PasswordHasher.hash("secret", 1000);
+
+        assertNotEquals(a, b); // salted
+        assertTrue(PasswordHasher.verify("secret", a));
+        assertFalse(PasswordHasher.verify("Secret", a));
+        assertFalse(PasswordHasher.verify("secret", "secret"));
+        assertEquals(1000, PasswordHasher.iterationsOf(a));
+        assertThrows(IllegalArgumentException.class, () -> PasswordHasher.hash("secret", 10));
+    }
+
+    @Test
+    void loginRehashesWhenStoreCostChanges() {
+        AccountStore store = new AccountStore();
+        store.setHashIterations(1000);
+        BankService bank = new BankService(store, new Ledger());
+        bank.createAccount("alice", "pwd");
+
+        store.setHashIterations(3000);
+        assertNull(bank.login("alice", "wrong"));
+        assertEquals(1000, store.getAccount("alice").getHashIterations());
+        assertNotNull(bank.login("alice", "pwd"));
+        assertEquals(3000, store.getAccount("alice").getHashIterations());
+        assertTrue(store.getAccount("alice").checkPassword("pwd"));
+    }
+
+    @Test
+    void credentialVerifierRejectsWorkPastItsQueue() throws Exception {
+        CredentialVerifier verifier = new CredentialVerifier(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<Integer> running = verifier.submit(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            });
+            CompletableFuture<Integer> queued = verifier.submit(() -> 2);
+            CompletableFuture<Integer> rejected = verifier.submit(() -> 3);
+
+            ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+            release.countDown();
+            assertEquals(1, (int) running.get());
+            assertEquals(2, (int) queued.get());
+        } finally {
+            verifier.shutdown();
+        }
+    }
 }
 
 //Transaction Test
@@ -278,58 +439,1237 @@ class LedgerTest {
         assertEquals(t1, all.get(0));
     }
 
-    @Test
-    void findUserReturnsTransactionsWhereUserIsFromOrTo() {
+    @Test
+    void findUserReturnsTransactionsWhereUserIsFromOrTo() {
+
+        Ledger ledger = new Ledger();
+
+        Transaction t1 = Transaction.deposit("alice", 100L);
+        Transaction t2 = Transaction.transfer("alice", "bob", 50L);
+        Transaction t3 = Transaction.withdrawal("bob", 20L);
+
+        ledger.append(t1);
+        ledger.append(t2);
+        ledger.append(t3);
+
+        List<Transaction> aliceTx = ledger.findUser("alice");
+        assertTrue(aliceTx.contains(t1));
+        assertTrue(aliceTx.contains(t2));
+        assertEquals(2, aliceTx.size());
+
+        List<Transaction> bobTx = ledger.findUser("bob");
+        assertTrue(bobTx.contains(t2));
+        assertTrue(bobTx.contains(t3));
+        assertEquals(2, bobTx.size());
+
+    }
+
+    @Test
+    void saveAndLoadRoundTrip() throws IOException {
+
+        Ledger ledger = new Ledger();
+        ledger.append(Transaction.deposit("alice", 100L));
+        ledger.append(Transaction.transfer("alice", "bob", 50L));
+
+        Path tempFile = Files.createTempFile("ledgerTest", ".txt");
+        try {
+
+            ledger.saveTo(tempFile);
+
+            Ledger loaded = new Ledger();
+
+            loaded.loadFrom(tempFile);
+
+            List<Transaction> loadedAll = loaded.all();
+
+            assertEquals(2, loadedAll.size());
+            // my sanity check: types and amounts are preserved
+
+            assertEquals(Transaction.Type.DEPOSIT, loadedAll.get(0).getType());
+            assertEquals(100L, loadedAll.get(0).getAmount());
+
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Test
+    void interestBatchExpandsInPlaceAndSurvivesSaveAndLoad() throws IOException {
+        Ledger ledger = new Ledger();
+        ledger.append(Transaction.deposit("alice", 100L));
+        ledger.appendInterestBatch(new InterestBatch(0.01, null,
+                new String[]{"carol", "alice", "bob"}, new long[]{30L, 10L, 20L}));
+        ledger.append(Transaction.withdrawal("bob", 5L));
+
+        List<Transaction> all = ledger.all();
+        assertEquals(5, all.size());
+        assertEquals(Transaction.Type.DEPOSIT, all.get(0).getType());
+        assertEquals(Transaction.Type.INTEREST, all.get(1).getType());
+        assertEquals(Transaction.Type.WITHDRAWAL, all.get(4).getType());
+
+        List<Transaction> bobTx = ledger.findUser("bob");
+        assertEquals(2, bobTx.size());
+        assertEquals(Transaction.Type.INTEREST, bobTx.get(0).getType());
+        assertEquals("bob", bobTx.get(0).getTo());
+        assertEquals(20L, bobTx.get(0).getAmount());
+
+        Path tempFile = Files.createTempFile("ledgerTest", ".txt");
+        try {
+            ledger.saveTo(tempFile);
+            Ledger loaded = new Ledger();
+            loaded.loadFrom(tempFile);
+
+            List<Transaction> loadedAll = loaded.all();
+            assertEquals(5, loadedAll.size());
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals(all.get(i).getId(), loadedAll.get(i).getId());
+                assertEquals(all.get(i).getAmount(), loadedAll.get(i).getAmount());
+                assertEquals(all.get(i).getTime().toEpochMilli(), loadedAll.get(i).getTime().toEpochMilli());
+            }
+            assertEquals(30L, loaded.findUser("carol").get(0).getAmount());
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Test
+    void timeRangeQueriesScanOnlyOverlappingBlocks() {
+        Ledger ledger = new Ledger();
+        Instant base = Instant.parse("2024-05-01T00:00:00Z");
+        for (int i = 0; i < 5000; i++) {
+            String user = i % 2 == 0 ? "alice" : "bob";
+            ledger.append(new Transaction(null, Transaction.Type.DEPOSIT, base.plusSeconds(i), null, user, 1 + i));
+            if (i == 2500) {
+                ledger.appendInterestBatch(new InterestBatch(null, base.plusSeconds(i).plusMillis(500), 0.01, null,
+                        new String[]{"alice", "bob"}, new long[]{7L, 9L}));
+            }
+        }
+        Instant from = base.plusSeconds(2400);
+        Instant to = base.plusSeconds(2600);
+
+        List<Transaction> expected = new ArrayList<>();
+        for (Transaction t : ledger.all()) {
+            if (!t.getTime().isBefore(from) && t.getTime().isBefore(to)) expected.add(t);
+        }
+        List<Transaction> range = ledger.between(from, to);
+        assertEquals(202, range.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), range.get(i).getId());
+        }
+        assertTrue(ledger.blocksOverlapping(from, to) <= 2, "scanned every block");
+
+        List<Transaction> bob = ledger.between(from, to, "bob");
+        assertEquals(101, bob.size());
+        assertTrue(bob.stream().anyMatch(t -> t.getType() == Transaction.Type.INTEREST && t.getAmount() == 9L));
+        assertTrue(ledger.between(base.minusSeconds(10), base).isEmpty());
+        assertEquals(0, ledger.blocksOverlapping(base.minusSeconds(10), base));
+        assertThrows(IllegalArgumentException.class, () -> ledger.between(null, to));
+    }
+
+    @Test
+    void oldInterestRowsStillLoad() throws IOException {
+        Path tempFile = Files.createTempFile("ledgerTest", ".txt");
+        try {
+            Files.writeString(tempFile, "t1;INTEREST;1000;;alice;25\nt2;DEPOSIT;2000;;alice;5\n");
+            Ledger loaded = new Ledger();
+            loaded.loadFrom(tempFile);
+
+            List<Transaction> aliceTx = loaded.findUser("alice");
+            assertEquals(2, aliceTx.size());
+            assertEquals("t1", aliceTx.get(0).getId());
+            assertEquals(Transaction.Type.INTEREST, aliceTx.get(0).getType());
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Test
+    void balanceChangeUntilMatchesAFullReplay() {
+        Ledger ledger = new Ledger();
+        Instant base = Instant.parse("2024-05-01T00:00:00Z");
+        for (int i = 0; i < 1000; i++) {
+            // every tenth row lands a little before the one ahead of it
+            Instant time = base.plusSeconds(i).minusMillis(i % 10 == 0 ? 1500 : 0);
+            switch (i % 4) {
+                case 0 -> ledger.append(new Transaction(null, Transaction.Type.DEPOSIT, time, null, "alice", 10 + i));
+                case 1 -> ledger.append(new Transaction(null, Transaction.Type.WITHDRAWAL, time, "alice", null, 3));
+                case 2 -> ledger.append(new Transaction(null, Transaction.Type.TRANSFER, time, "alice", "bob", 5));
+                default -> ledger.appendInterestBatch(new InterestBatch(null, time, 0.01, null,
+                        new String[]{"alice", "bob"}, new long[]{1L, 2L}));
+            }
+        }
+        List<Transaction> all = ledger.all();
+        for (int s = -5; s < 1005; s += 7) {
+            Instant at = base.plusSeconds(s).plusMillis(250);
+            long expected = 0;
+            for (Transaction t : all) {
+                if (t.getTime().isAfter(at)) continue;
+                if ("alice".equals(t.getTo())) expected += t.getAmount();
+                if ("alice".equals(t.getFrom())) expected -= t.getAmount();
+            }
+            assertEquals(expected, ledger.balanceChangeUntil("alice", at), "at " + at);
+        }
+        assertEquals(0, ledger.balanceChangeUntil("nobody", base.plusSeconds(500)));
+        assertEquals(250 * 5 + 250 * 2, ledger.balanceChangeUntil("bob", base.plusSeconds(2000)));
+    }
+
+    @Test
+    void rollupsFollowAppendsAndReloads() throws IOException {
+        Ledger ledger = new Ledger();
+        Instant base = Instant.parse("2024-05-01T10:00:00Z");
+        ledger.append(new Transaction(null, Transaction.Type.DEPOSIT, base.plusSeconds(60), null, "alice", 100));
+        ledger.append(new Transaction(null, Transaction.Type.DEPOSIT, base.plusSeconds(120), null, "bob", 50));
+        ledger.append(new Transaction(null, Transaction.Type.TRANSFER, base.plusSeconds(3700), "alice", "bob", 30));
+        ledger.append(new Transaction(null, Transaction.Type.WITHDRAWAL, base.plusSeconds(86400), "bob", null, 20));
+        ledger.appendInterestBatch(new InterestBatch(null, base.plusSeconds(3800), 0.01, null,
+                new String[]{"alice", "bob"}, new long[]{1L, 2L}));
+
+        List<LedgerRollups.Totals> hours = ledger.hourlyTotals(base, base.plusSeconds(2 * 3600));
+        assertEquals(2, hours.size());
+        assertEquals(base, hours.get(0).getStart());
+        assertEquals(2, hours.get(0).getCount(Transaction.Type.DEPOSIT));
+        assertEquals(150, hours.get(0).getSum(Transaction.Type.DEPOSIT));
+        assertEquals(30, hours.get(1).getSum(Transaction.Type.TRANSFER));
+        assertEquals(2, hours.get(1).getCount(Transaction.Type.INTEREST));
+        assertEquals(3, hours.get(1).getSum(Transaction.Type.INTEREST));
+
+        List<LedgerRollups.Totals> days = ledger.dailyTotals(Instant.parse("2024-05-01T00:00:00Z"),
+                Instant.parse("2024-05-03T00:00:00Z"));
+        assertEquals(2, days.size());
+        assertEquals(5, days.get(0).getTotalCount());
+        assertEquals(20, days.get(1).getSum(Transaction.Type.WITHDRAWAL));
+        // a bucket is reported only if it starts inside the range
+        assertEquals(1, ledger.dailyTotals(base, Instant.parse("2024-05-03T00:00:00Z")).size());
+
+        LedgerRollups.Flow bob = ledger.flowOf("bob");
+        assertEquals(50 + 30 + 2, bob.getIn());
+        assertEquals(20, bob.getOut());
+        assertEquals(-30 + 100 + 1, ledger.flowOf("alice").getNet());
+        assertEquals(0, ledger.flowOf("nobody").getIn());
+
+        Path tempFile = Files.createTempFile("ledgerTest", ".txt");
+        try {
+            ledger.saveTo(tempFile);
+            Ledger loaded = new Ledger();
+            loaded.append(new Transaction(Transaction.Type.DEPOSIT, null, "carol", 5));
+            loaded.loadFrom(tempFile);
+            assertEquals(2, loaded.flows().size());
+            assertEquals(bob.getNet(), loaded.flowOf("bob").getNet());
+            assertEquals(hours.get(1).toString(), loaded.hourlyTotals(base, base.plusSeconds(2 * 3600)).get(1).toString());
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
+
+// LedgerReconciler
+
+class LedgerReconcilerTest {
+
+    @Test
+    void savedFilesThatAgreeAreClean() throws IOException {
+        AccountStore store = new AccountStore();
+        Ledger ledger = new Ledger();
+        BankService service = new BankService(store, ledger);
+        store.createAccount("alice", "pwd");
+        store.createAccount("bob", "pwd");
+        store.createAccount("carol", "pwd");
+        service.deposit("alice", 500);
+        service.withdraw("bob", 200);
+        service.transfer("alice", "bob", 300);
+        service.applyInterest(0.01);
+
+        Path ledgerFile = Files.createTempFile("reconcileLedger", ".txt");
+        try {
+            ledger.saveTo(ledgerFile);
+            LedgerReconciler.Report report = new LedgerReconciler(3).reconcile(ledgerFile, store.allAccounts());
+            assertTrue(report.isClean(), report.toString());
+            assertEquals(3 + 3, report.getRows());
+            assertEquals(3, report.getLedgerUsers());
+            assertEquals(3, report.getAccounts());
+        } finally {
+            Files.deleteIfExists(ledgerFile);
+        }
+    }
+
+    @Test
+    void reportsWrongBalancesAndUsersWithoutAccounts() throws IOException {
+        Path ledgerFile = Files.createTempFile("reconcileLedger", ".txt");
+        try {
+            StringBuilder sb = new StringBuilder();
+            // enough rows for several chunks, with a batch straddling a chunk boundary
+            for (int i = 0; i < 20000; i++) {
+                sb.append("t").append(i).append(";DEPOSIT;1000;;alice;1\n");
+                if (i == 8190) {
+                    sb.append("#interestBatch;b1;1000;0.01;;2\nalice;5\nbob;7\n");
+                }
+            }
+            sb.append("bad line\n");
+            sb.append("x1;TRANSFER;1000;bob;ghost;3\n");
+            Files.writeString(ledgerFile, sb.toString());
+
+            int cost = PasswordHasher.MIN_ITERATIONS;
+            List<Account> accounts = List.of(
+                    new Account("alice", "pwd", 1000 + 20000 + 5, cost),
+                    new Account("bob", "pwd", 1000 + 7 - 3 + 10, cost),
+                    new Account("dave", "pwd", 1000, cost));
+            LedgerReconciler.Report report = new LedgerReconciler(4).reconcile(ledgerFile, accounts);
+
+            assertEquals(20000 + 2 + 1, report.getRows());
+            assertEquals(2, report.getDiscrepancyCount());
+            LedgerReconciler.Discrepancy bob = report.getDiscrepancies().get(0);
+            assertEquals("bob", bob.getUser());
+            assertEquals(1000 + 7 - 3, bob.getReplayed());
+            assertEquals(1014L, bob.getActual());
+            LedgerReconciler.Discrepancy ghost = report.getDiscrepancies().get(1);
+            assertEquals("ghost", ghost.getUser());
+            assertNull(ghost.getActual());
+        } finally {
+            Files.deleteIfExists(ledgerFile);
+        }
+    }
+}
+
+// BankSnapshot
+
+class BankSnapshotTest {
+
+    @Test
+    void longInterestRunIsWrittenInSlicesASnapshotCanLandBetween() throws Exception {
+        int slice = BankService.INTEREST_SCOPE_ACCOUNTS;
+        int count = slice * 2 + 10;
+        String hash = PasswordHasher.hash("pwd", PasswordHasher.MIN_ITERATIONS);
+        Path file = Files.createTempFile("accounts", ".txt");
+        try {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                lines.add("user" + i + ";" + hash + ";1000");
+            }
+            Files.write(file, lines);
+            AccountStore store = new AccountStore();
+            store.loadFrom(file);
+            Ledger ledger = new Ledger();
+            BankService service = new BankService(store, ledger);
+
+            // listeners hear about a slice once it is written, so this pins
+            // between the first slice and the second
+            AtomicReference<BankSnapshot> during = new AtomicReference<>();
+            for (int i = 0; i < count; i++) {
+                service.registerListener("user" + i, (u, b, m) -> {
+                    if (during.get() == null) during.set(service.snapshot());
+                });
+            }
+            service.applyInterest(0.1);
+
+            try (BankSnapshot snapshot = during.get()) {
+                assertEquals(1000L * count + 100L * slice, snapshot.getTotalBalance());
+                assertEquals(slice, snapshot.getTransactions().size());
+            }
+            assertEquals(3, ledger.appendCount()); // one batch per slice
+            long total = 0;
+            for (Account acc : store.allAccounts()) {
+                total += acc.getBalance();
+            }
+            assertEquals(1100L * count, total);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void snapshotIgnoresLaterWritesAndAccounts() {
+        AccountStore store = new AccountStore();
+        store.setHashIterations(PasswordHasher.MIN_ITERATIONS);
+        Ledger ledger = new Ledger();
+        BankService service = new BankService(store, ledger);
+        store.createAccount("alice", "pwd");
+        store.createAccount("bob", "pwd");
+        service.deposit("alice", 100);
+
+        try (BankSnapshot snapshot = service.snapshot()) {
+            service.transfer("alice", "bob", 300);
+            service.withdraw("bob", 50);
+            store.createAccount("carol", "pwd");
+
+            assertEquals(1100L, snapshot.getBalance("alice"));
+            assertEquals(1000L, snapshot.getBalance("bob"));
+            assertEquals(Map.of("alice", 1100L, "bob", 1000L), snapshot.getBalances());
+            assertEquals(1, snapshot.getTransactions().size());
+            assertThrows(IllegalArgumentException.class, () -> snapshot.getBalance("carol"));
+            assertEquals(800L, service.getBalance("alice"));
+            assertTrue(store.getAccount("alice").versionCount() > 0);
+        }
+        assertEquals(0, store.getAccount("alice").versionCount());
+        assertEquals(0, store.getAccount("bob").versionCount());
+        assertEquals(0, store.getEpochs().pinnedCount());
+    }
+
+    @Test
+    void writeScopeThatStartedBeforeThePinStaysInsideIt() throws Exception {
+        AccountStore store = new AccountStore();
+        store.setHashIterations(PasswordHasher.MIN_ITERATIONS);
+        BankService service = new BankService(store, new Ledger());
+        Account alice = store.createAccount("alice", "pwd");
+        Account bob = store.createAccount("bob", "pwd");
+        Epochs epochs = store.getEpochs();
+
+        // like an interest run: credits alice, then bob a while later
+        CountDownLatch aliceCredited = new CountDownLatch(1);
+        CountDownLatch goOn = new CountDownLatch(1);
+        Thread run = new Thread(() -> {
+            Epochs.enterWrite();
+            try {
+                alice.deposit(10);
+                aliceCredited.countDown();
+                goOn.await();
+                bob.deposit(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                Epochs.exitWrite();
+            }
+        });
+        run.start();
+        aliceCredited.await();
+        long runEpoch = epochs.current();
+
+        AtomicReference<BankSnapshot> taken = new AtomicReference<>();
+        Thread reader = new Thread(() -> taken.set(service.snapshot()));
+        reader.start();
+        while (epochs.current() == runEpoch) {
+            Thread.onSpinWait(); // pinned, now waiting for the run
+        }
+        // a newer write reaches bob before the run does
+        assertTrue(service.transfer("alice", "bob", 100));
+        goOn.countDown();
+        reader.join();
+        run.join();
+
+        try (BankSnapshot snapshot = taken.get()) {
+            assertEquals(runEpoch, snapshot.getEpoch());
+            assertEquals(1010L, snapshot.getBalance("alice"));
+            assertEquals(1005L, snapshot.getBalance("bob"));
+        }
+        assertEquals(910L, alice.getBalance());
+        assertEquals(1105L, bob.getBalance());
+        assertEquals(0, bob.versionCount());
+    }
+
+    @Test
+    void snapshotsStayConsistentUnderConcurrentWrites() throws Exception {
+        AccountStore store = new AccountStore();
+        store.setHashIterations(PasswordHasher.MIN_ITERATIONS);
+        Ledger ledger = new Ledger();
+        BankService service = new BankService(store, ledger);
+        int users = 16;
+        for (int i = 0; i < users; i++) {
+            store.createAccount("u" + i, "pwd");
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int seed = t;
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 4000; i++) {
+                        String a = "u" + (i * 7 + seed) % users;
+                        String b = "u" + (i * 11 + seed * 5) % users;
+                        switch (i % 8) {
+                            case 0 -> service.deposit(a, 1 + i % 20);
+                            case 1 -> {
+                                try {
+                                    service.withdraw(a, 1 + i % 30);
+                                } catch (IllegalStateException ignored) {
+                                    // insufficient funds
+                                }
+                            }
+                            case 2 -> {
+                                if (seed == 0 && i % 64 == 2) service.applyInterest(0.001);
+                            }
+                            default -> service.transfer(a, b, 1 + i % 40);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            writers[t].start();
+        }
+
+        // snapshot and check until the writers are done
+        int rounds = 0;
+        while (Arrays.stream(writers).anyMatch(Thread::isAlive)) {
+            rounds++;
+            try (BankSnapshot snapshot = service.snapshot()) {
+                Map<String, Long> replayed = new HashMap<>();
+                for (Transaction t : snapshot.getTransactions()) {
+                    if (t.getFrom() != null) replayed.merge(t.getFrom(), -t.getAmount(), Long::sum);
+                    if (t.getTo() != null) replayed.merge(t.getTo(), t.getAmount(), Long::sum);
+                }
+                for (Map.Entry<String, Long> e : snapshot.getBalances().entrySet()) {
+                    long expected = AccountStore.INITIAL_BALANCE + replayed.getOrDefault(e.getKey(), 0L);
+                    assertEquals(expected, (long) e.getValue(), "round " + rounds + " " + e.getKey());
+                }
+            }
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        assertNull(failure.get());
+        assertTrue(rounds > 0);
+        for (Account acc : store.allAccounts()) {
+            assertEquals(0, acc.versionCount());
+        }
+    }
+}
+
+// BinaryProtocol
+
+class BinaryProtocolTest {
+
+    @Test
+    void idAndStringFieldsRoundTrip() {
+        ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+        BinaryProtocol.beginRequest(buf, BinaryProtocol.OP_TRANSFER);
+        BinaryProtocol.putId(buf, "alice");
+        BinaryProtocol.putString(buf, "p\u00e4ss");
+        buf.putLong(250L);
+        BinaryProtocol.finish(buf);
+
+        // length prefix counts everything after itself
+        assertEquals(buf.limit() - 4, buf.getInt());
+        assertEquals(BinaryProtocol.OP_TRANSFER, buf.get());
+        assertEquals("alice", BinaryProtocol.getId(buf));
+        assertEquals("p\u00e4ss", BinaryProtocol.getString(buf));
+        assertEquals(250L, buf.getLong());
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    void putIdRejectsEmptyOrTooLongIds() {
+        ByteBuffer buf = ByteBuffer.allocate(128);
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.putId(buf, ""));
+        assertThrows(IllegalArgumentException.class,
+                () -> BinaryProtocol.putId(buf, "x".repeat(BinaryProtocol.ID_WIDTH + 1)));
+    }
+
+    @Test
+    void transactionRoundTripKeepsNullSides() {
+        Transaction dep = Transaction.deposit("alice", 100L);
+        ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.transactionSize(dep));
+        BinaryProtocol.putTransaction(buf, dep);
+        buf.flip();
+
+        Transaction decoded = BinaryProtocol.getTransaction(buf);
+        assertEquals(dep.getId(), decoded.getId());
+        assertEquals(Transaction.Type.DEPOSIT, decoded.getType());
+        assertEquals(dep.getTime().toEpochMilli(), decoded.getTime().toEpochMilli());
+        assertNull(decoded.getFrom());
+        assertEquals("alice", decoded.getTo());
+        assertEquals(100L, decoded.getAmount());
+    }
+
+    @Test
+    void truncatedOrUnknownFieldsAreRejected() {
+        ByteBuffer shortId = ByteBuffer.wrap("ali".getBytes(StandardCharsets.UTF_8));
+        assertThrows(java.nio.BufferUnderflowException.class, () -> BinaryProtocol.getId(shortId));
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        BinaryProtocol.putString(buf, "id");
+        buf.put((byte) -1);
+        buf.flip();
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.getTransaction(buf));
+    }
+}
+
+// SessionIO
+
+class SessionIOTest {
+
+    @Test
+    void readLineSplitsLinesAndStripsCarriageReturns() throws IOException {
+        byte[] input = "1\r\nalice\n\nh\u00e9llo\nlast".getBytes(StandardCharsets.UTF_8);
+        SessionIO io = new SessionIO(new ByteArrayInputStream(input), new ByteArrayOutputStream());
+
+        assertEquals("1", io.readLine());
+        assertEquals("alice", io.readLine());
+        assertEquals("", io.readLine());
+        assertEquals("h\u00e9llo", io.readLine());
+        assertEquals("last", io.readLine()); // no terminator at end of stream
+        assertNull(io.readLine());
+    }
+
+    @Test
+    void outputOnlyReachesTheStreamOnFlush() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        SessionIO io = new SessionIO(new ByteArrayInputStream(new byte[0]), sink);
+
+        io.println("=== Menu ===");
+        io.print("Pick an option: ");
+        assertEquals(0, sink.size());
+
+        io.flush();
+        assertEquals("=== Menu ===\nPick an option: ", sink.toString(StandardCharsets.UTF_8));
+        assertEquals(1, io.getSocketWrites());
+    }
+
+    @Test
+    void readingFlushesPendingOutputFirst() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        SessionIO io = new SessionIO(new ByteArrayInputStream("2\n".getBytes(StandardCharsets.UTF_8)), sink);
+
+        io.print("Pick an option: ");
+        assertEquals("2", io.readLine());
+        assertEquals("Pick an option: ", sink.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void offerRefusesOutputPastCapWhileWriteIsStalled() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        SessionIO io = new SessionIO(new ByteArrayInputStream(new byte[0]), stuck, 64);
+
+        Thread writer = new Thread(() -> {
+            io.print("menu");
+            try {
+                io.flush();
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+        assertTrue(writing.await(2, TimeUnit.SECONDS));
+
+        // the stalled write is visible to the watchdog, offers do not block on it
+        assertTrue(io.writeStalledNanos(System.nanoTime()) > 0);
+        // the 4 bytes being written count against the cap of 64
+        assertFalse(io.offer("y".repeat(61)));
+        assertTrue(io.offer("small"));
+        assertFalse(io.offer("x".repeat(100)));
+        assertTrue(io.isOverflowed());
+
+        release.countDown();
+        writer.join(2000);
+        assertEquals(0, io.writeStalledNanos(System.nanoTime()));
+    }
+
+    @Test
+    void offerNeverWritesOnTheCallingThread() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        Thread caller = Thread.currentThread();
+        AtomicInteger callerWrites = new AtomicInteger();
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (Thread.currentThread() == caller) {
+                    callerWrites.incrementAndGet();
+                }
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (sent) {
+                    sent.write(b, off, len);
+                }
+            }
+        };
+        SessionIO io = new SessionIO(new ByteArrayInputStream(new byte[0]), stuck);
+
+        // nothing else is writing, yet the client isn't reading either
+        long start = System.nanoTime();
+        assertTrue(io.offer("first\n"));
+        assertTrue(io.offer("second\n"));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (System.nanoTime() < deadline) {
+            synchronized (sent) {
+                if (sent.size() == "first\nsecond\n".length()) break;
+            }
+            Thread.sleep(5);
+        }
+        synchronized (sent) {
+            assertEquals("first\nsecond\n", sent.toString(StandardCharsets.UTF_8));
+        }
+        assertEquals(0, callerWrites.get());
+        io.close();
+        assertFalse(io.offer("late"));
+    }
+}
+
+// ClientHandler
+
+class ClientHandlerTest {
+
+    @Test
+    void truncatedBinaryFrameGetsAnErrorAndTheSessionGoesOn() throws Exception {
+        BankService service = new BankService(new AccountStore(), new Ledger());
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("localhost", server.getLocalPort())) {
+            Thread session = new Thread(new ClientHandler(server.accept(), service, new SessionRegistry()));
+            session.start();
+            java.io.DataInputStream in = new java.io.DataInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            out.write(BinaryProtocol.MAGIC);
+            assertEquals(BinaryProtocol.MAGIC, in.readByte());
+
+            // a LOGIN frame cut off three bytes into the user id
+            out.write(new byte[]{0, 0, 0, 4, BinaryProtocol.OP_LOGIN, 'a', 'l', 'i'});
+            out.flush();
+            byte[] reply = new byte[in.readInt()];
+            in.readFully(reply);
+            ByteBuffer body = ByteBuffer.wrap(reply);
+            assertEquals(BinaryProtocol.STATUS_ERROR, body.get());
+            assertEquals(BinaryProtocol.OP_LOGIN, body.get());
+            assertEquals("Malformed request", BinaryProtocol.getString(body));
+
+            // still connected, and answering
+            out.write(new byte[]{0, 0, 0, 1, BinaryProtocol.OP_BALANCE});
+            out.flush();
+            reply = new byte[in.readInt()];
+            in.readFully(reply);
+            assertEquals(BinaryProtocol.OP_BALANCE, reply[1]);
+            assertTrue(session.isAlive());
+            client.close();
+            session.join(2000);
+        }
+    }
+
+    @Test
+    void idleClientIsDisconnectedAndLoggedOut() throws Exception {
+        BankService service = new BankService(new AccountStore(), new Ledger());
+        service.createAccount("alice", "pwd");
+        SessionRegistry sessions = new SessionRegistry();
+        SessionWatchdog watchdog = new SessionWatchdog(1000);
+
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("localhost", server.getLocalPort())) {
+            Socket accepted = server.accept();
+            ClientHandler handler = new ClientHandler(accepted, service, sessions,
+                    new SessionLimits(500, 1000, 1024), watchdog);
+            Thread session = new Thread(handler);
+            session.start();
+
+            OutputStream out = client.getOutputStream();
+            out.write("1\nalice\npwd\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            // read everything until the server hangs up on us
+            SessionIO in = new SessionIO(client.getInputStream(), new ByteArrayOutputStream());
+            StringBuilder transcript = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                transcript.append(line).append('\n');
+            }
+            session.join(2000);
+
+            assertTrue(transcript.toString().contains("Login successful"));
+            assertTrue(transcript.toString().contains("inactivity"));
+            assertEquals(0, sessions.count(), "idle user should be logged out");
+            assertEquals(0, watchdog.sessionCount());
+        }
+    }
+}
+
+class RequestTracerTest {
+
+    @Test
+    void transferStagesAreRecordedAndSlowTracesKept() {
+        AccountStore store = new AccountStore();
+        BankService service = new BankService(store, new Ledger());
+        store.createAccount("alice", "pwd");
+        store.createAccount("bob", "pwd");
+        RequestTracer tracer = new RequestTracer(1.0, 0, 2);
+
+        RequestTracer.Trace trace = tracer.begin("transfer", "alice");
+        assertTrue(service.transfer("alice", "bob", 10));
+        RequestTracer.stage("write");
+        tracer.end(trace);
+
+        List<String> stages = new ArrayList<>();
+        long spans = 0;
+        for (int i = 0; i < trace.spanCount(); i++) {
+            stages.add(trace.getStage(i));
+            spans += trace.getSpanNanos(i);
+        }
+        assertEquals(List.of("lookup", "lock", "update", "ledger", "notify", "write"), stages);
+        assertTrue(spans <= trace.getTotalNanos());
+        assertTrue(trace.toString().contains(" transfer alice "), trace.toString());
+
+        // once the trace is closed the thread records nothing
+        RequestTracer.stage("stray");
+        assertEquals(6, trace.spanCount());
+
+        RequestTracer.Trace second = tracer.begin("balance", "bob");
+        tracer.end(second);
+        RequestTracer.Trace third = tracer.begin("history", "bob");
+        tracer.end(third);
+        assertEquals(List.of(third, second), tracer.slowTraces()); // two slots, newest first
+        assertEquals(3, tracer.getSlowCount());
+        assertEquals(3, tracer.getSampledCount());
+    }
+
+    @Test
+    void samplingRateAndThresholdDecideWhatIsKept() {
+        RequestTracer tracer = new RequestTracer(0.0, 0, 10);
+        assertNull(tracer.begin("deposit", "alice"));
+        tracer.end(null);
+
+        tracer.setSampleRate(1.0);
+        tracer.setSlowThresholdMillis(60_000);
+        tracer.end(tracer.begin("deposit", "alice"));
+        assertEquals(1, tracer.getSampledCount());
+        assertTrue(tracer.slowTraces().isEmpty());
+
+        tracer.setSampleRate(0.5);
+        int sampled = 0;
+        for (int i = 0; i < 10_000; i++) {
+            RequestTracer.Trace t = tracer.begin("deposit", "alice");
+            if (t != null) sampled++;
+            tracer.end(t);
+        }
+        assertTrue(sampled > 4000 && sampled < 6000, "sampled " + sampled);
+
+        assertThrows(IllegalArgumentException.class, () -> tracer.setSampleRate(1.5));
+        assertThrows(IllegalArgumentException.class, () -> tracer.setSlowThresholdMillis(-1));
+        assertThrows(IllegalArgumentException.class, () -> new RequestTracer(0.1, 10, 0));
+    }
+}
+
+// LatencyHistogram
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100_000; v++) {
+            h.record(v * 1000); // 1us .. 100ms
+        }
+
+        assertEquals(100_000, h.getCount());
+        assertEquals(100_000_000L, h.getMax());
+        long p50 = h.percentile(50);
+        long p99 = h.percentile(99);
+        assertTrue(Math.abs(p50 - 50_000_000L) <= 50_000_000L / 100, "p50 was " + p50);
+        assertTrue(Math.abs(p99 - 99_000_000L) <= 99_000_000L / 100, "p99 was " + p99);
+        assertEquals(100_000_000L, h.percentile(100));
+    }
+
+    @Test
+    void smallValuesAreExactAndEmptyHistogramReportsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentile(99));
+
+        h.record(3);
+        h.record(5);
+        h.record(7);
+        assertEquals(5, h.percentile(50));
+        assertEquals(7, h.percentile(99.9));
+        assertEquals(5.0, h.getMean(), 0.0001);
+        assertThrows(IllegalArgumentException.class, () -> h.percentile(101));
+    }
+
+    @Test
+    void addMergesCountsAndMax() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(1_000_000);
+        a.add(b);
+
+        assertEquals(2, a.getCount());
+        assertEquals(1_000_000, a.getMax());
+    }
+
+    @Test
+    void loadMixIsExpandedByWeight() {
+        Client.LoadGenerator.Op[] ops = Client.LoadGenerator.parseMix("balance:3,deposit:1,history:0");
+        assertEquals(4, ops.length);
+        assertEquals(Client.LoadGenerator.Op.DEPOSIT, ops[3]);
+        assertThrows(IllegalArgumentException.class, () -> Client.LoadGenerator.parseMix("balance"));
+        assertThrows(IllegalArgumentException.class, () -> Client.LoadGenerator.parseMix("history:0"));
+    }
+
+    @Test
+    void refusedLoginsAreCountedAgainstTheSchedule() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            // a server whose credential queue is always full
+            Thread busy = new Thread(() -> {
+                try (Socket s = server.accept()) {
+                    java.io.DataInputStream in = new java.io.DataInputStream(s.getInputStream());
+                    OutputStream out = s.getOutputStream();
+                    in.readByte();
+                    out.write(BinaryProtocol.MAGIC);
+                    ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+                    while (true) {
+                        byte[] request = new byte[in.readInt()];
+                        in.readFully(request);
+                        BinaryProtocol.beginResponse(frame, BinaryProtocol.STATUS_ERROR, request[0]);
+                        BinaryProtocol.putString(frame, "Server busy, please try again in a moment.");
+                        BinaryProtocol.finish(frame);
+                        out.write(frame.array(), 0, frame.limit());
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                    // the load session hung up
+                }
+            });
+            busy.start();
+
+            // 1 session at 50 ops/s for 200 ms is 10 scheduled requests
+            Client.LoadGenerator gen = new Client.LoadGenerator("localhost", server.getLocalPort(),
+                    1, 50, 200, "balance:1", "load");
+            gen.run();
+            busy.join(2000);
+
+            assertEquals(10, gen.getErrors());
+            assertEquals(10, gen.getOverall().getCount());
+        }
+    }
+}
+
+class BankEventsTest {
+
+    @Test
+    void hotPathsEmitFlightRecorderEvents() throws Exception {
+        AccountStore store = new AccountStore();
+        Ledger ledger = new Ledger();
+        BankService service = new BankService(store, ledger);
+        store.createAccount("alice", "pwd");
+        store.createAccount("bob", "pwd");
+        Path file = Files.createTempFile("bank", ".jfr");
+        Path ledgerFile = Files.createTempFile("ledger", ".txt");
+        try {
+            try (Recording recording = new Recording()) {
+                for (String name : new String[]{"bank.Deposit", "bank.Withdrawal", "bank.Transfer",
+                        "bank.InterestRun", "bank.LedgerAppend", "bank.LedgerPersist"}) {
+                    recording.enable(name).withThreshold(Duration.ZERO);
+                }
+                recording.start();
+                service.deposit("alice", 50);
+                assertThrows(IllegalStateException.class, () -> service.withdraw("bob", 5000));
+                assertTrue(service.transfer("alice", "bob", 25));
+                service.applyInterest(0.01);
+                ledger.saveTo(ledgerFile);
+                recording.stop();
+                recording.dump(file);
+            }
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent deposit = only(events, "bank.Deposit");
+            assertEquals("alice", deposit.getString("user"));
+            assertEquals(50, deposit.getLong("amount"));
+            assertTrue(deposit.getBoolean("success"));
+            assertFalse(only(events, "bank.Withdrawal").getBoolean("success"));
+            RecordedEvent transfer = only(events, "bank.Transfer");
+            assertEquals("bob", transfer.getString("toUser"));
+            assertTrue(transfer.getLong("lockWait") >= 0);
+            assertEquals(2, only(events, "bank.InterestRun").getInt("credited"));
+            assertEquals("save", only(events, "bank.LedgerPersist").getString("operation"));
+            // deposit, transfer and the interest batch
+            assertEquals(3, events.stream().filter(e -> e.getEventType().getName().equals("bank.LedgerAppend")).count());
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(ledgerFile);
+        }
+    }
+
+    private static RecordedEvent only(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> found = new ArrayList<>();
+        for (RecordedEvent e : events) {
+            if (e.getEventType().getName().equals(name)) found.add(e);
+        }
+        assertEquals(1, found.size(), name);
+        return found.get(0);
+    }
+}
+
+class MetricsTest {
+
+    @Test
+    void scrapeWritesPrometheusText() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter failures = metrics.counter("ops_failed_total", "Failed ops", "op", "deposit");
+        assertSame(failures, metrics.counter("ops_failed_total", "Failed ops", "op", "deposit"));
+        failures.increment();
+        failures.add(2);
+        Metrics.Timer timer = metrics.timer("op_seconds", "Op time", "op", "say \"hi\"");
+        timer.record(2_000_000);
+        timer.record(4_000_000);
+        metrics.gauge("queue_depth", "Waiting", () -> 7);
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE ops_failed_total counter\n"), text);
+        assertTrue(text.contains("ops_failed_total{op=\"deposit\"} 3\n"), text);
+        assertTrue(text.contains("# TYPE op_seconds summary\n"), text);
+        assertTrue(text.contains("op_seconds_count{op=\"say \\\"hi\\\"\"} 2\n"), text);
+        assertTrue(text.contains("op_seconds_sum{op=\"say \\\"hi\\\"\"} 0.006\n"), text);
+        assertTrue(text.contains("op_seconds{op=\"say \\\"hi\\\"\",quantile=\"0.5\"} 0.00"), text);
+        assertTrue(text.contains("queue_depth 7\n"), text);
+
+        assertThrows(IllegalArgumentException.class, () -> metrics.gauge("ops_failed_total", "x", () -> 1));
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("bad name", "x"));
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("odd_labels", "x", "op"));
+    }
+
+    @Test
+    void bankServiceOperationsAreTimedAndServedOverHttp() throws Exception {
+        Metrics metrics = new Metrics();
+        AccountStore store = new AccountStore();
+        BankService service = new BankService(store, new Ledger(), metrics);
+        store.createAccount("alice", "pwd");
+        service.deposit("alice", 10);
+        assertThrows(IllegalStateException.class, () -> service.withdraw("alice", 1_000_000));
+        assertNull(service.login("alice", "wrong"));
+
+        MetricsEndpoint endpoint = new MetricsEndpoint(metrics, 0);
+        endpoint.start();
+        try {
+            URL url = new URL("http://localhost:" + endpoint.getPort() + "/metrics");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            assertEquals(200, conn.getResponseCode());
+            assertTrue(conn.getContentType().startsWith("text/plain; version=0.0.4"));
+            String body = new String(conn.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(body.contains("bank_operation_seconds_count{op=\"deposit\"} 1\n"), body);
+            assertTrue(body.contains("bank_operation_failures_total{op=\"withdraw\"} 1\n"), body);
+            assertTrue(body.contains("bank_operation_failures_total{op=\"login\"} 1\n"), body);
+            assertTrue(body.contains("bank_operation_failures_total{op=\"deposit\"} 0\n"), body);
+
+            HttpURLConnection post = (HttpURLConnection) url.openConnection();
+            post.setRequestMethod("POST");
+            assertEquals(405, post.getResponseCode());
+        } finally {
+            endpoint.stop();
+        }
+    }
+}
+
+// BankClient
 
-        Ledger ledger = new Ledger();
+class BankClientTest {
 
-        Transaction t1 = Transaction.deposit("alice", 100L);
-        Transaction t2 = Transaction.transfer("alice", "bob", 50L);
-        Transaction t3 = Transaction.withdrawal("bob", 20L);
+    @Test
+    void pipelinedCallsNotificationsAndErrorsOverPooledConnections() throws Exception {
+        BankService service = new BankService(new AccountStore(), new Ledger());
+        SessionRegistry sessions = new SessionRegistry();
 
-        ledger.append(t1);
-        ledger.append(t2);
-        ledger.append(t3);
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        new Thread(new ClientHandler(server.accept(), service, sessions)).start();
+                    }
+                } catch (IOException ignored) {
+                    // server socket closed at the end of the test
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
 
-        List<Transaction> aliceTx = ledger.findUser("alice");
-        assertTrue(aliceTx.contains(t1));
-        assertTrue(aliceTx.contains(t2));
-        assertEquals(2, aliceTx.size());
+            try (BankClient client = new BankClient("localhost", server.getLocalPort())) {
+                AtomicInteger bobNotifications = new AtomicInteger();
+                client.subscribe("bob", (u, b, m) -> bobNotifications.incrementAndGet());
 
-        List<Transaction> bobTx = ledger.findUser("bob");
-        assertTrue(bobTx.contains(t2));
-        assertTrue(bobTx.contains(t3));
-        assertEquals(2, bobTx.size());
+                assertEquals(1000L, client.signup("alice", "pwd").get(2, TimeUnit.SECONDS));
+                assertEquals(1000L, client.signup("bob", "pwd").get(2, TimeUnit.SECONDS));
+                assertEquals(2, client.connectionCount());
 
+                // many calls in flight on the same socket, answered in order
+                List<CompletableFuture<Boolean>> transfers = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    transfers.add(client.transfer("alice", "bob", 1L));
+                }
+                for (CompletableFuture<Boolean> f : transfers) {
+                    assertTrue(f.get(2, TimeUnit.SECONDS));
+                }
+                assertEquals(900L, client.balance("alice").get(2, TimeUnit.SECONDS));
+                assertEquals(1100L, client.balance("bob").get(2, TimeUnit.SECONDS));
+                assertEquals(100, client.history("bob").get(2, TimeUnit.SECONDS).size());
+                assertEquals(100, bobNotifications.get());
+
+                ExecutionException e = assertThrows(ExecutionException.class,
+                        () -> client.withdraw("alice", 5000L).get(2, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IllegalStateException);
+
+                assertThrows(ExecutionException.class,
+                        () -> client.balance("nobody").get(2, TimeUnit.SECONDS));
+            }
+        }
     }
 
     @Test
-    void saveAndLoadRoundTrip() throws IOException {
-
-        Ledger ledger = new Ledger();
-        ledger.append(Transaction.deposit("alice", 100L));
-        ledger.append(Transaction.transfer("alice", "bob", 50L));
-
-        Path tempFile = Files.createTempFile("ledgerTest", ".txt");
-        try {
+    void loginReturnsBeforeTheServerAnswersTheHandshake() throws Exception {
+        // the socket connects through the backlog, but nothing ever answers
+        try (ServerSocket server = new ServerSocket(0);
+             BankClient client = new BankClient("localhost", server.getLocalPort())) {
+            long start = System.nanoTime();
+            CompletableFuture<Long> login = client.login("alice", "pwd");
+            CompletableFuture<Long> balance = client.balance("alice");
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            Thread.sleep(100);
+            assertFalse(login.isDone());
+            assertFalse(balance.isDone());
+        }
+    }
 
-            ledger.saveTo(tempFile);
+    @Test
+    void callsNeverWaitForAServerThatStoppedReading() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread deaf = new Thread(() -> {
+                try (Socket s = server.accept()) {
+                    s.getInputStream().read();
+                    s.getOutputStream().write(BinaryProtocol.MAGIC);
+                    Thread.sleep(20_000); // never reads another byte
+                } catch (IOException | InterruptedException ignored) {
+                }
+            });
+            deaf.setDaemon(true);
+            deaf.start();
+
+            try (BankClient client = new BankClient("localhost", server.getLocalPort())) {
+                client.login("alice", "pwd");
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+                while (client.connectionCount() == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(5);
+                }
+                assertEquals(1, client.connectionCount());
+
+                // once the socket buffers fill up, the queue does too, and calls
+                // are refused instead of blocking this thread
+                long start = System.nanoTime();
+                IllegalStateException refused = null;
+                for (int i = 0; i < 1_000_000 && refused == null; i++) {
+                    CompletableFuture<Boolean> f = client.transfer("alice", "bob", 1L);
+                    if (f.isCompletedExceptionally()) {
+                        ExecutionException e = assertThrows(ExecutionException.class, f::get);
+                        refused = (IllegalStateException) e.getCause();
+                    }
+                }
+                assertNotNull(refused);
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+            }
+        }
+    }
 
-            Ledger loaded = new Ledger();
+    @Test
+    void malformedResponseFailsPendingCalls() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread bad = new Thread(() -> {
+                try (Socket s = server.accept()) {
+                    java.io.DataInputStream in = new java.io.DataInputStream(s.getInputStream());
+                    OutputStream out = s.getOutputStream();
+                    in.readByte();
+                    out.write(BinaryProtocol.MAGIC);
+                    byte[] request = new byte[in.readInt()];
+                    in.readFully(request);
+                    // an error whose message claims more bytes than the frame holds
+                    ByteBuffer frame = ByteBuffer.allocate(64);
+                    BinaryProtocol.beginResponse(frame, BinaryProtocol.STATUS_ERROR, request[0]);
+                    frame.putShort((short) 500);
+                    BinaryProtocol.finish(frame);
+                    out.write(frame.array(), 0, frame.limit());
+                    out.flush();
+                    in.read(); // until the client hangs up
+                } catch (IOException ignored) {
+                }
+            });
+            bad.start();
+
+            try (BankClient client = new BankClient("localhost", server.getLocalPort())) {
+                ExecutionException e = assertThrows(ExecutionException.class,
+                        () -> client.login("alice", "pwd").get(2, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IOException);
+                assertEquals(0, client.connectionCount());
+            }
+            bad.join(2000);
+            assertFalse(bad.isAlive());
+        }
+    }
+}
 
-            loaded.loadFrom(tempFile);
+// SessionRegistry
 
-            List<Transaction> loadedAll = loaded.all();
+class SessionRegistryTest {
 
-            assertEquals(2, loadedAll.size());
-            // my sanity check: types and amounts are preserved
+    @Test
+    void claimIsExclusivePerUsernameAndReleaseFreesIt() {
+        SessionRegistry registry = new SessionRegistry();
+        SessionRegistry.Session first = registry.claim("alice", "a", Instant.now(), () -> { });
 
-            assertEquals(Transaction.Type.DEPOSIT, loadedAll.get(0).getType());
-            assertEquals(100L, loadedAll.get(0).getAmount());
+        assertNotNull(first);
+        assertNull(registry.claim("alice", "b", Instant.now(), () -> { }));
+        assertEquals(1, registry.count());
+        assertTrue(registry.isActive("alice"));
+
+        assertTrue(registry.release(first));
+        assertFalse(registry.release(first)); // already gone
+        assertEquals(0, registry.count());
+        assertNotNull(registry.claim("alice", "b", Instant.now(), () -> { }));
+    }
 
-        } finally {
-            Files.deleteIfExists(tempFile);
+    @Test
+    void concurrentClaimsForOneUserHaveOneWinner() throws Exception {
+        SessionRegistry registry = new SessionRegistry();
+        int threads = 16;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        AtomicInteger winners = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    barrier.await();
+                    if (registry.claim("alice", "x", Instant.now(), () -> { }) != null) {
+                        winners.incrementAndGet();
+                    }
+                } catch (Exception ignored) {
+                }
+            });
+            workers[i].start();
         }
+        for (Thread t : workers) {
+            t.join(5000);
+        }
+        assertEquals(1, winners.get());
+        assertEquals(1, registry.count());
+    }
+
+    @Test
+    void touchTracksOpsAndKickRunsTheKicker() {
+        SessionRegistry registry = new SessionRegistry();
+        AtomicInteger kicked = new AtomicInteger();
+        SessionRegistry.Session s = registry.claim("bob", "1.2.3.4:5", Instant.now(), kicked::incrementAndGet);
+
+        s.touch();
+        s.touch();
+        assertEquals(2, s.getOpsCount());
+        assertEquals("1.2.3.4:5", s.getRemoteAddress());
+
+        assertTrue(registry.kick("bob"));
+        assertFalse(registry.kick("nobody"));
+        assertEquals(1, kicked.get());
     }
 }
 
@@ -357,6 +1697,17 @@ class BankServiceTest {
         assertThrows(IllegalArgumentException.class, () -> new BankService(new AccountStore(), null));
     }
 
+    @Test
+    void interestRunThatCreditsNobodyAppendsNothing() {
+        assertEquals(0L, service.withdraw("alice", 1000));
+        assertEquals(0L, service.withdraw("bob", 1000));
+        long appends = ledger.appendCount();
+
+        service.applyInterest(0.01);
+
+        assertEquals(appends, ledger.appendCount());
+    }
+
     @Test
     void loginSucceedsWithCorrectCredentials() {
 
@@ -444,6 +1795,23 @@ class BankServiceTest {
         assertEquals(300L, all.get(0).getAmount());
     }
 
+    @Test
+    void balanceAtAnswersFromTheLedger() throws InterruptedException {
+        Instant before = Instant.now();
+        Thread.sleep(2);
+        service.deposit("alice", 500L);
+        Thread.sleep(2);
+        Instant afterDeposit = Instant.now();
+        Thread.sleep(2);
+        service.transfer("alice", "bob", 200L);
+
+        assertEquals(1000L, service.getBalanceAt("alice", before));
+        assertEquals(1500L, service.getBalanceAt("alice", afterDeposit));
+        assertEquals(1300L, service.getBalanceAt("alice", Instant.now()));
+        assertEquals(1200L, service.getBalanceAt("bob", Instant.now()));
+        assertThrows(IllegalArgumentException.class, () -> service.getBalanceAt("unknown", Instant.now()));
+    }
+
     @Test
     void withdrawRejectsInvalidAmountUnknownUserAndInsufficientFunds() {
 
@@ -730,6 +2098,425 @@ class ThreadPoolTest {
         assertTrue(finished, "Not all tasks finished in time");
         assertEquals(taskCount, counter.get());
     }
+
+    @Test
+    void workStealingPoolRunsExternalAndForkedTasks() throws Exception {
+        ThreadPool pool = new ThreadPool(4, true);
+        assertTrue(pool.isWorkStealing());
+
+        // each of 50 outside tasks forks 20 more from its worker thread
+        int outer = 50;
+        int inner = 20;
+        CountDownLatch latch = new CountDownLatch(outer * (inner + 1));
+        AtomicInteger counter = new AtomicInteger();
+        for (int i = 0; i < outer; i++) {
+            pool.execute(() -> {
+                for (int j = 0; j < inner; j++) {
+                    pool.execute(() -> {
+                        counter.incrementAndGet();
+                        latch.countDown();
+                    });
+                }
+                counter.incrementAndGet();
+                latch.countDown();
+            });
+        }
+
+        boolean finished = latch.await(5, TimeUnit.SECONDS);
+        pool.shutdown();
+
+        assertTrue(finished, "Not all tasks finished in time");
+        assertEquals(outer * (inner + 1), counter.get());
+        assertThrows(IllegalStateException.class, () -> pool.execute(() -> { }));
+    }
+
+    @Test
+    void idleWorkStealingPoolWakesUpForNewTasks() throws Exception {
+        ThreadPool pool = new ThreadPool(2, true);
+        for (int round = 0; round < 20; round++) {
+            Thread.sleep(2); // let the workers park
+            CountDownLatch latch = new CountDownLatch(1);
+            pool.execute(latch::countDown);
+            assertTrue(latch.await(2, TimeUnit.SECONDS), "Parked workers missed a task");
+        }
+        pool.shutdown();
+    }
+
+    // Fills a one worker pool: the worker is stuck on release and capacity tasks are queued
+    private static ThreadPool fullPool(int capacity, ThreadPool.RejectionPolicy policy, boolean stealing,
+                                       CountDownLatch release, List<String> ran) throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, stealing, capacity, policy);
+        CountDownLatch started = new CountDownLatch(1);
+        pool.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < capacity; i++) {
+            String name = "queued" + i;
+            pool.execute(() -> ran.add(name));
+        }
+        return pool;
+    }
+
+    @Test
+    void boundedQueueRejectsOrRunsOnCaller() throws Exception {
+        for (boolean stealing : new boolean[]{false, true}) {
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> ran = java.util.Collections.synchronizedList(new ArrayList<>());
+            ThreadPool rejecting = fullPool(2, ThreadPool.RejectionPolicy.REJECT, stealing, release, ran);
+            assertThrows(java.util.concurrent.RejectedExecutionException.class,
+                    () -> rejecting.execute(() -> ran.add("extra")));
+            release.countDown();
+            rejecting.shutdown();
+
+            CountDownLatch release2 = new CountDownLatch(1);
+            ThreadPool callerRuns = fullPool(2, ThreadPool.RejectionPolicy.CALLER_RUNS, stealing, release2, ran);
+            Thread caller = Thread.currentThread();
+            AtomicReference<Thread> ranOn = new AtomicReference<>();
+            callerRuns.execute(() -> ranOn.set(Thread.currentThread()));
+            assertEquals(caller, ranOn.get());
+            release2.countDown();
+            callerRuns.shutdown();
+        }
+    }
+
+    @Test
+    void dropOldestMakesRoomForNewTask() throws Exception {
+        for (boolean stealing : new boolean[]{false, true}) {
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> ran = java.util.Collections.synchronizedList(new ArrayList<>());
+            ThreadPool pool = fullPool(2, ThreadPool.RejectionPolicy.DROP_OLDEST, stealing, release, ran);
+            CountDownLatch newest = new CountDownLatch(1);
+            pool.execute(() -> {
+                ran.add("newest");
+                newest.countDown();
+            });
+            release.countDown();
+            assertTrue(newest.await(2, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            pool.shutdown();
+
+            assertFalse(ran.contains("queued0"));
+            assertTrue(ran.contains("queued1"));
+            assertTrue(ran.contains("newest"));
+        }
+    }
+
+    @Test
+    void blockWithTimeoutWaitsForSpaceThenRejects() throws Exception {
+        for (boolean stealing : new boolean[]{false, true}) {
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> ran = java.util.Collections.synchronizedList(new ArrayList<>());
+            ThreadPool pool = fullPool(1, ThreadPool.RejectionPolicy.blockWithTimeout(50), stealing, release, ran);
+
+            long start = System.nanoTime();
+            assertThrows(java.util.concurrent.RejectedExecutionException.class, () -> pool.execute(() -> { }));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+
+            // space frees up while we wait
+            new Thread(() -> {
+                sleepQuietly(20);
+                release.countDown();
+            }).start();
+            CountDownLatch accepted = new CountDownLatch(1);
+            pool.execute(accepted::countDown);
+            assertTrue(accepted.await(2, TimeUnit.SECONDS));
+            pool.shutdown();
+        }
+        assertThrows(IllegalArgumentException.class, () -> ThreadPool.RejectionPolicy.blockWithTimeout(0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new ThreadPool(1, 0, ThreadPool.RejectionPolicy.REJECT));
+    }
+
+    @Test
+    void elasticPoolGrowsUnderBacklogAndShrinksBackToCore() throws Exception {
+        ThreadPool pool = new ThreadPool(1, 4, 100, 20, 100, ThreadPool.RejectionPolicy.REJECT);
+        assertEquals(1, pool.getPoolSize());
+
+        // four tasks that hold their worker until released, like client sessions
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch allStarted = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            pool.execute(() -> {
+                allStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(allStarted.await(2, TimeUnit.SECONDS), "Pool did not grow for the backlog");
+        assertEquals(4, pool.getPoolSize());
+        assertEquals(4, pool.getPeakPoolSize());
+        assertEquals(3, pool.getGrowCount());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pool.getPoolSize() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getPoolSize());
+        assertEquals(3, pool.getShrinkCount());
+        assertEquals(4, pool.getPeakPoolSize());
+
+        // still works at core size
+        CountDownLatch after = new CountDownLatch(1);
+        pool.execute(after::countDown);
+        assertTrue(after.await(2, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new ThreadPool(2, 1, 100, 20, 10, ThreadPool.RejectionPolicy.REJECT));
+        assertThrows(IllegalArgumentException.class,
+                () -> new ThreadPool(1, 2, 0, 20, 10, ThreadPool.RejectionPolicy.REJECT));
+    }
+
+    @Test
+    void statsCountTasksAndWorkersSurviveExceptions() throws Exception {
+        for (boolean stealing : new boolean[]{false, true}) {
+            ThreadPool pool = new ThreadPool(1, stealing, 10, ThreadPool.RejectionPolicy.REJECT);
+            CountDownLatch done = new CountDownLatch(3);
+            pool.execute(() -> {
+                done.countDown();
+                throw new IllegalStateException("boom");
+            });
+            pool.execute(() -> {
+                sleepQuietly(5);
+                done.countDown();
+            });
+            pool.execute(done::countDown);
+            assertTrue(done.await(2, TimeUnit.SECONDS), "Worker died after a task threw");
+            Thread.sleep(20);
+
+            ThreadPool.Stats stats = pool.getStats();
+            assertEquals(2, stats.getCompletedCount());
+            assertEquals(1, stats.getFailedCount());
+            assertEquals(0, stats.getRejectedCount());
+            assertEquals(0, stats.getQueueDepth());
+            assertEquals(0, stats.getActiveCount());
+            assertEquals(1, stats.getPoolSize());
+            assertEquals(3, stats.getWaitTimes().getCount());
+            assertEquals(3, stats.getRunTimes().getCount());
+            assertTrue(stats.getRunTimes().getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+            assertTrue(stats.toString().contains("failed 1"));
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void statsShowQueueDepthActiveAndRejections() throws Exception {
+        for (boolean stealing : new boolean[]{false, true}) {
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> ran = java.util.Collections.synchronizedList(new ArrayList<>());
+            ThreadPool pool = fullPool(2, ThreadPool.RejectionPolicy.REJECT, stealing, release, ran);
+            assertThrows(java.util.concurrent.RejectedExecutionException.class, () -> pool.execute(() -> { }));
+
+            ThreadPool.Stats stats = pool.getStats();
+            assertEquals(2, stats.getQueueDepth());
+            assertEquals(1, stats.getActiveCount());
+            assertEquals(1, stats.getRejectedCount());
+
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void systemLaneRunsBeforeQueuedClientTasks() throws Exception {
+        for (boolean stealing : new boolean[]{false, true}) {
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> ran = java.util.Collections.synchronizedList(new ArrayList<>());
+            ThreadPool pool = fullPool(3, ThreadPool.RejectionPolicy.REJECT, stealing, release, ran);
+            CountDownLatch systemDone = new CountDownLatch(1);
+            pool.execute(() -> {
+                ran.add("system");
+                systemDone.countDown();
+            }, ThreadPool.Lane.SYSTEM);
+            assertEquals(1, pool.getQueueDepth(ThreadPool.Lane.SYSTEM));
+            assertEquals(3, pool.getQueueDepth(ThreadPool.Lane.CLIENT));
+
+            release.countDown();
+            assertTrue(systemDone.await(2, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            pool.shutdown();
+            assertEquals(List.of("system", "queued0", "queued1", "queued2"), ran);
+        }
+    }
+
+    @Test
+    void reservedSystemWorkerIsNotBlockedBySessions() throws Exception {
+        ThreadPool pool = new ThreadPool(1, 10, ThreadPool.RejectionPolicy.REJECT);
+        pool.reserveWorkers(ThreadPool.Lane.SYSTEM, 1);
+        assertEquals(1, pool.getReservedWorkers(ThreadPool.Lane.SYSTEM));
+
+        // a "session" holds the only general worker and more are queued behind it
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch holding = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            pool.execute(() -> {
+                holding.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(holding.await(2, TimeUnit.SECONDS));
+        CountDownLatch systemDone = new CountDownLatch(1);
+        pool.laneExecutor(ThreadPool.Lane.SYSTEM).execute(systemDone::countDown);
+        assertTrue(systemDone.await(2, TimeUnit.SECONDS), "System task waited behind sessions");
+
+        ThreadPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.getWaitTimes(ThreadPool.Lane.SYSTEM).getCount());
+        assertEquals(2, stats.getQueueDepth(ThreadPool.Lane.CLIENT));
+        assertTrue(stats.toString().contains("SYSTEM"));
+
+        release.countDown();
+        pool.shutdown();
+        ThreadPool stealing = new ThreadPool(1, true);
+        assertThrows(IllegalStateException.class, () -> stealing.reserveWorkers(ThreadPool.Lane.SYSTEM, 1));
+        stealing.shutdown();
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+//  TimingWheel
+
+class TimingWheelTest {
+
+    @Test
+    void oneShotFiresOnceAndCancelStopsIt() throws Exception {
+        TimingWheel wheel = new TimingWheel(5, 64);
+        wheel.start();
+        try {
+            CountDownLatch fired = new CountDownLatch(1);
+            AtomicInteger cancelledRuns = new AtomicInteger();
+            long start = System.nanoTime();
+            TimingWheel.Timeout t = wheel.schedule(fired::countDown, 30);
+            TimingWheel.Timeout c = wheel.schedule(cancelledRuns::incrementAndGet, 30);
+            assertTrue(c.cancel());
+            assertFalse(c.cancel());
+
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30), "Fired early");
+            Thread.sleep(50);
+            assertTrue(t.isExpired());
+            assertFalse(t.cancel());
+            assertTrue(c.isCancelled());
+            assertEquals(0, cancelledRuns.get());
+            assertEquals(0, wheel.pendingTimers());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void fixedRatePeriodChangeTakesEffectImmediately() throws Exception {
+        TimingWheel wheel = new TimingWheel(5, 64);
+        wheel.start();
+        try {
+            CountDownLatch runs = new CountDownLatch(3);
+            TimingWheel.Timeout job = wheel.scheduleAtFixedRate(runs::countDown, 10, 60_000);
+            Thread.sleep(50); // first run done, next one a minute away
+            assertEquals(2, runs.getCount());
+
+            job.setPeriod(20);
+            assertTrue(runs.await(1, TimeUnit.SECONDS), "New period waited for the old one");
+            assertEquals(20, job.getPeriodMillis());
+            assertTrue(job.cancel());
+            assertThrows(IllegalStateException.class, () -> wheel.schedule(() -> { }, 10).setPeriod(5));
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void rescheduleMovesAOneShot() throws Exception {
+        TimingWheel wheel = new TimingWheel(5, 16); // a 80 ms wheel, so the delays wrap around
+        wheel.start();
+        try {
+            AtomicLong firedAt = new AtomicLong();
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            TimingWheel.Timeout t = wheel.schedule(() -> {
+                firedAt.set(System.nanoTime());
+                fired.countDown();
+            }, 50);
+            assertTrue(t.reschedule(200));
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertTrue(firedAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertThrows(IllegalArgumentException.class, () -> t.reschedule(-1));
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void manyTimersAllFireOrCancel() throws Exception {
+        TimingWheel wheel = new TimingWheel(1, 256);
+        wheel.start();
+        try {
+            int count = 200_000;
+            AtomicInteger fired = new AtomicInteger();
+            List<TimingWheel.Timeout> timers = new ArrayList<>(count);
+            // nothing is due until every cancel is in, even on a slow machine
+            for (int i = 0; i < count; i++) {
+                timers.add(wheel.schedule(fired::incrementAndGet, 2000 + i % 500));
+            }
+            for (int i = 0; i < count; i += 2) {
+                timers.get(i).cancel();
+            }
+            long deadline = System.currentTimeMillis() + 8000;
+            while (wheel.pendingTimers() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, wheel.pendingTimers());
+            // a cancel can lose the race with a timer that was already due
+            assertTrue(fired.get() >= count / 2 && fired.get() < count * 0.6, "fired " + fired.get());
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void interestRunsOnTheWheel() throws Exception {
+        AccountStore store = new AccountStore();
+        BankService service = new BankService(store, new Ledger());
+        service.createAccount("alice", "pwd");
+        TimingWheel wheel = new TimingWheel(5, 64);
+        wheel.start();
+        try {
+            InterestThread interest = new InterestThread(service, 0.10, 60_000);
+            interest.schedule(wheel);
+            interest.setPeriod(20);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (service.getBalance("alice") == 1000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            interest.stopRunning();
+            assertTrue(service.getBalance("alice") > 1000, "Interest never ran");
+            Thread.sleep(50);
+            long after = service.getBalance("alice");
+            Thread.sleep(100);
+            assertEquals(after, service.getBalance("alice"));
+        } finally {
+            wheel.stop();
+        }
+    }
 }
 
 //  InterestThread
@@ -825,3 +2612,147 @@ class InterestThreadTest {
     }
 
 }
+
+class InterestPlanTest {
+
+    @Test
+    void rateFollowsBalanceTiers() {
+        InterestPlan plan = InterestPlan.parse("gold", 1000, "500:0.01, 10000:0.02,100000:0.03");
+
+        assertEquals(0.0, plan.rateFor(499));
+        assertEquals(0.01, plan.rateFor(500));
+        assertEquals(0.01, plan.rateFor(9999));
+        assertEquals(0.02, plan.rateFor(10000));
+        assertEquals(0.03, plan.rateFor(5_000_000));
+        assertEquals(0, InterestKernel.interestOn(400, plan.rateFor(400)));
+        assertEquals(250, InterestKernel.interestOn(12500, plan.rateFor(12500)));
+        assertEquals("500:0.01,10000:0.02,100000:0.03", plan.tiersString());
+
+        assertThrows(IllegalArgumentException.class, () -> InterestPlan.parse("bad", 1000, "100:0.01,50:0.02"));
+        assertThrows(IllegalArgumentException.class, () -> InterestPlan.parse("bad", 1000, "0:-0.01"));
+        assertThrows(IllegalArgumentException.class, () -> InterestPlan.parse("bad", 0, "0:0.01"));
+        assertThrows(IllegalArgumentException.class, () -> InterestPlan.parse("b;d", 1000, "0:0.01"));
+        assertThrows(IllegalArgumentException.class, () -> InterestPlan.parse("bad", 1000, "0=0.01"));
+    }
+}
+
+class InterestKernelTest {
+
+    @Test
+    void matchesPerAccountRounding() {
+        long[] balances = {0, -50, 1, 20, 1000, 12345, 999_999, Long.MAX_VALUE / 1000};
+        double[] rates = {0.5, 0.5, 0.5, 0.025, 0.025, 0.0125, 0.033, 0.001};
+        long[] out = new long[balances.length];
+
+        InterestKernel.compute(balances, 0.025, out, balances.length);
+        for (int i = 0; i < balances.length; i++) {
+            long expected = balances[i] > 0 ? Math.round(balances[i] * 0.025) : 0;
+            assertEquals(expected, out[i], "balance " + balances[i]);
+        }
+
+        InterestKernel.compute(balances, rates, out, balances.length);
+        for (int i = 0; i < balances.length; i++) {
+            long expected = balances[i] > 0 ? Math.round(balances[i] * rates[i]) : 0;
+            assertEquals(expected, out[i], "balance " + balances[i]);
+        }
+        assertEquals(1, out[2]); // 0.5 rounds up, like Math.round
+
+        assertThrows(IllegalArgumentException.class, () -> InterestKernel.compute(balances, 0.1, new long[2], 3));
+    }
+
+    @Test
+    void creditUsesTheBalanceAtCreditTime() {
+        Account acc = new Account("alice", "pwd", 1000, PasswordHasher.MIN_ITERATIONS);
+        // computed in bulk from 1000, and the balance hasn't moved
+        assertEquals(100, acc.addInterest(1000, 100, b -> InterestKernel.interestOn(b, 0.1)));
+        assertEquals(1100, acc.getBalance());
+
+        // drained after the bulk pass saw 1100
+        assertTrue(acc.withdraw(1100));
+        assertEquals(0, acc.addInterest(1100, 110, b -> InterestKernel.interestOn(b, 0.1)));
+        assertEquals(0, acc.getBalance());
+
+        acc.deposit(500);
+        assertEquals(50, acc.addInterest(5000, 500, b -> InterestKernel.interestOn(b, 0.1)));
+        assertEquals(550, acc.getBalance());
+    }
+}
+
+class InterestSchedulerTest {
+    private AccountStore store;
+    private Ledger ledger;
+    private BankService service;
+    private TimingWheel wheel;
+
+    @BeforeEach
+    void setUp() {
+        store = new AccountStore();
+        ledger = new Ledger();
+        service = new BankService(store, ledger);
+        wheel = new TimingWheel(5, 64);
+        wheel.start();
+        store.createAccount("alice", "pwd");
+        store.createAccount("bob", "pwd");
+        store.createAccount("carol", "pwd");
+    }
+
+    @Test
+    void onlyPlanMembersAreCreditedAndGlobalRunSkipsThem() throws Exception {
+        InterestScheduler scheduler = new InterestScheduler(service, store, wheel, null);
+        try {
+            scheduler.definePlan(InterestPlan.parse("fast", 20, "0:0.1"));
+            scheduler.assign("alice", "fast");
+            assertEquals("fast", scheduler.planOf("alice"));
+            assertEquals(1, scheduler.memberCount("fast"));
+
+            long deadline = System.currentTimeMillis() + 2000;
+            while (service.getBalance("alice") == 1000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(service.getBalance("alice") > 1000, "Plan never ran");
+            assertEquals(1000, service.getBalance("bob"));
+
+            // a plan member gets nothing from the global rate
+            scheduler.removePlan("fast");
+            scheduler.definePlan(InterestPlan.parse("slow", 60_000, "0:0.1"));
+            scheduler.assign("bob", "slow");
+            long alice = service.getBalance("alice");
+            service.applyInterest(0.5);
+            assertEquals(1000, service.getBalance("bob"));
+            assertEquals(1500, service.getBalance("carol"));
+            assertEquals(alice + Math.round(alice * 0.5), service.getBalance("alice"));
+            assertNull(scheduler.planOf("alice"));
+        } finally {
+            scheduler.stop();
+            wheel.stop();
+        }
+    }
+
+    @Test
+    void plansAndAssignmentsSurviveSaveAndLoad() throws Exception {
+        InterestScheduler scheduler = new InterestScheduler(service, store, wheel, null);
+        Path file = Files.createTempFile("plans", ".txt");
+        try {
+            scheduler.definePlan(InterestPlan.parse("gold", 60_000, "0:0.01,5000:0.02"));
+            scheduler.assign("alice", "gold");
+            scheduler.assign("bob", "gold");
+            assertTrue(scheduler.unassign("bob"));
+            assertFalse(scheduler.unassign("bob"));
+            assertThrows(IllegalArgumentException.class, () -> scheduler.assign("alice", "nope"));
+            assertThrows(IllegalArgumentException.class, () -> scheduler.assign("nobody", "gold"));
+            scheduler.saveTo(file);
+            scheduler.stop();
+
+            InterestScheduler loaded = new InterestScheduler(service, store, wheel, null);
+            loaded.loadFrom(file);
+            assertEquals(1, loaded.plans().size());
+            assertEquals("0:0.01,5000:0.02", loaded.getPlan("gold").tiersString());
+            assertEquals("gold", loaded.planOf("alice"));
+            assertNull(loaded.planOf("bob"));
+            loaded.stop();
+        } finally {
+            Files.deleteIfExists(file);
+            wheel.stop();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// JMH-style throughput comparison of ThreadPool's shared queue and work
+// stealing modes for short tasks. There is no JMH on our classpath, so this
+// does the same by hand: warmup iterations are run and thrown away, then each
+// measured iteration is timed on its own and reported as mean +- stddev.
+//
+//   java ThreadPoolBenchmark [threads] [tasksPerIteration]
+//
+// Scenarios:
+//   external - one outside thread submits every task (like the accept loop)
+//   fanout   - outside tasks each fork many subtasks from inside the pool
+public class ThreadPoolBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final int FANOUT = 64;
+
+    // keeps the JIT from removing the task body
+    private static final AtomicLong blackhole = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        System.out.println("threads=" + threads + " tasks/iteration=" + tasks +
+                " cores=" + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-10s %-10s %16s%n", "scenario", "mode", "ops/s");
+        for (String scenario : new String[]{"external", "fanout"}) {
+            for (boolean stealing : new boolean[]{false, true}) {
+                ThreadPool pool = new ThreadPool(threads, stealing);
+                try {
+                    double[] result = measure(pool, scenario, tasks);
+                    System.out.printf("%-10s %-10s %,12.0f +- %,.0f%n", scenario,
+                            stealing ? "stealing" : "shared", result[0], result[1]);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+        if (blackhole.get() == 42) System.out.println();
+    }
+
+    // Returns {mean ops/s, stddev}
+    private static double[] measure(ThreadPool pool, String scenario, int tasks) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runOnce(pool, scenario, tasks);
+        }
+        double[] samples = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long nanos = runOnce(pool, scenario, tasks);
+            samples[i] = tasks / (nanos / 1e9);
+        }
+        double mean = 0;
+        for (double s : samples) mean += s;
+        mean /= samples.length;
+        double var = 0;
+        for (double s : samples) var += (s - mean) * (s - mean);
+        return new double[]{mean, Math.sqrt(var / (samples.length - 1))};
+    }
+
+    private static long runOnce(ThreadPool pool, String scenario, int tasks) throws Exception {
+        CountDownLatch done = new CountDownLatch(tasks);
+        Runnable leaf = () -> {
+            blackhole.addAndGet(work());
+            done.countDown();
+        };
+        long start = System.nanoTime();
+        if (scenario.equals("external")) {
+            for (int i = 0; i < tasks; i++) {
+                pool.execute(leaf);
+            }
+        } else {
+            int parents = tasks / FANOUT;
+            for (int i = 0; i < parents; i++) {
+                pool.execute(() -> {
+                    for (int j = 1; j < FANOUT; j++) {
+                        pool.execute(leaf);
+                    }
+                    leaf.run();
+                });
+            }
+            for (int i = parents * FANOUT; i < tasks; i++) {
+                pool.execute(leaf);
+            }
+        }
+        if (!done.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Benchmark iteration timed out");
+        }
+        return System.nanoTime() - start;
+    }
+
+    // about a microsecond of arithmetic, a "short task"
+    private static long work() {
+        long x = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+        }
+        return x;
+    }
+}